@@ -65,6 +65,34 @@ tasks.javadoc {
     }
 }
 
+// === BENCHMARKS ==================================================================================
+
+// JMH benchmarks live in the "jmh" directory, and can use the test classes (e.g. to load fixtures).
+// Run them with `./gradlew jmh`. Arguments can be passed to JMH via the jmhArgs property, e.g.
+// `./gradlew jmh -PjmhArgs="RLPBenchmarks -f 1 -wi 2 -i 3"` (run with "-h" for JMH's help).
+// Results are written as JSON to build/jmh/results-<timestamp>.json, so that successive runs can be
+// compared (e.g. with https://jmh.morethan.io).
+
+val jmh: SourceSet by sourceSets.creating {
+    java.srcDirs("jmh")
+    compileClasspath += sourceSets.main.get().output + sourceSets.test.get().output
+    runtimeClasspath += sourceSets.main.get().output + sourceSets.test.get().output
+}
+
+configurations[jmh.implementationConfigurationName]
+    .extendsFrom(configurations.testImplementation.get())
+
+tasks.register<JavaExec>("jmh") {
+    group = "verification"
+    description = "Runs the JMH benchmarks."
+    classpath = jmh.runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    val results = file("$buildDir/jmh/results-${System.currentTimeMillis()}.json")
+    val jmhArgs = (findProperty("jmhArgs") as String? ?: "").split(" ").filter { it.isNotBlank() }
+    args = listOf("-rf", "json", "-rff", results.absolutePath) + jmhArgs
+    doFirst { results.parentFile.mkdirs() }
+}
+
 // === IDE =========================================================================================
 
 idea.module {
@@ -174,6 +202,8 @@ dependencies {
     implementation("org.bouncycastle:bcprov-jdk15on:1.69")
     testImplementation("org.testng:testng:7.4.0")
     testImplementation("org.json:json:20210307")
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.33")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.33")
 }
 
 // =================================================================================================
\ No newline at end of file
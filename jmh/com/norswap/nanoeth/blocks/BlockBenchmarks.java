@@ -0,0 +1,52 @@
+package com.norswap.nanoeth.blocks;
+
+import com.norswap.nanoeth.Config;
+import com.norswap.nanoeth.utils.BenchmarkData;
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for block validation (without proof-of-work validation, as the blocks are
+ * synthetic).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockBenchmarks {
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Param({"10", "200"})
+    public int transactions;
+
+    private Block block;
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Setup public void setup() {
+        Config.VALIDATE_POW = false;
+        Blocks.DB.register(Config.GENESIS);
+        block = BenchmarkData.childBlock(Config.GENESIS,
+            BenchmarkData.signedTransactions(transactions, 42));
+        if (!block.validate().valid())
+            throw new IllegalStateException("benchmark block is invalid: " + block.validate());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @TearDown public void tearDown() {
+        Blocks.DB.clear();
+        Config.VALIDATE_POW = true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public BlockValidity validate() {
+        return block.validate();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
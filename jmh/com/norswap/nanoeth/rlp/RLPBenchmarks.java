@@ -0,0 +1,102 @@
+package com.norswap.nanoeth.rlp;
+
+import com.norswap.nanoeth.Config;
+import com.norswap.nanoeth.blocks.Block;
+import com.norswap.nanoeth.blocks.BlockHeader;
+import com.norswap.nanoeth.transactions.Transaction;
+import com.norswap.nanoeth.utils.BenchmarkData;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for RLP encoding and decoding, on a synthetic block and on the transactions from the
+ * test fixtures.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RLPBenchmarks {
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Param({"10", "200"})
+    public int transactions;
+
+    private RLP blockLayout;
+    private byte[] blockEncoding;
+    private BlockHeader header;
+    private byte[] headerEncoding;
+    private byte[][] fixtures;
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Setup public void setup() {
+        var txs = BenchmarkData.signedTransactions(transactions, 42);
+        Block block = BenchmarkData.childBlock(Config.GENESIS, txs);
+        blockLayout = block.rlpLayout();
+        blockEncoding = blockLayout.encode();
+        header = block.header;
+        headerEncoding = header.rlpEncode();
+
+        var fixtureTxs = BenchmarkData.fixtureTransactions();
+        fixtures = new byte[fixtureTxs.length][];
+        for (int i = 0; i < fixtureTxs.length; i++)
+            fixtures[i] = fixtureTxs[i].rlpLayout().encode();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public byte[] encodeBlock() {
+        return blockLayout.encode();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public RLP decodeBlock() {
+        return RLP.decode(blockEncoding);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public RLP decodeBlockLazily() {
+        return RLP.decodeLazily(blockEncoding);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public int viewBlock() {
+        return RLPView.of(blockEncoding).itemAt(1).size();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public byte[] encodeHeader() {
+        return BlockHeader.CODEC.encode(header);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public BlockHeader decodeHeader() throws RLPParsingException {
+        return BlockHeader.decode(headerEncoding);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public void decodeFixtures (Blackhole hole) {
+        for (var fixture: fixtures)
+            hole.consume(RLP.decode(fixture));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public void parseFixtures (Blackhole hole) throws RLPParsingException {
+        for (var fixture: fixtures)
+            hole.consume(Transaction.from(RLP.decode(fixture)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,109 @@
+package com.norswap.nanoeth.signature;
+
+import com.norswap.nanoeth.utils.Hashing;
+import org.bouncycastle.math.ec.ECPoint;
+import org.openjdk.jmh.annotations.*;
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for ECDSA signing, verification and public key recovery over secp256k1.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmarks {
+
+    // ---------------------------------------------------------------------------------------------
+
+    private EthKeyPair keys;
+    private byte[] message;
+    private byte[] hash;
+    private Signature signature;
+
+    /** Number of signatures in {@link #batch}. */
+    private static final int BATCH_SIZE = 64;
+
+    private SignatureBatch batch;
+    private ECPoint[] batchKeys;
+    private byte[][] batchHashes;
+    private Signature[] batchSignatures;
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Setup public void setup() {
+        var random = new Random(42);
+        keys = new EthKeyPair(new BigInteger(255, random).add(BigInteger.ONE));
+        message = new byte[32];
+        random.nextBytes(message);
+        signature = keys.sign(message);
+        hash = Hashing.keccak(message).bytes;
+
+        batch = new SignatureBatch();
+        batchKeys = new ECPoint[BATCH_SIZE];
+        batchHashes = new byte[BATCH_SIZE][];
+        batchSignatures = new Signature[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            var batchKey = new EthKeyPair(new BigInteger(255, random).add(BigInteger.ONE));
+            batchKeys[i] = batchKey.publicKey;
+            batchHashes[i] = new byte[32];
+            random.nextBytes(batchHashes[i]);
+            batchSignatures[i] = batchKey.signWithoutHashing(batchHashes[i]);
+            batch.add(batchKeys[i], batchHashes[i], batchSignatures[i]);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Signature sign() {
+        return keys.sign(message);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public boolean verify() {
+        return signature.verify(keys.publicKey, message);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public ECPoint recoverPublicKey() {
+        return signature.recoverPublicKey(message);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public ECPoint recoverPublicKeyWithoutHashing() {
+        return signature.recoverPublicKeyWithoutHashing(hash);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Baseline for {@link #recoverPublicKeyWithoutHashing()}: the former recovery code path. */
+    @Benchmark public ECPoint recoverPublicKeyReference() {
+        return CurveTests.recoverReference(signature.yParity, hash, signature.r, signature.s);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Verifies {@value #BATCH_SIZE} signatures with {@link SignatureBatch}. */
+    @Benchmark public boolean verifyBatch() {
+        return batch.verifyAll();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Baseline for {@link #verifyBatch()}: verifies the signatures one by one. */
+    @Benchmark public boolean verifyBatchIndividually() {
+        boolean valid = true;
+        for (int i = 0; i < BATCH_SIZE; i++)
+            valid &= batchSignatures[i].verifyWithoutHashing(batchKeys[i], batchHashes[i]);
+        return valid;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,94 @@
+package com.norswap.nanoeth.transactions;
+
+import com.norswap.nanoeth.data.Address;
+import com.norswap.nanoeth.data.Hash;
+import com.norswap.nanoeth.rlp.RLP;
+import com.norswap.nanoeth.rlp.RLPParsingException;
+import com.norswap.nanoeth.utils.BenchmarkData;
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for transaction parsing, hashing and sender recovery.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionBenchmarks {
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Transaction transaction;
+    private byte[] encoding;
+
+    /** Transactions of a typical mainnet block. */
+    private Transaction[] blockTransactions;
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Setup public void setup() {
+        transaction = BenchmarkData.signedTransactions(1, 42)[0];
+        encoding = transaction.rlpLayout().encode();
+        blockTransactions = BenchmarkData.signedTransactions(200, 42);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Transaction parse() throws RLPParsingException {
+        return Transaction.from(RLP.decode(encoding));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns a copy of the transaction, whose memoized values haven't been computed yet. */
+    private static Transaction fresh (Transaction tx) {
+        return new Transaction(tx.format, tx.chainId, tx.nonce, tx.maxFeePerGas,
+            tx.maxPriorityFeePerGas, tx.gasLimit, tx.to, tx.value, tx.payload, tx.accessList,
+            tx.signature);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Hash hash() {
+        return fresh(transaction).hash();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Address recoverSender() {
+        return fresh(transaction).recoverSender();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Hash and sender of a parsed transaction, as a mempool would need them. */
+    @Benchmark public Address parseHashAndRecover() throws RLPParsingException {
+        var tx = Transaction.from(RLP.decode(encoding));
+        tx.hash();
+        tx.hash();
+        tx.recoverSender();
+        return tx.recoverSender();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    @Benchmark public Address[] recoverBlockSenders() {
+        var senders = new Address[blockTransactions.length];
+        for (int i = 0; i < senders.length; i++)
+            senders[i] = fresh(blockTransactions[i]).recoverSender();
+        return senders;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Address[] recoverBlockSendersParallel() {
+        var txs = new Transaction[blockTransactions.length];
+        for (int i = 0; i < txs.length; i++)
+            txs[i] = fresh(blockTransactions[i]);
+        return Transaction.recoverSenders(txs);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,174 @@
+package com.norswap.nanoeth.trees.patricia;
+
+import com.norswap.nanoeth.data.MerkleRoot;
+import com.norswap.nanoeth.rlp.RLP;
+import com.norswap.nanoeth.rlp.RLPParsingException;
+import com.norswap.nanoeth.trees.patricia.memory.TreeNodeStore;
+import com.norswap.nanoeth.trees.patricia.store.MapNodeStore;
+import com.norswap.nanoeth.utils.BenchmarkData;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the modified Merkle Patricia tree, over both the in-memory node store and the
+ * store-backed node store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PatriciaTreeBenchmarks {
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Param({"tree", "map"})
+    public String store;
+
+    @Param({"1000", "10000"})
+    public int size;
+
+    /** Number of proofs verified by the proof benchmarks. */
+    private static final int PROOFS = 100;
+
+    private byte[][] keys;
+    private byte[][] values;
+    private PatriciaTree tree;
+    private MerkleRoot root;
+    private byte[][][] encodedProofs;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private NodeStore newStore() {
+        switch (store) {
+            case "tree": return new TreeNodeStore();
+            case "map":  return new MapNodeStore();
+            default: throw new IllegalArgumentException("unknown store: " + store);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private PatriciaTree build() {
+        var tree = new PatriciaTree(newStore());
+        for (int i = 0; i < size; i++)
+            tree = tree.add(keys[i], values[i]);
+        return tree;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Setup(Level.Trial) public void setup() {
+        var random = new Random(42);
+        keys   = BenchmarkData.randomBytes(random, size, 32);
+        values = BenchmarkData.randomBytes(random, size, 64);
+        tree   = build();
+        root   = tree.merkleRoot();
+        encodedProofs = new byte[PROOFS][][];
+        for (int i = 0; i < PROOFS; i++)
+            encodedProofs[i] = tree.prove(keys[i]).encodedBranch();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Fresh tree whose merkle root hasn't been computed (cap computations are memoized). */
+    @State(Scope.Thread)
+    public static class FreshTree {
+        PatriciaTree tree;
+
+        @Setup(Level.Invocation) public void setup (PatriciaTreeBenchmarks benchmarks) {
+            tree = benchmarks.build();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public PatriciaTree add() {
+        return build();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public PatriciaTree addAll() {
+        return new PatriciaTree(newStore()).addAll(keys, values);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public void lookup (Blackhole hole) {
+        for (var key: keys)
+            hole.consume(tree.lookup(key));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public void toMap (Blackhole hole) {
+        hole.consume(tree.toMap());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public void iterate (Blackhole hole) {
+        var it = tree.iterator(new byte[0], null);
+        while (it.hasNext())
+            hole.consume(it.next());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public MerkleRoot merkleRoot (FreshTree fresh) {
+        return fresh.tree.merkleRoot();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public MerkleRoot parallelMerkleRoot (FreshTree fresh) {
+        return fresh.tree.merkleRoot(ForkJoinPool.commonPool());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Root of the index-keyed trie (e.g. transactions trie), built as a tree. */
+    @Benchmark public MerkleRoot listRoot() {
+        var batch = new PatriciaTree(newStore()).batch();
+        for (int i = 0; i < size; i++)
+            batch.put(StackTrie.indexKey(i), values[i]);
+        return batch.commit().merkleRoot();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Root of the index-keyed trie (e.g. transactions trie), computed by {@link StackTrie}. */
+    @Benchmark public MerkleRoot stackTrieListRoot() {
+        return StackTrie.ofList(values);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    /**
+     * Verifies proofs of present keys against the same root, one at a time, after decoding their
+     * nodes (as received from the network).
+     */
+    @Benchmark public void verifyProofs (Blackhole hole) throws RLPParsingException {
+        for (int i = 0; i < PROOFS; i++) {
+            var branch = new PatriciaNode[encodedProofs[i].length];
+            for (int j = 0; j < branch.length; j++)
+                branch[j] = PatriciaNode.parse(RLP.decode(encodedProofs[i][j]));
+            hole.consume(new MerkleProof(keys[i], values[i], branch).verify(root));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Verifies proofs of present keys against the same root, with a {@link ProofVerifier}. */
+    @Benchmark public void proofVerifier (Blackhole hole) {
+        var verifier = new ProofVerifier(root);
+        for (int i = 0; i < PROOFS; i++)
+            hole.consume(verifier.verify(keys[i], values[i], encodedProofs[i]));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
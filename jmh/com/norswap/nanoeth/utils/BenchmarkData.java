@@ -0,0 +1,112 @@
+package com.norswap.nanoeth.utils;
+
+import com.norswap.nanoeth.Config;
+import com.norswap.nanoeth.blocks.Block;
+import com.norswap.nanoeth.blocks.BlockHeader;
+import com.norswap.nanoeth.data.Address;
+import com.norswap.nanoeth.data.Hash;
+import com.norswap.nanoeth.data.MerkleRoot;
+import com.norswap.nanoeth.data.Natural;
+import com.norswap.nanoeth.receipts.BloomFilter;
+import com.norswap.nanoeth.rlp.RLP;
+import com.norswap.nanoeth.rlp.RLPParsingException;
+import com.norswap.nanoeth.signature.EthKeyPair;
+import com.norswap.nanoeth.transactions.AccessList;
+import com.norswap.nanoeth.transactions.SharedTransactionData;
+import com.norswap.nanoeth.transactions.Transaction;
+import com.norswap.nanoeth.transactions.UnsignedTransaction;
+import com.norswap.nanoeth.trees.patricia.PatriciaTree;
+import com.norswap.nanoeth.trees.patricia.memory.TreeNodeStore;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static com.norswap.nanoeth.Context.CONTEXT;
+import static com.norswap.nanoeth.transactions.TransactionFormat.TX_EIP_155;
+
+/**
+ * Inputs for the benchmarks: synthetic data generated from a fixed seed (so that successive runs
+ * are comparable), and fixtures from the {@code testdata} directory.
+ */
+public final class BenchmarkData {
+    private BenchmarkData () {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns {@code count} random byte arrays of the given size. */
+    public static byte[][] randomBytes (Random random, int count, int size) {
+        var out = new byte[count][size];
+        for (var bytes: out)
+            random.nextBytes(bytes);
+        return out;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns {@code count} EIP-155 value transfers (with a small random payload), signed by
+     * deterministically generated keys.
+     */
+    public static Transaction[] signedTransactions (int count, long seed) {
+        var random = new Random(seed);
+        var keys = new EthKeyPair[8];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = new EthKeyPair(new BigInteger(255, random).add(BigInteger.ONE));
+
+        var out = new Transaction[count];
+        for (int i = 0; i < count; i++) {
+            var payload = new byte[random.nextInt(64)];
+            random.nextBytes(payload);
+            var to = new byte[20];
+            random.nextBytes(to);
+            var tx = new UnsignedTransaction(TX_EIP_155,
+                new Natural(1), new Natural(i), new Natural(1_000_000_000), new Natural(1_000_000_000),
+                new Natural(21_000 + 16 * payload.length), new Address(to),
+                new Natural(random.nextInt(Integer.MAX_VALUE)), payload, AccessList.EMPTY);
+            out[i] = tx.sign(keys[i % keys.length]);
+        }
+        return out;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a valid child of {@code parent} that includes the given transactions (proof of work
+     * validation must be disabled via {@link Config#VALIDATE_POW}).
+     */
+    public static Block childBlock (Block parent, Transaction[] transactions) {
+        var txTree = new PatriciaTree(new TreeNodeStore());
+        for (int i = 0; i < transactions.length; i++)
+            txTree = txTree.add(
+                RLP.bytes(ByteUtils.bytes(i)).encode(),
+                transactions[i].binary());
+
+        var p = parent.header;
+        var header = new BlockHeader(
+            p.hash(), Hash.EMPTY_SEQ_HASH, Address.ZERO, MerkleRoot.ZERO, txTree.merkleRoot(),
+            MerkleRoot.ZERO, new BloomFilter(), p.difficulty, p.number.add(1), p.gasLimit,
+            Natural.ZERO, p.timestamp.add(15), new byte[0], Hash.ZERO, 0);
+
+        return new Block(header, transactions, new BlockHeader[0]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the valid transactions from the {@code testdata} fixtures. */
+    public static Transaction[] fixtureTransactions () {
+        var out = new ArrayList<Transaction>();
+        for (var testCase: SharedTransactionData.TEST_CASES) {
+            if (!testCase.valid) continue;
+            CONTEXT.blockHeight = testCase.blockHeight;
+            try {
+                out.add(Transaction.from(RLP.decode(testCase.hexRLP)));
+            } catch (RLPParsingException e) {
+                throw new AssertionError(e);
+            }
+        }
+        CONTEXT.reset();
+        return out.toArray(Transaction[]::new);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
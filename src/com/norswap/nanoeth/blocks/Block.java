@@ -6,9 +6,7 @@ import com.norswap.nanoeth.rlp.RLP;
 import com.norswap.nanoeth.rlp.RLPLayoutable;
 import com.norswap.nanoeth.rlp.RLPParsingException;
 import com.norswap.nanoeth.transactions.Transaction;
-import com.norswap.nanoeth.trees.patricia.PatriciaTree;
-import com.norswap.nanoeth.trees.patricia.memory.TreeNodeStore;
-import com.norswap.nanoeth.utils.ByteUtils;
+import com.norswap.nanoeth.trees.patricia.StackTrie;
 import com.norswap.nanoeth.utils.Utils;
 import java.util.Arrays;
 import java.util.Objects;
@@ -84,27 +82,62 @@ public final class Block implements RLPLayoutable {
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Decodes a block from its binary RLP encoding. The encoding is decoded lazily (cf. {@link
+     * RLP#decodeLazily(byte[])}): the RLP items are only built as they are parsed.
+     *
+     * @throws IllegalArgumentException if the encoding is not well-formed RLP
+     * @throws RLPParsingException if the encoding does not properly parse to a block
+     */
+    public static Block decode (@Retained byte[] encoding) throws RLPParsingException {
+        return from(RLP.decodeLazily(encoding));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Decodes only the header of a block from the binary RLP encoding of the block, e.g. for
+     * header-only sync. The encoding is decoded lazily, so the transactions and uncles are skipped
+     * over without being decoded (though the whole encoding is checked to be well-formed RLP).
+     *
+     * @throws IllegalArgumentException if the encoding is not well-formed RLP
+     * @throws RLPParsingException if the encoding does not properly parse to a block header
+     */
+    public static BlockHeader decodeHeader (@Retained byte[] encoding)
+            throws RLPParsingException {
+        return BlockParser.parseBlockHeader(RLP.decodeLazily(encoding));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Validates the block, returning a {@link BlockValidity} object to indicate if the block
-     * valid or invalid (and why).
+     * valid or invalid (and why). Ancestors are retrieved from {@link Blocks#DB}.
      */
     public BlockValidity validate() {
+        return validate(Blocks.DB);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Validates the block, returning a {@link BlockValidity} object to indicate if the block
+     * valid or invalid (and why). Ancestors are retrieved from {@code blocks}.
+     */
+    public BlockValidity validate (BlockStore blocks) {
 
-        var uncleValidity = validateUncles();
+        var uncleValidity = validateUncles(blocks);
         if (!uncleValidity.valid())
             return uncleValidity;
 
-        var headerValidity = BlockValidity.of(header.validate());
+        var headerValidity = BlockValidity.of(header.validate(blocks.getHeader(header.parentHash)));
         if (!headerValidity.valid()) return headerValidity;
 
-        var txTree = new PatriciaTree(new TreeNodeStore());
-        for (int i = 0; i < transactions.length; i++) {
-            byte[] key   = RLP.bytes(ByteUtils.bytes(i)).encode();
-            byte[] value = transactions[i].binary();
-            txTree = txTree.add(key, value);
-        }
+        var txBinaries = new byte[transactions.length][];
+        for (int i = 0; i < transactions.length; i++)
+            txBinaries[i] = transactions[i].binary();
 
-        if (!txTree.merkleRoot().equals(header.transactionsRoot))
+        if (!StackTrie.ofList(txBinaries).equals(header.transactionsRoot))
             return BlockValidity.of(VAL_BAD_TX_ROOT);
 
         return BLOCK_VALID;
@@ -119,13 +152,13 @@ public final class Block implements RLPLayoutable {
     // ---------------------------------------------------------------------------------------------
 
     /** Validate uncles, as per section 11.1 of the yellowpaper. */
-    private BlockValidity validateUncles() {
+    private BlockValidity validateUncles (BlockStore blocks) {
 
         if (uncles.length > MAX_UNCLES)
             return BlockValidity.of(VAL_TOO_MANY_UNCLES);
 
         for (var uncle: uncles) {
-            if (uncle.validate() != VAL_VALID)
+            if (uncle.validate(blocks.getHeader(uncle.parentHash)) != VAL_VALID)
                 return BlockValidity.of(VAL_BAD_UNCLE, uncle);
             if (uncle.number.compareTo(header.number) >= 0)
                 return BlockValidity.of(VAL_UNCLE_TOO_OLD, uncle);
@@ -133,7 +166,7 @@ public final class Block implements RLPLayoutable {
                 return BlockValidity.of(VAL_FUTURE_UNCLE, uncle);
 
             // NOTE: This surprisingly doesn't seem to specified in the yellowpaper.
-            var lineageValidity = validateUncleLineage(uncle);
+            var lineageValidity = validateUncleLineage(blocks, uncle);
             if (!lineageValidity.valid())
                 return lineageValidity;
         }
@@ -154,34 +187,27 @@ public final class Block implements RLPLayoutable {
      * Checks that (1) {@code uncle} really is an uncle (the sibling of an ancestor of degree <=
      * {@link #MAX_UNCLE_DEGREE}) and (2) that the uncle hasn't been previously included as an uncle
      * or main chain block.
+     *
+     * <p>Only the {@link HeaderIndex} of the store is used, so no header or body needs to be
+     * retrieved for the ancestors of the block.
      */
-    private BlockValidity validateUncleLineage (BlockHeader uncle) {
-        boolean isUncle = false;
-        var uncleParentHeader = Blocks.DB.getHeader(uncle.parentHash);
-        var current = this;
-
-        // We need to go to the (max_degree + 1)th ancestor to check if it's not a (max_degree)th
-        // generation uncle. The logic stays valid.
-        for (int i = 1; i <= MAX_UNCLE_DEGREE + 1; ++i) {
-            current = Blocks.DB.get(current.header.parentHash);
-
-            if (current == null) { // genesis
-                isUncle |= uncleParentHeader == null;
-                break;
-            }
-
-            if (current.header.number.equals(uncle.number)
-                    && current.header.equals(uncle))
-                return BlockValidity.of(VAL_UNCLE_IS_ANCESTOR, uncle);
-
-            if (uncleParentHeader != null && current.header.number.equals(uncleParentHeader.number))
-                isUncle |= current.header.equals(uncleParentHeader);
-
-            if (Arrays.asList(current.uncles).contains(uncle))
-                return BlockValidity.of(VAL_UNCLE_ALREADY_INCLUDED, uncle); 
-        }
-
-        return isUncle ? BLOCK_VALID : BlockValidity.of(VAL_UNRELATED_UNCLE, uncle);
+    private BlockValidity validateUncleLineage (BlockStore blocks, BlockHeader uncle) {
+        var index = blocks.headerIndex();
+        var uncleHash = uncle.hash();
+
+        // The ancestors of degree 1 to MAX_UNCLE_DEGREE + 1 are the parent and its ancestors of
+        // degree <= MAX_UNCLE_DEGREE.
+        if (index.isAncestor(uncleHash, header.parentHash, MAX_UNCLE_DEGREE))
+            return BlockValidity.of(VAL_UNCLE_IS_ANCESTOR, uncle);
+
+        if (index.isUncleIncluded(uncleHash, header.parentHash))
+            return BlockValidity.of(VAL_UNCLE_ALREADY_INCLUDED, uncle);
+
+        // The uncle's parent must be one of these ancestors (the parent itself is excluded by
+        // the number check in validateUncles).
+        return index.isAncestor(uncle.parentHash, header.parentHash, MAX_UNCLE_DEGREE)
+            ? BLOCK_VALID
+            : BlockValidity.of(VAL_UNRELATED_UNCLE, uncle);
     }
 
     // ---------------------------------------------------------------------------------------------
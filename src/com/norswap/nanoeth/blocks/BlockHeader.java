@@ -8,6 +8,7 @@ import com.norswap.nanoeth.data.Hash;
 import com.norswap.nanoeth.data.MerkleRoot;
 import com.norswap.nanoeth.data.Natural;
 import com.norswap.nanoeth.rlp.RLP;
+import com.norswap.nanoeth.rlp.RLPCodec;
 import com.norswap.nanoeth.rlp.RLPLayoutable;
 import com.norswap.nanoeth.rlp.RLPParsingException;
 import com.norswap.nanoeth.utils.Hashing;
@@ -155,6 +156,30 @@ public final class BlockHeader implements RLPLayoutable {
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Codec that encodes headers straight to bytes and decodes them straight from bytes, with the
+     * same results as {@link #rlpLayout()} and {@link #from(RLP)}.
+     */
+    public static final RLPCodec<BlockHeader> CODEC = RLPCodec.<BlockHeader>builder()
+        .bytes   (it -> it.parentHash.bytes)
+        .bytes   (it -> it.uncleHash.bytes)
+        .bytes   (it -> it.coinbase.bytes)
+        .bytes   (it -> it.stateRoot.bytes)
+        .bytes   (it -> it.transactionsRoot.bytes)
+        .bytes   (it -> it.receiptsRoot.bytes)
+        .bytes   (it -> it.logsBloom.bits)
+        .natural (it -> it.difficulty)
+        .natural (it -> it.number)
+        .natural (it -> it.gasLimit)
+        .natural (it -> it.gasUsed)
+        .natural (it -> it.timestamp)
+        .bytes   (it -> it.extraData)
+        .bytes   (it -> it.mixHash.bytes)
+        .int64   (it -> it.nonce)
+        .build(BlockParser::readHeader);
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * For hash caching, access via {@link #hash()}.
      */
@@ -211,6 +236,18 @@ public final class BlockHeader implements RLPLayoutable {
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Decodes a block header from its binary RLP encoding (using {@link #CODEC}).
+     *
+     * @throws IllegalArgumentException if the encoding is not well-formed RLP
+     * @throws RLPParsingException if the encoding does not properly parse to a block header
+     */
+    public static BlockHeader decode (byte[] encoding) throws RLPParsingException {
+        return CODEC.decode(encoding);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Parses a RLP sequence into a block header.
      *
@@ -316,6 +353,13 @@ public final class BlockHeader implements RLPLayoutable {
 
     // ---------------------------------------------------------------------------------------------
 
+    /** Returns the RLP encoding of the header, computed via {@link #CODEC}. */
+    @Override public byte[] rlpEncode() {
+        return CODEC.encode(this);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     @Override public boolean equals (Object o) {
         if (this == o) return true;
         if (!(o instanceof BlockHeader)) return false;
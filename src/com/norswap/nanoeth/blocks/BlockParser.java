@@ -7,6 +7,7 @@ import com.norswap.nanoeth.data.Natural;
 import com.norswap.nanoeth.receipts.BloomFilter;
 import com.norswap.nanoeth.rlp.IllegalRLPAccess;
 import com.norswap.nanoeth.rlp.RLP;
+import com.norswap.nanoeth.rlp.RLPCodec;
 import com.norswap.nanoeth.rlp.RLPParsingException;
 import com.norswap.nanoeth.transactions.Transaction;
 import static com.norswap.nanoeth.rlp.RLPParsing.*;
@@ -57,6 +58,17 @@ final class BlockParser {
 
     // ---------------------------------------------------------------------------------------------
 
+    /** Implements {@link Block#decodeHeader}: parses the header of a block, ignoring the rest. */
+    static BlockHeader parseBlockHeader (RLP rlp) throws RLPParsingException {
+        try {
+            return parseHeader(rlp.itemAt(0));
+        } catch (IllegalRLPAccess e) { // not a sequence
+            throw new RLPParsingException(e.getMessage(), e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     static BlockHeader parseHeader (RLP rlp) throws RLPParsingException {
         try {
             var parentHash          = getHash           (rlp, 0);
@@ -89,6 +101,45 @@ final class BlockParser {
 
     // ---------------------------------------------------------------------------------------------
 
+    /** Reads a header from its fields, for {@link BlockHeader#CODEC}. */
+    static BlockHeader readHeader (RLPCodec.Reader reader) throws RLPParsingException {
+        try {
+            var parentHash          = new Hash       (reader.bytes(32, "Hash"));
+            var uncleHash           = new Hash       (reader.bytes(32, "Hash"));
+            var coinbaseBytes       = reader.bytes();
+            var stateRoot           = new MerkleRoot (reader.bytes(32, "Merkle root"));
+            var transactionsRoot    = new MerkleRoot (reader.bytes(32, "Merkle root"));
+            var receiptsRoot        = new MerkleRoot (reader.bytes(32, "Merkle root"));
+            var logsBloom           = new BloomFilter(reader.bytes(256, "Bloom filter"));
+            var difficulty          = reader.natural();
+            var number              = reader.natural();
+            var gasLimit            = reader.natural();
+            var gasUsed             = reader.natural();
+            var timestamp           = reader.natural();
+            var extraData           = reader.bytes();
+            var mixHash             = new Hash       (reader.bytes(32, "Hash"));
+            var nonce               = reader.int64();
+
+            Address coinbase;
+            if (coinbaseBytes.length == 0)
+                coinbase = Address.EMPTY;
+            else if (coinbaseBytes.length == 20)
+                coinbase = new Address(coinbaseBytes);
+            else
+                throw new RLPParsingException("Address should be 20 bytes long.");
+
+            return new BlockHeader(
+                parentHash, uncleHash, coinbase, stateRoot, transactionsRoot, receiptsRoot, logsBloom,
+                difficulty, number, gasLimit, gasUsed, timestamp, extraData, mixHash, nonce);
+
+        } catch (RLPParsingException e) {
+            e.trace.push("Illegal header format.");
+            throw e;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     public static Hash getHash (RLP seq, int i) throws RLPParsingException {
         return Hash.parse(seq.itemAt(i));
     }
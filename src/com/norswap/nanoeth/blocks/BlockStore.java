@@ -0,0 +1,56 @@
+package com.norswap.nanoeth.blocks;
+
+import com.norswap.nanoeth.annotations.Nullable;
+import com.norswap.nanoeth.data.Hash;
+
+/**
+ * A database that enables retrieving blocks by {@link BlockHeader#hash() hash}, and the hashes
+ * of all known blocks with a given number (including non-canonical blocks).
+ * <p>
+ * Implemented by {@link Blocks} (in-memory) and {@link SegmentBlockStore} (on-disk). Each instance
+ * is independent, so multiple nodes can run in the same process, each with its own store.
+ */
+public interface BlockStore {
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Registers the given block in the store. Registering a known block has no effect. */
+    void register (Block block);
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the block with the given hash, or null if no such block is known. */
+    @Nullable Block get (Hash hash);
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the block header with the given hash, or null if no such block is known. This can
+     * be much cheaper than {@link #get(Hash)}, as the block's body doesn't need to be retrieved.
+     */
+    @Nullable BlockHeader getHeader (Hash hash);
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the hashes of the uncles included in the block with the given hash, or null if no
+     * such block is known. Like {@link #getHeader(Hash)}, this does not need to retrieve the
+     * block's body.
+     */
+    @Nullable Hash[] getUncleHashes (Hash hash);
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the hashes of the known blocks with the given number, in registration order. */
+    Hash[] getHashes (long number);
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the index over the headers of this store, which is kept up to date as blocks are
+     * registered.
+     */
+    HeaderIndex headerIndex();
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -1,59 +1,87 @@
 package com.norswap.nanoeth.blocks;
 
+import com.norswap.nanoeth.annotations.Nullable;
 import com.norswap.nanoeth.chain.Blockchain;
 import com.norswap.nanoeth.data.Hash;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 /**
  * A database that enables retrieving blocks by {@link BlockHeader#hash() hash}.
  * <p>To retrieve blocks in the canonical chain by number, use {@link Blockchain} instead.
- * <p>The current implementation is fully in-memory, and does not persist any block to disk.
+ * <p>This implementation is fully in-memory, and does not persist any block to disk. See {@link
+ * SegmentBlockStore} for a persistent implementation.
  */
-public final class Blocks {
-    private Blocks() {}
+public final class Blocks implements BlockStore {
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Singleton blocks DB instance.
-     * TODO: enable running multiple nodes in parallel
+     * Default blocks DB instance, used by {@link Block#validate()} and {@link
+     * BlockHeader#validate()}. Nodes that need their own store should create their own instance (or
+     * use {@link SegmentBlockStore}), and use {@link Block#validate(BlockStore)}.
      */
     public static final Blocks DB = new Blocks();
 
     // ---------------------------------------------------------------------------------------------
 
-    // current primitive implementation
     private final HashMap<Hash, Block> blocks = new HashMap<>();
 
+    private final HashMap<Long, ArrayList<Hash>> byNumber = new HashMap<>();
+
+    private final HeaderIndex index = new HeaderIndex(this);
+
     // ---------------------------------------------------------------------------------------------
 
-    /**
-     * Registers the given block in the block DB.
-     */
-    public void register (Block block) {
-        blocks.put(block.header.hash(), block);
+    @Override public void register (Block block) {
+        var hash = block.header.hash();
+        if (blocks.putIfAbsent(hash, block) != null)
+            return;
+        byNumber.computeIfAbsent(block.header.number.longValue(), k -> new ArrayList<>())
+            .add(hash);
+        index.add(block);
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    /** Returns the block with the given hash, or null if no such block is known. */
-    public Block get (Hash hash) {
+    @Override public @Nullable Block get (Hash hash) {
         return blocks.get(hash);
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    /* Returns the block header with the given hash, or null if no such block is known. */
-    public BlockHeader getHeader (Hash hash) {
+    @Override public @Nullable BlockHeader getHeader (Hash hash) {
         var block = blocks.get(hash);
         return block != null ? block.header : null;
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    @Override public @Nullable Hash[] getUncleHashes (Hash hash) {
+        var block = blocks.get(hash);
+        return block != null ? HeaderIndex.uncleHashes(block) : null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public Hash[] getHashes (long number) {
+        var hashes = byNumber.get(number);
+        return hashes == null ? new Hash[0] : hashes.toArray(Hash[]::new);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public HeaderIndex headerIndex() {
+        return index;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /** Empties the database. */
     public void clear() {
         blocks.clear();
+        byNumber.clear();
+        index.clear();
     }
 
     // ---------------------------------------------------------------------------------------------
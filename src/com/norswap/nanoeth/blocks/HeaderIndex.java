@@ -0,0 +1,211 @@
+package com.norswap.nanoeth.blocks;
+
+import com.norswap.nanoeth.annotations.Nullable;
+import com.norswap.nanoeth.data.Hash;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.norswap.nanoeth.blocks.Block.MAX_UNCLE_DEGREE;
+
+/**
+ * An index over the headers of a {@link BlockStore}, which answers ancestry and uncle inclusion
+ * queries (as needed to validate uncles) by following parent links between compact per-header
+ * records, without retrieving block bodies from the store.
+ * <p>
+ * Each record holds the hash, number and parent hash of a block, as well as the hashes of the
+ * uncles it includes, and (lazily) the set of the uncles included in the block and its {@link
+ * Block#MAX_UNCLE_DEGREE} closest ancestors.
+ * <p>
+ * Blocks registered in the store are indexed via {@link #add(Block)}. Records for other blocks
+ * of the store are built when they are needed, from the block's header and the hashes of its
+ * uncles (cf. {@link BlockStore#getUncleHashes(Hash)}), which the store can supply without
+ * retrieving the block's body.
+ * <p>
+ * The index holds a bounded number of records (the most recently used ones), so its memory usage
+ * does not grow with the length of the chain. Records refer to their parent by hash rather than by
+ * reference, so that evicted records can be garbage-collected, and are rebuilt if needed again.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class HeaderIndex {
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Default maximum number of records held by an index. */
+    public static final int DEFAULT_CAPACITY = 1 << 12;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final Hash[] NO_HASHES = new Hash[0];
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final BlockStore store;
+
+    private final LinkedHashMap<Hash, Record> records;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Record {
+        final long number;
+        final Hash parentHash;
+
+        /** Hashes of the uncles included in the block. */
+        final Hash[] uncles;
+
+        /**
+         * Hashes of the uncles included in the block and its {@link Block#MAX_UNCLE_DEGREE}
+         * closest ancestors, or null if not computed yet.
+         */
+        @Nullable HashSet<Hash> recentUncles;
+
+        Record (BlockHeader header, Hash[] uncles) {
+            this.number = header.number.longValue();
+            this.parentHash = header.parentHash;
+            this.uncles = uncles;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates an index over the headers of the given store, holding up to {@code capacity}
+     * records.
+     */
+    public HeaderIndex (BlockStore store, int capacity) {
+        this.store = store;
+        this.records = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry (Map.Entry<Hash, Record> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Creates an index over the headers of the given store, with {@link #DEFAULT_CAPACITY}. */
+    public HeaderIndex (BlockStore store) {
+        this(store, DEFAULT_CAPACITY);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Indexes the given block, which has been registered in the store. */
+    public void add (Block block) {
+        var hash = block.header.hash();
+        if (records.get(hash) == null)
+            records.put(hash, new Record(block.header, uncleHashes(block)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the hashes of the uncles included in the given block. */
+    public static Hash[] uncleHashes (Block block) {
+        var uncles = block.uncles.length == 0 ? NO_HASHES : new Hash[block.uncles.length];
+        for (int i = 0; i < uncles.length; i++)
+            uncles[i] = block.uncles[i].hash();
+        return uncles;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the record for the block with the given hash, or null if the block is unknown. */
+    private @Nullable Record record (Hash hash) {
+        var record = records.get(hash);
+        if (record != null)
+            return record;
+        var header = store.getHeader(hash);
+        var uncles = store.getUncleHashes(hash);
+        if (header == null || uncles == null)
+            return null;
+        record = new Record(header, uncles);
+        records.put(hash, record);
+        return record;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the record of the parent of the given record, or null if the parent is unknown. */
+    private @Nullable Record parent (Record record) {
+        return record(record.parentHash);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Whether the block with the given hash is known. */
+    public boolean contains (Hash hash) {
+        return record(hash) != null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the header of the parent of the block with the given hash, or null if the block or
+     * its parent is unknown.
+     */
+    public @Nullable BlockHeader parentHeader (Hash hash) {
+        var record = record(hash);
+        return record == null ? null : store.getHeader(record.parentHash);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the block with hash {@code ancestor} is the block with hash {@code block} or one of
+     * its ancestors at most {@code maxDistance} generations removed (e.g. 1 for the parent).
+     * <p>
+     * This follows at most {@code maxDistance} parent links.
+     */
+    public boolean isAncestor (Hash ancestor, Hash block, int maxDistance) {
+        var target = record(ancestor);
+        var current = record(block);
+        if (target == null || current == null)
+            return false;
+        long distance = current.number - target.number;
+        if (distance < 0 || distance > maxDistance)
+            return false;
+        var hash = block;
+        for (long i = 0; i < distance; i++) {
+            var record = record(hash);
+            if (record == null)
+                return false;
+            hash = record.parentHash;
+        }
+        return hash.equals(ancestor);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the uncle with hash {@code uncle} is included in the block with hash {@code block},
+     * or in one of its {@link Block#MAX_UNCLE_DEGREE} closest ancestors.
+     * <p>
+     * This is a single hash set lookup, once the set has been computed for the block.
+     */
+    public boolean isUncleIncluded (Hash uncle, Hash block) {
+        var record = record(block);
+        if (record == null)
+            return false;
+        if (record.recentUncles == null) {
+            var recent = new HashSet<Hash>();
+            var current = record;
+            for (int i = 0; i <= MAX_UNCLE_DEGREE && current != null; i++) {
+                recent.addAll(Arrays.asList(current.uncles));
+                current = parent(current);
+            }
+            record.recentUncles = recent;
+        }
+        return record.recentUncles.contains(uncle);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Empties the index. */
+    public void clear() {
+        records.clear();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
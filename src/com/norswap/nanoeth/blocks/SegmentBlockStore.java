@@ -0,0 +1,320 @@
+package com.norswap.nanoeth.blocks;
+
+import com.norswap.nanoeth.annotations.Nullable;
+import com.norswap.nanoeth.data.Hash;
+import com.norswap.nanoeth.rlp.IllegalRLPAccess;
+import com.norswap.nanoeth.rlp.RLP;
+import com.norswap.nanoeth.rlp.RLPParsingException;
+import com.norswap.nanoeth.rlp.RLPView;
+import com.norswap.nanoeth.storage.HashIndex;
+import com.norswap.nanoeth.storage.SegmentLog;
+import com.norswap.nanoeth.transactions.Transaction;
+import com.norswap.nanoeth.utils.Hashing;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Disk-backed block store, which persists block headers and block bodies (transactions and
+ * uncles) in two append-only {@link SegmentLog}s, so that headers can be retrieved without
+ * touching the (much larger) bodies.
+ * <p>
+ * Two on-disk {@link HashIndex}es map block hashes to the location of their header, and block
+ * numbers to the location of the last registered header with that number. Each header record
+ * holds the block hash and the hashes of the block's uncles, and links to the location of its
+ * body, and to the location of the previously registered header with the same number. All of these
+ * are memory-mapped, so the size of the store is not bounded by the size of the Java heap. Only a
+ * bounded cache of recently used headers is kept in memory, along with the bounded {@link
+ * #headerIndex()}, which is built from the header records alone.
+ * <p>
+ * Blocks registered in the store are only guaranteed to be persisted after {@link #flush()} or
+ * {@link #close()}. If the process dies before that, the indexes may refer to records that were
+ * not persisted, and whose locations will be reused: the indexes are then rebuilt from the header
+ * records when the store is reopened.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class SegmentBlockStore implements BlockStore, AutoCloseable {
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Default number of parsed headers kept in memory. */
+    public static final int DEFAULT_CACHE_SIZE = 1 << 12;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Size of the fixed part of the header record prefix: body location (long), location of the
+     * previous header with the same number (long), block hash (32 bytes), block number (long) and
+     * number of uncles (byte). The prefix ends with the hashes of the uncles (32 bytes each),
+     * followed by the header's encoding.
+     */
+    private static final int HEADER_PREFIX_SIZE = 57;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final SegmentLog headers;
+    private final SegmentLog bodies;
+    private final HashIndex hashIndex;
+    private final HashIndex numberIndex;
+    private final LinkedHashMap<Hash, BlockHeader> cache;
+    private final HeaderIndex index = new HeaderIndex(this);
+
+    // ---------------------------------------------------------------------------------------------
+
+    private SegmentBlockStore (SegmentLog headers, SegmentLog bodies, HashIndex hashIndex,
+            HashIndex numberIndex, int cacheSize) {
+        this.headers = headers;
+        this.bodies = bodies;
+        this.hashIndex = hashIndex;
+        this.numberIndex = numberIndex;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry (Map.Entry<Hash, BlockHeader> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Opens the store located in the given directory (creating it if it does not exist), keeping
+     * up to {@code cacheSize} parsed headers in memory and using segments files of the given size.
+     */
+    public static SegmentBlockStore open (Path directory, int cacheSize, int segmentSize)
+            throws IOException {
+        var headers = SegmentLog.open(directory, "headers", segmentSize);
+        var bodies = SegmentLog.open(directory, "bodies", segmentSize);
+        var hashIndex = HashIndex.open(directory.resolve("blocks.idx"));
+        var numberIndex = HashIndex.open(directory.resolve("numbers.idx"));
+        var store = new SegmentBlockStore(headers, bodies, hashIndex, numberIndex, cacheSize);
+        if (!hashIndex.flushed() || !numberIndex.flushed())
+            store.reindex();
+        return store;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Opens the store located in the given directory (creating it if it does not exist), with the
+     * default cache and segment sizes.
+     */
+    public static SegmentBlockStore open (Path directory) throws IOException {
+        return open(directory, DEFAULT_CACHE_SIZE, SegmentLog.DEFAULT_SEGMENT_SIZE);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Rebuilds the indexes from the header records, which is required if the indexes were not
+     * flushed before the process died: the OS may have written back entries referring to records
+     * that were not persisted.
+     * <p>
+     * Since {@link #flush()} persists the bodies before the headers, the body of every persisted
+     * header record is persisted as well.
+     */
+    private void reindex() {
+        hashIndex.clear();
+        numberIndex.clear();
+        var hash = new byte[32];
+        headers.forEachLocation(location -> {
+            var record = headers.slice(location);
+            record.get(16, hash);
+            hashIndex.put(hash, location);
+            numberIndex.put(numberKey(record.getLong(48)), location);
+        });
+        hashIndex.flush();
+        numberIndex.flush();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the key of the number index for the given block number. */
+    private static byte[] numberKey (long number) {
+        return Hashing.keccak(ByteBuffer.allocate(8).putLong(number).array()).bytes;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void register (Block block) {
+        var hash = block.header.hash();
+        if (hashIndex.get(hash.bytes) != 0)
+            return;
+
+        var txs = Arrays.stream(block.transactions).map(Transaction::rlpLayout)
+            .toArray(RLP[]::new);
+        var uncles = Arrays.stream(block.uncles).map(u -> RLP.encoded(u.rlpEncode()))
+            .toArray(RLP[]::new);
+        var body = RLP.sequence(RLP.sequence(txs), RLP.sequence(uncles));
+        body.encodeInto(bodies.reserve(body.encodedSize()));
+        long bodyLocation = bodies.lastLocation();
+
+        long number = block.header.number.longValue();
+        var numberKey = numberKey(number);
+        var header = block.header.rlpEncode();
+        var uncleHashes = HeaderIndex.uncleHashes(block);
+        if (uncleHashes.length > 255)
+            throw new IllegalArgumentException("too many uncles: " + uncleHashes.length);
+        var out = headers.reserve(HEADER_PREFIX_SIZE + 32 * uncleHashes.length + header.length);
+        out.putLong(bodyLocation);
+        out.putLong(numberIndex.get(numberKey));
+        out.put(hash.bytes);
+        out.putLong(number);
+        out.put((byte) uncleHashes.length);
+        for (var uncleHash: uncleHashes)
+            out.put(uncleHash.bytes);
+        out.put(header);
+        long location = headers.lastLocation();
+
+        hashIndex.put(hash.bytes, location);
+        numberIndex.put(numberKey, location);
+        cache.put(hash, block.header);
+        index.add(block);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public @Nullable Block get (Hash hash) {
+        long location = hashIndex.get(hash.bytes);
+        if (location == 0)
+            return null;
+
+        var record = headers.slice(location);
+        var header = header(hash, record);
+        try {
+            var body = RLPView.of(bodies.slice(record.getLong(0)));
+            var txsView = body.itemAt(0).items();
+            var txs = new Transaction[txsView.length];
+            for (int i = 0; i < txs.length; i++)
+                txs[i] = Transaction.from(txsView[i].toRLP());
+
+            var unclesView = body.itemAt(1).items();
+            var uncles = new BlockHeader[unclesView.length];
+            for (int i = 0; i < uncles.length; i++)
+                uncles[i] = BlockHeader.CODEC.decode(unclesView[i]);
+
+            return new Block(header, txs, uncles);
+        } catch (RLPParsingException | IllegalRLPAccess | IllegalArgumentException e) {
+            throw new IllegalStateException("corrupted block body in store", e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public @Nullable BlockHeader getHeader (Hash hash) {
+        var header = cache.get(hash);
+        if (header != null)
+            return header;
+
+        long location = hashIndex.get(hash.bytes);
+        return location == 0 ? null : header(hash, headers.slice(location));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the header with the given hash, parsing it from its record if it isn't in the cache.
+     *
+     * @throws IllegalStateException if the record does not contain a valid header, which indicates
+     * that the store has been corrupted.
+     */
+    private BlockHeader header (Hash hash, ByteBuffer record) {
+        var header = cache.get(hash);
+        if (header != null)
+            return header;
+        int offset = HEADER_PREFIX_SIZE + 32 * uncleCount(record);
+        try {
+            header = BlockHeader.CODEC.decode(RLPView.of(record.position(offset)));
+        } catch (RLPParsingException | IllegalArgumentException e) {
+            throw new IllegalStateException("corrupted block header in store", e);
+        }
+        cache.put(hash, header);
+        return header;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the number of uncles recorded in the given header record. */
+    private static int uncleCount (ByteBuffer record) {
+        return record.get(HEADER_PREFIX_SIZE - 1) & 0xFF;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public @Nullable Hash[] getUncleHashes (Hash hash) {
+        long location = hashIndex.get(hash.bytes);
+        if (location == 0)
+            return null;
+        var record = headers.slice(location);
+        var uncles = new Hash[uncleCount(record)];
+        for (int i = 0; i < uncles.length; i++) {
+            var bytes = new byte[32];
+            record.get(HEADER_PREFIX_SIZE + 32 * i, bytes);
+            uncles[i] = new Hash(bytes);
+        }
+        return uncles;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public Hash[] getHashes (long number) {
+        var hashes = new ArrayList<Hash>();
+        for (long location = numberIndex.get(numberKey(number)); location != 0; ) {
+            var record = headers.slice(location);
+            var hash = new byte[32];
+            record.get(16, hash);
+            hashes.add(new Hash(hash));
+            location = record.getLong(8);
+        }
+        Collections.reverse(hashes);
+        return hashes.toArray(Hash[]::new);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the index over the headers of this store. Its records are created as blocks are
+     * registered or looked up (from the header records, without reading bodies), and are not
+     * persisted.
+     */
+    @Override public HeaderIndex headerIndex() {
+        return index;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the number of blocks persisted in the store. */
+    public long size() {
+        return hashIndex.size();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Forces all blocks registered in the store to be written to disk. The bodies are persisted
+     * before the headers, and the headers before the indexes that refer to them.
+     */
+    public void flush() {
+        bodies.flush();
+        headers.flush();
+        hashIndex.flush();
+        numberIndex.flush();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Flushes the store. The store must not be used after being closed. */
+    @Override public void close() {
+        bodies.close();
+        headers.close();
+        hashIndex.close();
+        numberIndex.close();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
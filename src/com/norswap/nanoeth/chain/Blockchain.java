@@ -1,4 +1,185 @@
 package com.norswap.nanoeth.chain;
 
+import com.norswap.nanoeth.annotations.Nullable;
+import com.norswap.nanoeth.blocks.Block;
+import com.norswap.nanoeth.blocks.BlockHeader;
+import com.norswap.nanoeth.blocks.BlockStore;
+import com.norswap.nanoeth.blocks.BlockValidity;
+import com.norswap.nanoeth.data.Hash;
+import com.norswap.nanoeth.data.Natural;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static com.norswap.nanoeth.blocks.BlockValidity.BLOCK_VALID;
+import static com.norswap.nanoeth.blocks.BlockValidityStatus.VAL_UNKNOWN_PARENT;
+
+/**
+ * Tracks the tree of the blocks descending from a genesis block, and selects the canonical chain
+ * among them: the chain that ends with the block with the highest total difficulty (the sum of
+ * the difficulties of the block and all its ancestors). When multiple blocks have the same total
+ * difficulty, the first one to be added is preferred.
+ * <p>
+ * Blocks are validated and registered in a {@link BlockStore} when added via {@link #add(Block)}.
+ * The total difficulty of every added block is kept in memory, as well as an array mapping
+ * numbers to the hashes of the blocks in the canonical chain.
+ * <p>
+ * Changing the head of the chain (a reorg, when the new head does not descend from the old one)
+ * only rewrites the part of the canonical chain after the common ancestor of the old and new heads
+ * (and only reads the headers of the new blocks in that range). In particular, extending the
+ * canonical chain is O(1).
+ * <p>
+ * This class is not thread-safe.
+ */
 public final class Blockchain {
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** The store in which the blocks are registered. */
+    public final BlockStore blocks;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Maps the hash of each added block to its total difficulty. */
+    private final HashMap<Hash, Natural> totalDifficulties = new HashMap<>();
+
+    /** Hashes of the blocks in the canonical chain, indexed by block number. */
+    private final ArrayList<Hash> canonical = new ArrayList<>();
+
+    private BlockHeader head;
+    private Natural headDifficulty;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a chain that initially only contains the given genesis block, which is registered in
+     * the store without being validated.
+     */
+    public Blockchain (BlockStore blocks, Block genesis) {
+        if (!genesis.header.number.equals(Natural.ZERO))
+            throw new IllegalArgumentException("genesis block must have number 0");
+        this.blocks = blocks;
+        blocks.register(genesis);
+        var hash = genesis.header.hash();
+        totalDifficulties.put(hash, genesis.header.difficulty);
+        canonical.add(hash);
+        head = genesis.header;
+        headDifficulty = genesis.header.difficulty;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Validates the block (see {@link Block#validate(BlockStore)}), and if valid, registers it in
+     * the store and makes it the new head of the canonical chain if its total difficulty is higher
+     * than that of the current head.
+     * <p>
+     * Returns the validity of the block. Blocks whose parent hasn't been added yet are rejected
+     * with {@link com.norswap.nanoeth.blocks.BlockValidityStatus#VAL_UNKNOWN_PARENT}. Adding a
+     * block that has already been added has no effect.
+     */
+    public BlockValidity add (Block block) {
+        var hash = block.header.hash();
+        if (totalDifficulties.containsKey(hash))
+            return BLOCK_VALID;
+
+        var parentDifficulty = totalDifficulties.get(block.header.parentHash);
+        if (parentDifficulty == null)
+            return BlockValidity.of(VAL_UNKNOWN_PARENT);
+
+        var validity = block.validate(blocks);
+        if (!validity.valid())
+            return validity;
+
+        blocks.register(block);
+        var totalDifficulty = new Natural(parentDifficulty.add(block.header.difficulty));
+        totalDifficulties.put(hash, totalDifficulty);
+        if (totalDifficulty.compareTo(headDifficulty) > 0) {
+            setHead(block.header, hash);
+            headDifficulty = totalDifficulty;
+        }
+        return BLOCK_VALID;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Makes the given block (with the given hash) the head of the canonical chain, rewriting the
+     * canonical chain after the common ancestor of the new head and the old head.
+     */
+    private void setHead (BlockHeader header, Hash hash) {
+        var branch = new ArrayList<Hash>(); // new canonical blocks, in reverse order
+        int number = header.number.intValueExact();
+        var current = header;
+        while (number >= canonical.size() || !canonical.get(number).equals(hash)) {
+            branch.add(hash);
+            hash = current.parentHash;
+            current = blocks.getHeader(hash);
+            --number;
+        }
+        canonical.subList(number + 1, canonical.size()).clear();
+        for (int i = branch.size() - 1; i >= 0; i--)
+            canonical.add(branch.get(i));
+        head = header;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the header of the head of the canonical chain. */
+    public BlockHeader head() {
+        return head;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the number of the head of the canonical chain. */
+    public long height() {
+        return canonical.size() - 1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the total difficulty of the head of the canonical chain. */
+    public Natural headTotalDifficulty() {
+        return headDifficulty;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the total difficulty of the block with the given hash, or null if the block hasn't
+     * been added to the chain.
+     */
+    public @Nullable Natural totalDifficulty (Hash hash) {
+        return totalDifficulties.get(hash);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the hash of the block with the given number in the canonical chain, or null if the
+     * number is higher than the {@link #height()}.
+     */
+    public @Nullable Hash canonicalHash (long number) {
+        return number >= 0 && number < canonical.size() ? canonical.get((int) number) : null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the block with the given number in the canonical chain, or null if the number is
+     * higher than the {@link #height()}.
+     */
+    public @Nullable Block canonicalBlock (long number) {
+        var hash = canonicalHash(number);
+        return hash == null ? null : blocks.get(hash);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Whether the block with the given number and hash is part of the canonical chain. */
+    public boolean isCanonical (long number, Hash hash) {
+        return hash.equals(canonicalHash(number));
+    }
+
+    // ---------------------------------------------------------------------------------------------
 }
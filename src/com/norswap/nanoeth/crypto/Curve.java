@@ -1,23 +1,30 @@
 package com.norswap.nanoeth.crypto;
 
+import com.norswap.nanoeth.annotations.Nullable;
+import com.norswap.nanoeth.utils.Randomness;
 import org.bouncycastle.asn1.x9.X9ECParameters;
-import org.bouncycastle.asn1.x9.X9IntegerConverter;
 import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.bouncycastle.crypto.ec.CustomNamedCurves;
 import org.bouncycastle.crypto.params.ECDomainParameters;
-import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
-import org.bouncycastle.crypto.params.ECPublicKeyParameters;
-import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.crypto.signers.DSAKCalculator;
 import org.bouncycastle.crypto.signers.HMacDSAKCalculator;
 import org.bouncycastle.crypto.signers.RandomDSAKCalculator;
+import org.bouncycastle.math.ec.ECAlgorithms;
+import org.bouncycastle.math.ec.ECMultiplier;
 import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.math.ec.FixedPointCombMultiplier;
 import org.bouncycastle.math.ec.custom.sec.SecP256K1Curve;
+import org.bouncycastle.util.BigIntegers;
 import java.math.BigInteger;
 
 /**
  * Represent an elliptic curve that can be used for signing.
  *
  * <p>Currently, only the {@link #SECP256K1} curve is supported.
+ *
+ * <p>Curves are immutable and thread-safe: signing, verification and recovery do not share any
+ * mutable state between calls (the tables of precomputed multiples of points are built and cached
+ * by BouncyCastle in a thread-safe manner).
  */
 public final class Curve
 {
@@ -32,11 +39,13 @@ public final class Curve
     private final ECPoint G;
 
     private final ECDomainParameters domainParams;
-    private final ECDSASigner signer;
+
+    /** Multiplier for multiples of G, using a table of multiples precomputed once. */
+    private static final ECMultiplier BASE_MULTIPLIER = new FixedPointCombMultiplier();
 
     // ---------------------------------------------------------------------------------------------
 
-    private Curve (BigInteger q, X9ECParameters x9Params, ECDSASigner signer) {
+    private Curve (BigInteger q, X9ECParameters x9Params) {
         this.q = q;
         this.N = x9Params.getN();
         this.n = x9Params.getH().modInverse(q).multiply(N);
@@ -47,7 +56,6 @@ public final class Curve
             x9Params.getG(),
             x9Params.getN(),
             x9Params.getH());
-        this.signer = signer;
     }
 
     // endregion
@@ -57,10 +65,7 @@ public final class Curve
 
     public static final Curve SECP256K1 = new Curve(
         SecP256K1Curve.q,
-        CustomNamedCurves.getByName("secp256k1"),
-        // Generate the signature's "k" value using HMAC, as proposed in IETF RFC6979, §3.2.
-        // See signature package README for details.
-        new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest())));
+        CustomNamedCurves.getByName("secp256k1"));
 
     // endregion
     // =============================================================================================
@@ -97,21 +102,40 @@ public final class Curve
     // region POINTS
     // =============================================================================================
 
-    private static final X9IntegerConverter X9 = new X9IntegerConverter();
-
-    // ---------------------------------------------------------------------------------------------
-
     /**
      * Returns the point designated by the given x-coordinate. The y-coordinate can be computed
      * automatically, but since curves are symmetric on the x axis, there are two possible values
      * (one even, one odd), selected by the {@code yOdd} parameter (see signature package README).
+     *
+     * @throws IllegalArgumentException if there is no point with the given x-coordinate.
      */
     public ECPoint point (BigInteger x, boolean yOdd) {
-        // Obtain a compressed representation, as specified in SEC 1 v2.0, section 2.3.7.
-        byte[] compressed = X9.integerToBytes(x, 1 + X9.getByteLength(domainParams.getCurve()));
-        compressed[0] = (byte) (yOdd ? 0x03 : 0x02); // encode y's oddness
-        // Decode the point, as specified in SEC 1 v2.0, section 2.3.4.
-        return domainParams.getCurve().decodePoint(compressed);
+        var point = decompress(x, yOdd);
+        if (point == null)
+            throw new IllegalArgumentException("no point with x-coordinate " + x);
+        return point;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #point}, but returns null if there is no point with the given x-coordinate.
+     * <p>
+     * This decompresses the point as specified in SEC 1 v2.0, section 2.3.4, but works directly on
+     * field elements instead of going through the byte encoding of the compressed point.
+     */
+    private @Nullable ECPoint decompress (BigInteger x, boolean yOdd) {
+        var curve = domainParams.getCurve();
+        if (x.signum() < 0 || x.compareTo(q) >= 0)
+            return null;
+        var X = curve.fromBigInteger(x);
+        // y^2 = x^3 + ax + b
+        var Y = X.square().add(curve.getA()).multiply(X).add(curve.getB()).sqrt();
+        if (Y == null)
+            return null;
+        if (Y.testBitZero() != yOdd)
+            Y = Y.negate();
+        return curve.createPoint(x, Y.toBigInteger());
     }
 
     // endregion
@@ -121,12 +145,15 @@ public final class Curve
 
     /**
      * Returns the (r, s) pair obtained by signing the message using the private key with this
-     * curve. Does not hash the message before signing it.
+     * curve, followed by the recovery ID of the signature (see {@link #recover}). Does not hash the
+     * message before signing it.
      */
     public BigInteger[] sign (BigInteger privateKey, byte[] message) {
-        var params = new ECPrivateKeyParameters(privateKey, domainParams);
-        signer.init(true, params);
-        return signer.generateSignature(message);
+        // Generate the signature's "k" value using HMAC, as proposed in IETF RFC6979, §3.2.
+        // See signature package README for details.
+        var k = new HMacDSAKCalculator(new SHA256Digest());
+        k.init(n, privateKey, message);
+        return sign(privateKey, message, k);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -137,10 +164,48 @@ public final class Curve
      */
     public BigInteger[] signWithRandomK (BigInteger privateKey, byte[] message) {
         // this happens on average never, don't optimize
-        var signer = new ECDSASigner(new RandomDSAKCalculator());
-        var params = new ECPrivateKeyParameters(privateKey, domainParams);
-        signer.init(true, params);
-        return signer.generateSignature(message);
+        var k = new RandomDSAKCalculator();
+        k.init(n, Randomness.SECURE);
+        return sign(privateKey, message, k);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Signs the message with ECDSA (SEC1 §4.1.3), in the same way as BouncyCastle's {@code
+     * ECDSASigner}, but also returns the recovery ID, which is derived from the point {@code R =
+     * kG} (its x-coordinate is r, modulo n). This avoids having to find the recovery ID by trying
+     * to recover the public key with all possible IDs.
+     */
+    private BigInteger[] sign (BigInteger privateKey, byte[] message, DSAKCalculator kCalculator) {
+        var e = messageToInteger(message);
+        BigInteger r, s;
+        int recoveryId;
+        do {
+            BigInteger k;
+            ECPoint R;
+            do {
+                k = kCalculator.nextK();
+                R = BASE_MULTIPLIER.multiply(G, k).normalize();
+                var x = R.getAffineXCoord().toBigInteger();
+                r = x.mod(n);
+                recoveryId = (R.getAffineYCoord().testBitZero() ? 1 : 0) | (x.equals(r) ? 0 : 2);
+            } while (r.signum() == 0);
+            s = BigIntegers.modOddInverse(n, k).multiply(e.add(privateKey.multiply(r))).mod(n);
+        } while (s.signum() == 0);
+        return new BigInteger[] { r, s, BigInteger.valueOf(recoveryId) };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Converts the message to the integer e used in ECDSA (SEC1 §4.1.3, step 5): the message
+     * is truncated to its leftmost bits if it is longer than n.
+     */
+    private BigInteger messageToInteger (byte[] message) {
+        var e = new BigInteger(1, message);
+        int excessBits = message.length * 8 - n.bitLength();
+        return excessBits > 0 ? e.shiftRight(excessBits) : e;
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -150,11 +215,123 @@ public final class Curve
      * Does not hash the message before verifying the signature.
      */
     public boolean verify (ECPoint publicKey, BigInteger r, BigInteger s, byte[] message) {
-        // Normally, faster verification is possible using the recovery ID.
-        // However, bouncycastle does not seem to implement this.
-        var params = new ECPublicKeyParameters(publicKey, domainParams);
-        signer.init(false, params);
-        return signer.verifySignature(message, r, s);
+        // Same as BouncyCastle's ECDSASigner (SEC1 §4.1.4), but without state to initialize.
+        var Q = domainParams.validatePublicPoint(publicKey);
+        if (!isScalar(r) || !isScalar(s))
+            return false;
+        var e = messageToInteger(message);
+        var sInverse = BigIntegers.modOddInverseVar(n, s);
+        var u1 = e.multiply(sInverse).mod(n);
+        var u2 = r.multiply(sInverse).mod(n);
+        var point = ECAlgorithms.sumOfTwoMultiplies(G, u1, Q, u2).normalize();
+        return !point.isInfinity() && point.getAffineXCoord().toBigInteger().mod(n).equals(r);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns true only if all the (r, s) signatures could be verified against the given public
+     * keys and messages (all arrays are indexed by signature), using their recovery ID (see {@link
+     * #recover}). Does not hash the messages before verifying the signatures.
+     * <p>
+     * Knowing the recovery ID, each signature's point R (whose x-coordinate is r) can be rebuilt,
+     * and the signature is valid if {@code sR = eG + rQ}, where Q is the public key. Instead of
+     * checking these equations one at a time, the verification checks that a random linear
+     * combination of them holds, with a single multi-scalar multiplication — the doublings are
+     * shared by all signatures, and G's coefficients are summed. With 128-bit random coefficients,
+     * the combination holds with probability at most 2^-128 if any of the equations doesn't.
+     * <p>
+     * A false result means that at least one signature is invalid or has the wrong recovery ID (a
+     * signature that verifies with {@link #verify} can have a wrong recovery ID). The signatures
+     * must then be verified individually in order to identify the invalid ones.
+     *
+     * @throws IllegalArgumentException if one of the public keys is not a valid point.
+     */
+    public boolean verifyBatch (ECPoint[] publicKeys, BigInteger[] r, BigInteger[] s,
+            int[] recoveryIds, byte[][] messages) {
+
+        int size = publicKeys.length;
+        assert r.length == size && s.length == size && recoveryIds.length == size
+            && messages.length == size : "arrays have different lengths";
+
+        // points: G, then the public key Q and the point -R of every signature
+        var points  = new ECPoint[1 + 2 * size];
+        var scalars = new BigInteger[1 + 2 * size];
+        var eSum = BigInteger.ZERO;
+        points[0] = G;
+
+        for (int i = 0; i < size; i++) {
+            points[1 + 2 * i] = domainParams.validatePublicPoint(publicKeys[i]);
+            var ri = r[i];
+            var si = s[i];
+            if (!isScalar(ri) || !isScalar(si))
+                return false;
+            // -R is obtained by flipping the parity of y
+            var x = recoveryIds[i] >= 2 ? ri.add(n) : ri;
+            var minusR = decompress(x, (recoveryIds[i] & 1) == 0);
+            if (minusR == null)
+                return false;
+            points[2 + 2 * i] = minusR;
+
+            // (a/s) eG + (a/s) rQ + a(-R) = 0, random a
+            // (dividing by s keeps R's coefficient short, halving the additions needed for R)
+            BigInteger a;
+            do {
+                a = new BigInteger(128, Randomness.SECURE);
+            } while (a.signum() == 0);
+            var aOverS = a.multiply(BigIntegers.modOddInverseVar(n, si)).mod(n);
+            eSum = eSum.add(aOverS.multiply(messageToInteger(messages[i])));
+            scalars[1 + 2 * i] = aOverS.multiply(ri).mod(n);
+            scalars[2 + 2 * i] = a;
+        }
+
+        scalars[0] = eSum.mod(n);
+        return ECAlgorithms.sumOfMultiplies(points, scalars).isInfinity();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Recovers the public key from the (r, s) signature of the given message, as specified in
+     * SEC1 §4.1.6, or returns null if no key can be recovered. Does not hash the message.
+     * <p>
+     * The recovery ID (in [0, 3]) selects the parity of the y-coordinate of the point R whose
+     * x-coordinate is r (bit 0), and whether that x-coordinate is r or r + n (bit 1) — see the
+     * signature package README.
+     * <p>
+     * The public key is {@code Q = r^-1 (sR - eG)}. The two multiplications are interleaved in a
+     * single pass, using the curve's endomorphism (GLV) to halve the length of the scalars, and a
+     * table of multiples of G precomputed once for the curve. Since all inputs are public, the
+     * computation does not need to be constant-time, allowing for a faster modular inverse.
+     */
+    public @Nullable ECPoint recover (int recoveryId, BigInteger r, BigInteger s, byte[] message) {
+        if (!isScalar(r) || !isScalar(s))
+            return null;
+
+        // r could have been generated both by x, or by x + n (mod q).
+        var x = recoveryId >= 2 ? r.add(n) : r;
+        // R is called P in the README and in the intro articles.
+        var R = decompress(x, (recoveryId & 1) == 1);
+        if (R == null)
+            return null;
+
+        // There is no need to check that nR is the point at infinity (i.e. that R is in the
+        // subgroup generated by G): the curve's cofactor is 1, so every point is in the subgroup.
+        assert N.equals(n);
+
+        // ECDSA assumes that the message is a hash, but the scheme is still usable if it isn't.
+        var e = new BigInteger(1, message);
+        var rInverse = BigIntegers.modOddInverseVar(n, r);
+        var u1 = rInverse.multiply(s).mod(n);
+        var u2 = rInverse.multiply(n.subtract(e.mod(n))).mod(n);
+        return ECAlgorithms.sumOfTwoMultiplies(R, u1, G, u2).normalize();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Whether {@code value} is in [1, n), the valid range for the r and s signature components. */
+    private boolean isScalar (BigInteger value) {
+        return value.signum() > 0 && value.compareTo(n) < 0;
     }
 
     // endregion
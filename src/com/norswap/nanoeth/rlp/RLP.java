@@ -5,6 +5,7 @@ import com.norswap.nanoeth.data.Hash;
 import com.norswap.nanoeth.data.Natural;
 import com.norswap.nanoeth.utils.ByteUtils;
 import com.norswap.nanoeth.utils.Hashing;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.stream.Stream;
@@ -18,6 +19,10 @@ import java.util.stream.Stream;
  * <p>
  * We allow representing already-encoded items in order to enable incremental RLP encoding (see the
  * README of this package for more information).
+ * <p>
+ * Sequences can also be lazy (cf. {@link #decodeLazily(byte[])}): their items are only decoded
+ * when they are first accessed. Lazy sequences are otherwise indistinguishable from regular
+ * sequences.
  */
 public final class RLP implements RLPLayoutable {
 
@@ -67,11 +72,30 @@ public final class RLP implements RLPLayoutable {
     private final RLP[] items;
     private final byte[] bytes;
 
+    /**
+     * Only for lazy sequences, null otherwise. In that case, {@link #bytes} holds an array that
+     * contains the sequence's encoding, and {@link #items} is filled lazily.
+     * <p>
+     * {@code offsets[0]} is the offset of the encoding in {@link #bytes}, {@code offsets[i + 1]}
+     * is the offset of the encoding of the i-th item, and the last offset is the end of the
+     * encoding (exclusive).
+     * <p>
+     * (On typical JVMs, this third field fits in the object's alignment padding.)
+     */
+    private final int[] offsets;
+
     // ---------------------------------------------------------------------------------------------
 
     private RLP (@Retained RLP[] items, @Retained byte[] bytes) {
+        this(items, bytes, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private RLP (@Retained RLP[] items, @Retained byte[] bytes, @Retained int[] offsets) {
         this.items = items;
         this.bytes = bytes;
+        this.offsets = offsets;
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -150,6 +174,48 @@ public final class RLP implements RLPLayoutable {
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Decodes the given byte sequence to an {@link RLP} layout, whose sequences are lazy: the
+     * boundaries of a sequence's items are recorded, but the items themselves are only decoded
+     * when first accessed (via {@link #itemAt(int)}, {@link #items()}, ...).
+     * <p>
+     * The whole byte sequence is validated upfront (without allocating), so accessing items will
+     * never fail.
+     * <p>
+     * This is worthwhile when only some parts of the layout will be accessed. The encoding of a
+     * lazy sequence is never recomputed: {@link #encode()} returns (a copy of) the original bytes.
+     * The returned object retains {@code bytes}, which must not be modified.
+     *
+     * @throws IllegalArgumentException if the given byte sequence is not well-formed RLP.
+     */
+    public static RLP decodeLazily (@Retained byte[] bytes) {
+        return RLPEncoding.decodeLazily(bytes, 0, bytes.length);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #decodeLazily(byte[])}, but decodes the {@code length} bytes starting at
+     * {@code offset} in {@code bytes}, which must not be modified.
+     *
+     * @throws IllegalArgumentException if the given byte range is not well-formed RLP.
+     */
+    public static RLP decodeLazily (@Retained byte[] bytes, int offset, int length) {
+        return RLPEncoding.decodeLazily(bytes, offset, length);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a lazy sequence, see {@link #offsets} for the meaning of the parameters. The encoding
+     * must have been validated beforehand.
+     */
+    static RLP lazySequence (@Retained byte[] bytes, @Retained int[] offsets) {
+        return new RLP(new RLP[offsets.length - 2], bytes, offsets);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Decodes the given hex string (e.g. 0x123) to an {@link RLP} layout.
      *
@@ -182,6 +248,42 @@ public final class RLP implements RLPLayoutable {
 
     // ---------------------------------------------------------------------------------------------
 
+    /** True iff this object represents a lazy sequence (cf. {@link #decodeLazily(byte[])}). */
+    boolean isLazy () {
+        return offsets != null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Size of the encoding of a lazy sequence. */
+    int lazyEncodedSize () {
+        return offsets[offsets.length - 1] - offsets[0];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Writes the encoding of a lazy sequence into {@code out}. */
+    void writeLazyEncoding (ByteBuffer out) {
+        out.put(bytes, offsets[0], lazyEncodedSize());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Decodes the i-th item of a lazy sequence, if not already done.
+     * <p>
+     * Concurrent calls may race to decode the same item, which is harmless, as the decoded items
+     * are equal and immutable.
+     */
+    private RLP lazyItemAt (int i) {
+        RLP item = items[i];
+        if (item == null)
+            items[i] = item = RLPEncoding.lazyItem(bytes, offsets[i + 1]);
+        return item;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private void checkBytes() {
         if (!isBytes()) throw new IllegalRLPAccess("RLP object does not represent bytes");
     }
@@ -213,11 +315,26 @@ public final class RLP implements RLPLayoutable {
      */
     public RLP[] items() {
         checkSequence();
+        if (offsets != null)
+            for (int i = 0; i < items.length; ++i)
+                lazyItemAt(i);
         return items;
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns the number of sub-items in the sequence. Unlike {@code items().length}, this does not
+     * decode the sub-items of lazy sequences.
+     *
+     * @throws IllegalRLPAccess if this object does not represent a sequence of sub-items.
+     */
+    public int size() {
+        checkSequence();
+        return items.length;
+    }
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Returns the byte at the given index.
      *
@@ -243,22 +360,49 @@ public final class RLP implements RLPLayoutable {
         checkSequence();
         if (i < 0 || items.length <= i)
             throw new IllegalRLPAccess("sequence index out of bounds: " + i);
-        return items[i];
+        return offsets != null
+            ? lazyItemAt(i)
+            : items[i];
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /** Returns the binary RLP encoding of this object. */
     public byte[] encode() {
+        if (offsets != null)
+            return offsets[0] == 0 && offsets[offsets.length - 1] == bytes.length
+                ? bytes
+                : Arrays.copyOfRange(bytes, offsets[0], offsets[offsets.length - 1]);
         return items == ENCODED_MARKER
             ? bytes
             : bytes == null
-                ? RLPEncoding.encode(items)
+                ? RLPEncoding.encode(this)
                 : RLPEncoding.encode(bytes);
     }
 
     // ---------------------------------------------------------------------------------------------
 
+    /** Returns the size of the binary RLP encoding of this object, without computing it. */
+    public int encodedSize() {
+        return RLPEncoding.encodedSize(this);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes the binary RLP encoding of this object into {@code out}, starting at its position,
+     * and advances the position past the encoding. This avoids allocating an array for the
+     * encoding, e.g. when encoding a number of items in a reusable buffer.
+     *
+     * @throws java.nio.BufferOverflowException if there is less than {@link #encodedSize()}
+     * bytes remaining in {@code out}, in which case nothing is written.
+     */
+    public void encodeInto (ByteBuffer out) {
+        RLPEncoding.encodeInto(this, out);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * If this object is an encoded RLP item, returns a non-encoded version, otherwise returns
      * this object.
@@ -287,8 +431,7 @@ public final class RLP implements RLPLayoutable {
      * @throws IllegalRLPAccess if this object does not represent a sequence of sub-items.
      */
     public Stream<RLP> stream() {
-        checkSequence();
-        return Arrays.stream(items);
+        return Arrays.stream(items());
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -313,14 +456,21 @@ public final class RLP implements RLPLayoutable {
         if (this == o) return true;
         if (!(o instanceof RLP)) return false;
         var rlp = (RLP) o;
+        if (offsets != null || rlp.offsets != null)
+            return isSequence() && rlp.isSequence() && Arrays.equals(items(), rlp.items());
         return Arrays.equals(items, rlp.items) && Arrays.equals(bytes, rlp.bytes);
     }
 
     @Override public int hashCode () {
-        return 31 * Arrays.hashCode(items) + Arrays.hashCode(bytes);
+        // must be consistent with non-lazy sequences, whose bytes field is null
+        return offsets != null
+            ? 31 * Arrays.hashCode(items())
+            : 31 * Arrays.hashCode(items) + Arrays.hashCode(bytes);
     }
 
     @Override public String toString () {
+        if (offsets != null)
+            return "RLP (sequence) " + Arrays.toString(items());
         return items == ENCODED_MARKER
             ? "RLP (encoded)" + ByteUtils.toCompressedHexString(bytes)
             : bytes == null
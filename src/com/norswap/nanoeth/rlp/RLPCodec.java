@@ -0,0 +1,460 @@
+package com.norswap.nanoeth.rlp;
+
+import com.norswap.nanoeth.data.Natural;
+import com.norswap.nanoeth.utils.ByteUtils;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Encodes objects of type {@code T} (whose RLP layout is a sequence) straight to their binary RLP
+ * encoding, and decodes them straight from it, without building an intermediate {@link RLP}
+ * layout.
+ *
+ * <p>A codec is built once at startup from a schema that lists the fields of the layout in order,
+ * each with a getter (for encoding), and a factory that reads the fields back in order (for
+ * decoding). See {@link #builder()}. Codecs are typically stored in a static field of the class
+ * they encode, for instance {@link com.norswap.nanoeth.blocks.BlockHeader#CODEC}.
+ *
+ * <p>Encoding is done in two passes over the fields: one to compute the size of the encoding, and
+ * one to write it in a single array of the right size (or in a caller-supplied buffer). Decoding
+ * works on top of an {@link RLPView}, and so only copies the byte arrays that are read.
+ *
+ * <p>A codec must produce the same encoding as the {@link RLPLayoutable#rlpLayout()} method of the
+ * class, and decode the same objects as its parsing method (e.g. {@code from(RLP)}).
+ */
+public final class RLPCodec<T> {
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Creates an object from its fields, read in order from a {@link Reader}. */
+    @FunctionalInterface
+    public interface Factory<T> {
+        T create (Reader reader) throws RLPParsingException;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** A field (or group of consecutive fields) in the schema of a codec. */
+    private interface Field<T> {
+        int encodedSize (T object);
+        void write (T object, ByteBuffer out);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Field<T>[] fields;
+    private final Factory<T> factory;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private RLPCodec (Field<T>[] fields, Factory<T> factory) {
+        this.fields = fields;
+        this.factory = factory;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns a builder for a new codec. */
+    public static <T> Builder<T> builder() {
+        return new Builder<>();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int payloadSize (T object) {
+        int size = 0;
+        for (var field: fields)
+            size += field.encodedSize(object);
+        return size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void write (T object, ByteBuffer out, int payloadSize) {
+        RLPEncoding.writeSequenceHeader(out, payloadSize);
+        for (var field: fields)
+            field.write(object, out);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the size of the RLP encoding of {@code object}. */
+    public int encodedSize (T object) {
+        int payloadSize = payloadSize(object);
+        return RLPEncoding.headerSize(payloadSize) + payloadSize;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the RLP encoding of {@code object}. */
+    public byte[] encode (T object) {
+        int payloadSize = payloadSize(object);
+        var out = new byte[RLPEncoding.headerSize(payloadSize) + payloadSize];
+        write(object, ByteBuffer.wrap(out), payloadSize);
+        return out;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes the RLP encoding of {@code object} into {@code out}, starting at its position, and
+     * advances the position past the encoding.
+     *
+     * @throws BufferOverflowException if there is not enough space remaining in {@code out}, in
+     * which case nothing is written.
+     */
+    public void encodeInto (T object, ByteBuffer out) {
+        int payloadSize = payloadSize(object);
+        if (out.remaining() < RLPEncoding.headerSize(payloadSize) + payloadSize)
+            throw new BufferOverflowException();
+        write(object, out, payloadSize);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Decodes an object from its RLP encoding.
+     *
+     * @throws IllegalArgumentException if the encoding is not well-formed RLP.
+     * @throws RLPParsingException if the encoding does not match the schema.
+     */
+    public T decode (byte[] encoding) throws RLPParsingException {
+        return decode(RLPView.of(encoding));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Decodes an object from a view over its RLP encoding.
+     *
+     * @throws IllegalArgumentException if the encoding is not well-formed RLP.
+     * @throws RLPParsingException if the encoding does not match the schema.
+     */
+    public T decode (RLPView view) throws RLPParsingException {
+        if (!view.isSequence())
+            throw new RLPParsingException("Expected a sequence but got a byte array.");
+        return factory.create(new Reader(view.first()));
+    }
+
+    // =============================================================================================
+
+    /**
+     * Used to define the schema of a codec, by listing the fields of the object's layout in
+     * order. Terminate with {@link #build(Factory)}.
+     */
+    public static final class Builder<T> {
+
+        private final ArrayList<Field<T>> fields = new ArrayList<>();
+
+        private Builder () {}
+
+        // -----------------------------------------------------------------------------------------
+
+        private Builder<T> add (Field<T> field) {
+            fields.add(field);
+            return this;
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        /** Adds a byte array field. */
+        public Builder<T> bytes (Function<T, byte[]> getter) {
+            return add(new Field<>() {
+                @Override public int encodedSize (T object) {
+                    return RLPEncoding.encodedSize(getter.apply(object));
+                }
+                @Override public void write (T object, ByteBuffer out) {
+                    RLPEncoding.writeBytes(out, getter.apply(object));
+                }
+            });
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        /**
+         * Adds a non-negative integer field, encoded in big-endian without leading zeroes (zero is
+         * encoded as an empty byte array), like {@link Natural#rlpLayout()}.
+         */
+        public Builder<T> natural (Function<T, ? extends BigInteger> getter) {
+            return add(new Field<>() {
+                @Override public int encodedSize (T object) {
+                    var value = getter.apply(object);
+                    int size = (value.bitLength() + 7) / 8;
+                    return size == 1 && value.intValue() < 128
+                        ? 1
+                        : RLPEncoding.headerSize(size) + size;
+                }
+                @Override public void write (T object, ByteBuffer out) {
+                    var value = getter.apply(object);
+                    int size = (value.bitLength() + 7) / 8;
+                    if (size == 1 && value.intValue() < 128) {
+                        out.put(value.byteValue());
+                    } else if (size < 8) {
+                        RLPEncoding.writeBytesHeader(out, size);
+                        long longValue = value.longValue();
+                        for (int i = size - 1; i >= 0; --i)
+                            out.put((byte) (longValue >>> (i * 8)));
+                    } else {
+                        RLPEncoding.writeBytesHeader(out, size);
+                        out.put(ByteUtils.bytesWithoutSign(value));
+                    }
+                }
+            });
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        /** Adds a 64-bit integer field, always encoded on 8 bytes. */
+        public Builder<T> int64 (ToLongFunction<T> getter) {
+            return add(new Field<>() {
+                @Override public int encodedSize (T object) {
+                    return 9;
+                }
+                @Override public void write (T object, ByteBuffer out) {
+                    RLPEncoding.writeBytesHeader(out, 8);
+                    out.putLong(getter.applyAsLong(object));
+                }
+            });
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        /** Adds a field that is a sequence of byte arrays. */
+        public Builder<T> bytesList (Function<T, byte[][]> getter) {
+            return add(new Field<>() {
+                private int payloadSize (byte[][] list) {
+                    int size = 0;
+                    for (var bytes: list)
+                        size += RLPEncoding.encodedSize(bytes);
+                    return size;
+                }
+                @Override public int encodedSize (T object) {
+                    int payloadSize = payloadSize(getter.apply(object));
+                    return RLPEncoding.headerSize(payloadSize) + payloadSize;
+                }
+                @Override public void write (T object, ByteBuffer out) {
+                    var list = getter.apply(object);
+                    RLPEncoding.writeSequenceHeader(out, payloadSize(list));
+                    for (var bytes: list)
+                        RLPEncoding.writeBytes(out, bytes);
+                }
+            });
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        /**
+         * Adds a field that is a sequence of objects, each encoded with {@code codec}.
+         */
+        public <U> Builder<T> list (Function<T, U[]> getter, RLPCodec<U> codec) {
+            return add(new Field<>() {
+                private int payloadSize (U[] list) {
+                    int size = 0;
+                    for (var item: list)
+                        size += codec.encodedSize(item);
+                    return size;
+                }
+                @Override public int encodedSize (T object) {
+                    int payloadSize = payloadSize(getter.apply(object));
+                    return RLPEncoding.headerSize(payloadSize) + payloadSize;
+                }
+                @Override public void write (T object, ByteBuffer out) {
+                    var list = getter.apply(object);
+                    RLPEncoding.writeSequenceHeader(out, payloadSize(list));
+                    for (var item: list)
+                        codec.write(item, out, codec.payloadSize(item));
+                }
+            });
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        /**
+         * Adds a variable number of fields: the objects returned by {@code getter}, each encoded
+         * with {@code codec}. This is used for objects whose layout is a list, and must be the
+         * last field of the schema (cf. {@link Reader#rest(RLPCodec, IntFunction)}).
+         */
+        public <U> Builder<T> spread (Function<T, U[]> getter, RLPCodec<U> codec) {
+            return add(new Field<>() {
+                @Override public int encodedSize (T object) {
+                    int size = 0;
+                    for (var item: getter.apply(object))
+                        size += codec.encodedSize(item);
+                    return size;
+                }
+                @Override public void write (T object, ByteBuffer out) {
+                    for (var item: getter.apply(object))
+                        codec.write(item, out, codec.payloadSize(item));
+                }
+            });
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        /**
+         * Adds a field encoded via its {@link RLPLayoutable#rlpLayout() RLP layout}. This is a
+         * fallback for fields whose encoding cannot be described by the other methods.
+         */
+        public Builder<T> layout (Function<T, ? extends RLPLayoutable> getter) {
+            return add(new Field<>() {
+                @Override public int encodedSize (T object) {
+                    return getter.apply(object).rlpLayout().encodedSize();
+                }
+                @Override public void write (T object, ByteBuffer out) {
+                    getter.apply(object).rlpLayout().encodeInto(out);
+                }
+            });
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        /**
+         * Builds the codec, using the given factory to create objects from their fields when
+         * decoding.
+         */
+        @SuppressWarnings("unchecked")
+        public RLPCodec<T> build (Factory<T> factory) {
+            return new RLPCodec<>((Field<T>[]) fields.toArray(new Field<?>[0]), factory);
+        }
+    }
+
+    // =============================================================================================
+
+    /**
+     * Reads the fields of an encoded object in order, passed to a codec's {@link Factory}.
+     *
+     * <p>Every method reads a field, and throws a {@link RLPParsingException} if there are no more
+     * fields to read, or if the field does not have the expected shape. The error messages mirror
+     * those of the parsing methods of the protocol classes.
+     */
+    public static final class Reader {
+
+        private RLPView next;
+        private int index = -1;
+
+        // -----------------------------------------------------------------------------------------
+
+        private Reader (RLPView first) {
+            this.next = first;
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        /** True if there are still fields to read. */
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        /** Returns a view over the next field. */
+        public RLPView view() throws RLPParsingException {
+            if (next == null)
+                throw new RLPParsingException("Decoded RLP is too short.");
+            var out = next;
+            next = next.next();
+            ++index;
+            return out;
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        /** Reads the next field, which must be a byte array. */
+        public byte[] bytes() throws RLPParsingException {
+            var item = view();
+            if (item.isBytes()) return item.bytes();
+            throw new RLPParsingException("Expected byte array at index " + index + ".");
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        /**
+         * Reads the next field, which must be a byte array of the given size. {@code name} is
+         * used in the error message.
+         */
+        public byte[] bytes (int size, String name) throws RLPParsingException {
+            var bytes = bytes();
+            if (bytes.length == size) return bytes;
+            throw new RLPParsingException(name + " should be " + size + " bytes long.");
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        /** Reads the next field, which must be a natural encoded on at most 32 bytes. */
+        public Natural natural() throws RLPParsingException {
+            var bytes = bytes();
+            if (bytes.length <= 32) return new Natural(bytes);
+            throw new RLPParsingException("Natural should not be more than 32 bytes long.");
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        /** Reads the next field, which must be an 8-byte array, into a 64-bit integer. */
+        public long int64() throws RLPParsingException {
+            var item = view();
+            if (!item.isBytes())
+                throw new RLPParsingException("Expected byte array at index " + index + ".");
+            if (item.payloadSize() == 8)
+                return item.payload().getLong();
+            throw new RLPParsingException("Expected an 8-bytes (64-bit) integer but got "
+                + item.payloadSize() + " bytes instead.");
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        /** Reads the next field, which must be a sequence of byte arrays. */
+        public byte[][] bytesList() throws RLPParsingException {
+            var item = view();
+            if (!item.isSequence())
+                throw new RLPParsingException("Expected sequence at index " + index + ".");
+            var items = item.items();
+            var out = new byte[items.length][];
+            for (int i = 0; i < out.length; i++) {
+                if (!items[i].isBytes())
+                    throw new RLPParsingException(
+                        "Expected byte array at index " + i + " in sequence at index " + index + ".");
+                out[i] = items[i].bytes();
+            }
+            return out;
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        /**
+         * Reads the next field, which must be a sequence of objects encoded with {@code codec}.
+         */
+        public <U> U[] list (RLPCodec<U> codec, IntFunction<U[]> arrayFactory)
+                throws RLPParsingException {
+            var item = view();
+            if (!item.isSequence())
+                throw new RLPParsingException("Expected sequence at index " + index + ".");
+            var items = item.items();
+            var out = arrayFactory.apply(items.length);
+            for (int i = 0; i < out.length; i++)
+                out[i] = codec.decode(items[i]);
+            return out;
+        }
+
+        // -----------------------------------------------------------------------------------------
+
+        /**
+         * Reads all remaining fields, which must be objects encoded with {@code codec}.
+         *
+         * @see Builder#spread(Function, RLPCodec)
+         */
+        public <U> U[] rest (RLPCodec<U> codec, IntFunction<U[]> arrayFactory)
+                throws RLPParsingException {
+            var items = new ArrayList<U>();
+            while (next != null)
+                items.add(codec.decode(view()));
+            return items.toArray(arrayFactory.apply(items.size()));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -1,8 +1,10 @@
 package com.norswap.nanoeth.rlp;
 
 import com.norswap.nanoeth.utils.ByteUtils;
-import java.util.ArrayList;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Objects;
 
 import static java.lang.String.format;
 
@@ -57,24 +59,76 @@ final class RLPEncoding {
     // region ENCODING
     // =============================================================================================
 
-    private static byte[] encodeByteSequenceSize (int size) {
-        if (size <= MAX_SHORT_SEQUENCE_SIZE)
-            return ByteUtils.array(BYTES_SIZE_SUMMAND + size);
-        else
-            return ByteUtils.concat(
-                ByteUtils.array(BYTES_SIZE_SIZE_SUMMAND + ByteUtils.byteSize(size)),
-                ByteUtils.bytes(size));
+    /**
+     * Returns the size of the header (marker and optional size bytes) of a byte sequence or item
+     * sequence whose payload has the given size.
+     */
+    static int headerSize (int payloadSize) {
+        return payloadSize <= MAX_SHORT_SEQUENCE_SIZE
+            ? 1
+            : 1 + ByteUtils.byteSize(payloadSize);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Is the byte array encoded as itself? */
+    private static boolean isSingleByte (byte[] bytes) {
+        return bytes.length == 1 && ByteUtils.uint(bytes[0]) < SINGLE_BYTE_ENCODING_LIMIT;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the size of the RLP encoding of the given byte array. */
+    static int encodedSize (byte[] bytes) {
+        return isSingleByte(bytes)
+            ? 1
+            : headerSize(bytes.length) + bytes.length;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes the header of a byte sequence or item sequence whose payload has the given size,
+     * using the given summands (see top comment).
+     */
+    private static void writeHeader
+            (ByteBuffer out, int sizeSummand, int sizeSizeSummand, int payloadSize) {
+        if (payloadSize <= MAX_SHORT_SEQUENCE_SIZE) {
+            out.put((byte) (sizeSummand + payloadSize));
+            return;
+        }
+        int sizeSize = ByteUtils.byteSize(payloadSize);
+        out.put((byte) (sizeSizeSummand + sizeSize));
+        for (int i = sizeSize - 1; i >= 0; --i)
+            out.put((byte) (payloadSize >>> (i * 8)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Writes the RLP encoding of the given byte array into {@code out}. */
+    static void writeBytes (ByteBuffer out, byte[] bytes) {
+        if (!isSingleByte(bytes))
+            writeHeader(out, BYTES_SIZE_SUMMAND, BYTES_SIZE_SIZE_SUMMAND, bytes.length);
+        out.put(bytes);
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private static byte[] encodeItemSequenceSize (int size) {
-        if (size <= MAX_SHORT_SEQUENCE_SIZE)
-            return ByteUtils.array(ITEMS_SIZE_SUMMAND + size);
-        else
-            return ByteUtils.concat(
-                ByteUtils.array(ITEMS_SIZE_SIZE_SUMMAND + ByteUtils.byteSize(size)),
-                ByteUtils.bytes(size));
+    /**
+     * Writes the header of a byte array of the given size into {@code out}. Not valid for single
+     * bytes that are encoded as themselves.
+     */
+    static void writeBytesHeader (ByteBuffer out, int size) {
+        writeHeader(out, BYTES_SIZE_SUMMAND, BYTES_SIZE_SIZE_SUMMAND, size);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes the header of an item sequence whose payload has the given size into {@code out}.
+     */
+    static void writeSequenceHeader (ByteBuffer out, int payloadSize) {
+        writeHeader(out, ITEMS_SIZE_SUMMAND, ITEMS_SIZE_SIZE_SUMMAND, payloadSize);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -83,67 +137,151 @@ final class RLPEncoding {
      * Encodes a byte sequence in RLP format.
      */
     static byte[] encode (byte[] bytes) {
-
-        if (bytes.length == 1 && ByteUtils.uint(bytes[0]) < SINGLE_BYTE_ENCODING_LIMIT)
+        if (isSingleByte(bytes))
             return bytes;
-
-        int size = bytes.length;
-        byte[] encodedSize = encodeByteSequenceSize(size);
-        int sizeSize = encodedSize.length;
-        byte[] out = new byte[sizeSize + size];
-        ByteUtils.setRangeAt(out, 0, encodedSize);
-        ByteUtils.setRangeAt(out, encodedSize.length, bytes);
+        var out = new byte[encodedSize(bytes)];
+        writeBytes(ByteBuffer.wrap(out), bytes);
         return out;
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Encodes a sequence of items (byte arrays or nested sequences) to RLP format.
+     * The payload sizes of the item sequences in a RLP layout, in pre-order. These are computed
+     * by {@link #measure} and consumed by {@link #write}, which avoids computing the size of
+     * nested items multiple times.
      */
-    static byte[] encode (RLP... sequence) {
-        byte[][] encodedItems = Arrays.stream(sequence)
-            .map(RLP::encode)
-            .toArray(byte[][]::new);
-        int serializedSize = Arrays.stream(encodedItems)
-            .map(it -> it.length)
-            .reduce(0, Integer::sum);
-        byte[] encodedSize = encodeItemSequenceSize(serializedSize);
-        int sizeSize = encodedSize.length;
-        byte[] out = new byte[sizeSize + serializedSize];
-        ByteUtils.setRangeAt(out, 0, encodedSize);
-        int pos = sizeSize;
-        for (byte[] item: encodedItems) {
-            ByteUtils.setRangeAt(out, pos, item);
-            pos += item.length;
+    private static final class SequenceSizes {
+        int[] array = new int[8];
+        int count;
+        int next;
+
+        int reserve() {
+            if (count == array.length)
+                array = Arrays.copyOf(array, count * 2);
+            return count++;
+        }
+
+        int next() {
+            return array[next++];
         }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the size of the RLP encoding of {@code rlp}, recording the payload sizes of its
+     * item sequences in {@code sizes}.
+     */
+    private static int measure (RLP rlp, SequenceSizes sizes) {
+        if (rlp.isLazy())
+            return rlp.lazyEncodedSize();
+        if (rlp.isEncoded())
+            return rlp.encode().length;
+        if (rlp.isBytes())
+            return encodedSize(rlp.bytes());
+
+        int slot = sizes.reserve();
+        long payloadSize = 0;
+        for (RLP item: rlp.items())
+            payloadSize += measure(item, sizes);
+        if (payloadSize > MAX_ARRAY_SIZE - 9)
+            throw new IllegalArgumentException(format(
+                "The model only supports encodings of size up to %d bytes.", MAX_ARRAY_SIZE));
+        sizes.array[slot] = (int) payloadSize;
+        return headerSize((int) payloadSize) + (int) payloadSize;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes the RLP encoding of {@code rlp} into {@code out}, using the sequence sizes previously
+     * computed by {@link #measure}.
+     */
+    private static void write (RLP rlp, ByteBuffer out, SequenceSizes sizes) {
+        if (rlp.isLazy())
+            rlp.writeLazyEncoding(out);
+        else if (rlp.isEncoded())
+            out.put(rlp.encode());
+        else if (rlp.isBytes())
+            writeBytes(out, rlp.bytes());
+        else {
+            writeHeader(out, ITEMS_SIZE_SUMMAND, ITEMS_SIZE_SIZE_SUMMAND, sizes.next());
+            for (RLP item: rlp.items())
+                write(item, out, sizes);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the size of the RLP encoding of {@code rlp}.
+     */
+    static int encodedSize (RLP rlp) {
+        return measure(rlp, new SequenceSizes());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Encodes a RLP layout to RLP format.
+     *
+     * <p>Sizes are computed in a first pass over the layout, after which the encoding is written
+     * directly in a single array of the right size, without intermediate arrays.
+     */
+    static byte[] encode (RLP rlp) {
+        var sizes = new SequenceSizes();
+        var out = new byte[measure(rlp, sizes)];
+        write(rlp, ByteBuffer.wrap(out), sizes);
         return out;
     }
 
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes the RLP encoding of {@code rlp} into {@code out}, starting at its position, and
+     * advances the position past the encoding.
+     *
+     * @throws BufferOverflowException if there is not enough space remaining in {@code out}, in
+     * which case nothing is written.
+     */
+    static void encodeInto (RLP rlp, ByteBuffer out) {
+        var sizes = new SequenceSizes();
+        int size = measure(rlp, sizes);
+        if (out.remaining() < size)
+            throw new BufferOverflowException();
+        write(rlp, out, sizes);
+    }
+
     // endregion
     // =============================================================================================
     // region DECODING
     // =============================================================================================
 
-    private static final class Offset {
-        int x;
+    /**
+     * Decodes the given byte sequence to an {@link RLP}.
+     *
+     * @throws IllegalArgumentException if the given byte sequence is not well-formed RLP.
+     */
+    static RLP decode (byte[] bytes) {
+        return decode(RLPView.of(bytes));
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Decodes the given byte sequence to an {@link RLP}.
+     * Fully decodes the item represented by the given view to an {@link RLP}.
      *
-     * @throws IllegalArgumentException if the given byte sequence is not well-formed RLP.
+     * @throws IllegalArgumentException if the item is not well-formed RLP.
      */
-    static RLP decode (byte[] bytes) {
-        var offset = new Offset();
-        var out = decode(bytes, offset);
-        int left = bytes.length - offset.x;
-        assert left >= 0;
-        if (left > 0)
-            throw new IllegalArgumentException(left + " bytes left at the end of decoded array.");
-        return out;
+    static RLP decode (RLPView view) {
+        if (view.isBytes())
+            return RLP.bytes(view.bytes());
+        var items = new RLP[view.size()];
+        var item = view.first();
+        for (int i = 0; i < items.length; ++i, item = item.next())
+            items[i] = decode(item);
+        return RLP.sequence(items);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -156,31 +294,34 @@ final class RLPEncoding {
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * @throws IllegalArgumentException if {@code bytes.length < offset + amount}
+     * @throws IllegalArgumentException if {@code limit < offset + amount}
      */
-    private static void checkRemaining (byte[] bytes, int offset, int amount) {
-        if (bytes.length < offset)
+    private static void checkRemaining (int limit, int offset, int amount) {
+        if (limit < offset)
             throw new IllegalArgumentException(format(
                 "Trying to fetch %d bytes at offset %d but size is only %d.",
-                amount, offset, bytes.length));
-        if (bytes.length < offset + amount)
+                amount, offset, limit));
+        if (limit < offset + amount)
             throw new IllegalArgumentException(format(
                 "Trying to fetch %d bytes at offset %d but only %d bytes are available.",
-                amount, offset, bytes.length - offset));
+                amount, offset, limit - offset));
     }
 
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Converts the big-endian {@code bytes} sequence to an integer, verifying it satisfies the
-     * constraint the Java (and the model) put on array sizes.
+     * Converts the big-endian sequence of {@code size} bytes at {@code offset} in {@code buffer}
+     * to an integer, verifying it satisfies the constraint the Java (and the model) put on array
+     * sizes.
      */
-    private static int toInt (byte[] bytes, int offset, int size) {
-        checkRemaining(bytes, offset, size);
+    private static int toInt (ByteBuffer buffer, int offset, int size, int limit) {
+        checkRemaining(limit, offset, size);
         if (size <= 4) {
-            int out = ByteUtils.toInt(ByteUtils.copyOfSizedRange(bytes, offset, size));
+            long out = 0;
+            for (int i = 0; i < size; ++i)
+                out = (out << 8) | ByteUtils.uint(buffer.get(offset + i));
             if (out <= MAX_ARRAY_SIZE)
-                return out;
+                return (int) out;
         }
         throw new IllegalArgumentException(format(
             "The model only supports arrays of size up to %d elements.", MAX_ARRAY_SIZE));
@@ -188,53 +329,139 @@ final class RLPEncoding {
 
     // ---------------------------------------------------------------------------------------------
 
-    private static int decodeByteSequenceSize (int marker, byte[] bytes, Offset offset) {
-        if (marker < DIRECT_BYTES_SIZE_ENCODING_LIMIT)
-            return marker - BYTES_SIZE_SUMMAND;
+    /**
+     * Decodes the header of the RLP item starting at {@code offset} in {@code buffer}, which must
+     * not extend past {@code limit}. Returns the offset of the item's payload (in the upper 32
+     * bits) and the size of the payload (in the lower 32 bits). For single bytes encoded as
+     * themselves, the payload is the byte itself.
+     *
+     * @throws IllegalArgumentException if the header is malformed or the item extends past
+     * {@code limit}.
+     */
+    private static long header (ByteBuffer buffer, int offset, int limit) {
+        checkRemaining(limit, offset, 1);
+        int marker = ByteUtils.uint(buffer.get(offset));
+
+        if (marker < SINGLE_BYTE_ENCODING_LIMIT)
+            return (long) offset << 32 | 1;
+
+        int size, sizeSize;
+        if (marker < DIRECT_BYTES_SIZE_ENCODING_LIMIT) {
+            sizeSize = 0;
+            size = marker - BYTES_SIZE_SUMMAND;
+        } else if (marker < INDIRECT_BYTES_SIZE_ENCODING_LIMIT) {
+            sizeSize = marker - BYTES_SIZE_SIZE_SUMMAND;
+            size = toInt(buffer, offset + 1, sizeSize, limit);
+        } else if (marker < DIRECT_ITEMS_SIZE_ENCODING_LIMIT) {
+            sizeSize = 0;
+            size = marker - ITEMS_SIZE_SUMMAND;
+        } else {
+            sizeSize = marker - ITEMS_SIZE_SIZE_SUMMAND;
+            size = toInt(buffer, offset + 1, sizeSize, limit);
+        }
 
-        assert marker < INDIRECT_BYTES_SIZE_ENCODING_LIMIT;
-        int sizeSize = marker - BYTES_SIZE_SIZE_SUMMAND;
-        int size = toInt(bytes, offset.x, sizeSize);
-        offset.x += sizeSize;
-        return size;
+        int payloadStart = offset + 1 + sizeSize;
+        checkRemaining(limit, payloadStart, size);
+        return (long) payloadStart << 32 | size;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private static int decodeItemSequenceSize (int marker, byte[] bytes, Offset offset) {
-        if (marker < DIRECT_ITEMS_SIZE_ENCODING_LIMIT)
-            return marker - ITEMS_SIZE_SUMMAND;
+    private static int payloadStart (long header) {
+        return (int) (header >>> 32);
+    }
 
-        // indirect items encoding
-        int sizeSize = marker - ITEMS_SIZE_SIZE_SUMMAND;
-        int size = toInt(bytes, offset.x, sizeSize);
-        offset.x += sizeSize;
-        return size;
+    // ---------------------------------------------------------------------------------------------
+
+    private static int end (long header) {
+        return (int) (header >>> 32) + (int) header;
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    private static RLP decode (byte[] bytes, Offset offset) {
-        int marker = ByteUtils.uint(bytes[offset.x++]);
-        if (isByteSequence(marker)) {
-            if (marker < BYTES_SIZE_SUMMAND)
-                return RLP.bytes((byte) marker);
-            int size = decodeByteSequenceSize(marker, bytes, offset);
-            checkRemaining(bytes, offset.x, size);
-            var out = RLP.bytes(ByteUtils.copyOfSizedRange(bytes, offset.x, size));
-            offset.x += size;
-            return out;
-        } else {
-            int size = decodeItemSequenceSize(marker, bytes, offset);
-            var list = new ArrayList<RLP>();
-            int end = offset.x + size;
-            checkRemaining(bytes, offset.x, end - offset.x);
-            while (offset.x < end)
-                list.add(decode(bytes, offset));
-            if (offset.x != end)
-                throw new IllegalArgumentException("End offset of last item did not match sequence size.");
-            return RLP.sequence(list.toArray(RLP[]::new));
+    private static boolean isSequenceAt (ByteBuffer buffer, int offset) {
+        return !isByteSequence(ByteUtils.uint(buffer.get(offset)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Decodes the header of the RLP item starting at {@code offset} in {@code buffer} and returns
+     * a view over the item, which must not extend past {@code limit}.
+     *
+     * @throws IllegalArgumentException if the header is malformed or the item extends past
+     * {@code limit}.
+     */
+    static RLPView view (ByteBuffer buffer, int offset, int limit) {
+        long header = header(buffer, offset, limit);
+        return new RLPView(buffer, offset, payloadStart(header), end(header), limit,
+            isSequenceAt(buffer, offset));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Verifies that the item starting at {@code offset} in {@code buffer} (and all its nested
+     * items) is well-formed and does not extend past {@code limit}, and returns the offset of the
+     * end of the item. Does not allocate.
+     *
+     * @throws IllegalArgumentException if the item is not well-formed.
+     */
+    private static int validate (ByteBuffer buffer, int offset, int limit) {
+        long header = header(buffer, offset, limit);
+        int end = end(header);
+        if (isSequenceAt(buffer, offset))
+            for (int i = payloadStart(header); i < end; )
+                i = validate(buffer, i, end);
+        return end;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Decodes the {@code length} bytes starting at {@code offset} in {@code bytes} to a lazy
+     * {@link RLP} object, see {@link RLP#decodeLazily(byte[], int, int)}.
+     *
+     * @throws IllegalArgumentException if the given byte range is not well-formed RLP.
+     */
+    static RLP decodeLazily (byte[] bytes, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, bytes.length);
+        var buffer = ByteBuffer.wrap(bytes);
+        int limit = offset + length;
+        int left = limit - validate(buffer, offset, limit);
+        if (left > 0)
+            throw new IllegalArgumentException(left + " bytes left at the end of decoded array.");
+        return lazyItem(bytes, offset);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns an {@link RLP} object for the item starting at {@code offset} in {@code bytes},
+     * which must have been validated beforehand. Byte arrays are copied, while sequences are
+     * represented lazily, recording the boundaries of their items.
+     */
+    static RLP lazyItem (byte[] bytes, int offset) {
+        var buffer = ByteBuffer.wrap(bytes);
+        long header = header(buffer, offset, bytes.length);
+        int payloadStart = payloadStart(header);
+        int end = end(header);
+
+        if (!isSequenceAt(buffer, offset))
+            return RLP.bytes(Arrays.copyOfRange(bytes, payloadStart, end));
+
+        int count = 0;
+        for (int i = payloadStart; i < end; ++count)
+            i = end(header(buffer, i, end));
+
+        int[] offsets = new int[count + 2];
+        offsets[0] = offset;
+        offsets[count + 1] = end;
+        for (int i = payloadStart, j = 1; i < end; ++j) {
+            offsets[j] = i;
+            i = end(header(buffer, i, end));
         }
+        return RLP.lazySequence(bytes, offsets);
     }
 
     // endregion
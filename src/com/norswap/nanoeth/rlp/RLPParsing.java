@@ -68,7 +68,7 @@ public final class RLPParsing {
      * size.
      */
     public static byte[] getBytes (RLP seq, int i) throws RLPParsingException {
-        if (i >= seq.items().length) throw new RLPParsingException("Decoded RLP is too short.");
+        if (i >= seq.size()) throw new RLPParsingException("Decoded RLP is too short.");
         var item = seq.itemAt(i);
         if (item.isBytes()) return item.bytes();
         throw new RLPParsingException("Expected byte array at index " + i + ".");
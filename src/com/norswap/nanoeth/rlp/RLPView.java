@@ -0,0 +1,313 @@
+package com.norswap.nanoeth.rlp;
+
+import com.norswap.nanoeth.utils.ByteUtils;
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only view over an RLP item encoded inside a {@link ByteBuffer}, which may wrap a byte
+ * array, or be a direct or memory-mapped buffer.
+ *
+ * <p>Unlike {@link RLP#decode(byte[])}, creating a view does not copy any bytes, nor does it
+ * allocate objects for nested items: only the header of the item is decoded. Sub-items are
+ * decoded on demand when accessed via {@link #itemAt(int)}, {@link #items()} or {@link #next()}.
+ * Byte arrays are only copied when explicitly requested via {@link #bytes()}, otherwise
+ * {@link #payload()} returns a slice of the underlying buffer.
+ *
+ * <p>As a consequence, a view only validates the part of the encoding that it has decoded: a
+ * malformed nested item is only detected (via an {@link IllegalArgumentException}) when it is
+ * accessed. Use {@link #toRLP()} to decode the whole item (which validates it fully).
+ *
+ * <p>The view never modifies the buffer, nor its position and limit (it only uses absolute
+ * accesses). It is however the caller's responsibility not to modify the buffer's content while
+ * views over it are in use.
+ *
+ * <p>Views can be used to stream through a sequence of consecutive RLP items (e.g. in a file),
+ * using {@link #at(ByteBuffer, int)} for the first item and {@link #next()} for the subsequent
+ * ones.
+ */
+public final class RLPView {
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final ByteBuffer buffer;
+
+    /** Offset of the item's header in {@link #buffer}. */
+    private final int start;
+
+    /** Offset of the item's payload in {@link #buffer} (equal to {@link #start} for single bytes). */
+    private final int payloadStart;
+
+    /** Offset (exclusive) of the end of the item in {@link #buffer}. */
+    private final int end;
+
+    /**
+     * Limit of the enclosing region (sequence or buffer) that the item was read from. Used by
+     * {@link #next()}.
+     */
+    private final int limit;
+
+    private final boolean sequence;
+
+    // ---------------------------------------------------------------------------------------------
+
+    RLPView (ByteBuffer buffer, int start, int payloadStart, int end, int limit, boolean sequence) {
+        this.buffer = buffer;
+        this.start = start;
+        this.payloadStart = payloadStart;
+        this.end = end;
+        this.limit = limit;
+        this.sequence = sequence;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a view over the RLP item encoded by {@code encoding}, which must contain exactly
+     * one item.
+     *
+     * @throws IllegalArgumentException if the header of the item is malformed, or if the item does
+     * not span the whole array.
+     */
+    public static RLPView of (byte[] encoding) {
+        return of(ByteBuffer.wrap(encoding));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a view over the RLP item encoded between the position and the limit of {@code
+     * buffer}, which must contain exactly one item.
+     *
+     * @throws IllegalArgumentException if the header of the item is malformed, or if the item does
+     * not span the whole region between position and limit.
+     */
+    public static RLPView of (ByteBuffer buffer) {
+        var view = RLPEncoding.view(buffer, buffer.position(), buffer.limit());
+        int left = buffer.limit() - view.end;
+        if (left > 0)
+            throw new IllegalArgumentException(left + " bytes left at the end of decoded buffer.");
+        return view;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a view over the RLP item starting at {@code offset} in {@code buffer}. The item may
+     * be followed by other items, which can be accessed via {@link #next()}.
+     *
+     * @throws IllegalArgumentException if the header of the item is malformed, or the item
+     * extends beyond the limit of the buffer.
+     */
+    public static RLPView at (ByteBuffer buffer, int offset) {
+        return RLPEncoding.view(buffer, offset, buffer.limit());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a view over the item that immediately follows this one in its enclosing region
+     * (the enclosing sequence, or the buffer if the item was obtained via {@link #at(ByteBuffer,
+     * int)}), or null if this is the last item of the region.
+     *
+     * @throws IllegalArgumentException if the header of the next item is malformed, or the item
+     * extends beyond the enclosing region.
+     */
+    public RLPView next() {
+        return end == limit
+            ? null
+            : RLPEncoding.view(buffer, end, limit);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** True iff this view represents a byte array. */
+    public boolean isBytes() {
+        return !sequence;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** True iff this view represents a sequence of sub-items. */
+    public boolean isSequence() {
+        return sequence;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void checkBytes() {
+        if (sequence) throw new IllegalRLPAccess("RLP view does not represent bytes");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void checkSequence() {
+        if (!sequence) throw new IllegalRLPAccess("RLP view does not represent a sequence");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Offset of the first byte of the item's encoding in the underlying buffer. */
+    public int start() {
+        return start;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Offset of the first byte following the item's encoding in the underlying buffer. */
+    public int end() {
+        return end;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Size in bytes of the item's encoding (header included). */
+    public int encodedSize() {
+        return end - start;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Size in bytes of the item's payload: the size of the byte array if the item is a byte array,
+     * or the size of the encoding of the sub-items if the item is a sequence.
+     */
+    public int payloadSize() {
+        return end - payloadStart;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a read-only slice of the underlying buffer containing the item's payload (see
+     * {@link #payloadSize()}). No bytes are copied.
+     */
+    public ByteBuffer payload() {
+        return buffer.slice(payloadStart, end - payloadStart).asReadOnlyBuffer();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a copy of the byte array that this view represents.
+     *
+     * @throws IllegalRLPAccess if this view does not represent a byte array.
+     */
+    public byte[] bytes() {
+        checkBytes();
+        var out = new byte[end - payloadStart];
+        buffer.get(payloadStart, out);
+        return out;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the byte at the given index.
+     *
+     * @throws IllegalRLPAccess if this view does not represent a byte array, or if the index is
+     * out of bounds.
+     */
+    public byte byteAt (int i) {
+        checkBytes();
+        if (i < 0 || end - payloadStart <= i)
+            throw new IllegalRLPAccess("byte index out of bounds: " + i);
+        return buffer.get(payloadStart + i);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a view over the first sub-item of the sequence, or null if the sequence is empty.
+     * The other sub-items can be retrieved by successive calls to {@link #next()}.
+     *
+     * @throws IllegalRLPAccess if this view does not represent a sequence of sub-items.
+     * @throws IllegalArgumentException if the header of the first sub-item is malformed.
+     */
+    public RLPView first() {
+        checkSequence();
+        return payloadStart == end
+            ? null
+            : RLPEncoding.view(buffer, payloadStart, end);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of sub-items in the sequence. This requires decoding the header of every
+     * sub-item.
+     *
+     * @throws IllegalRLPAccess if this view does not represent a sequence of sub-items.
+     * @throws IllegalArgumentException if the header of a sub-item is malformed.
+     */
+    public int size() {
+        int size = 0;
+        for (var item = first(); item != null; item = item.next())
+            ++size;
+        return size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a view over the sub-item at the given index. This requires decoding the header of
+     * every preceding sub-item.
+     *
+     * @throws IllegalRLPAccess if this view does not represent a sequence of sub-items, or the
+     * index is out of bounds.
+     * @throws IllegalArgumentException if the header of a sub-item is malformed.
+     */
+    public RLPView itemAt (int i) {
+        if (i < 0) throw new IllegalRLPAccess("sequence index out of bounds: " + i);
+        var item = first();
+        for (int j = 0; j < i && item != null; ++j)
+            item = item.next();
+        if (item == null)
+            throw new IllegalRLPAccess("sequence index out of bounds: " + i);
+        return item;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns an array containing views over all the sub-items in the sequence.
+     *
+     * @throws IllegalRLPAccess if this view does not represent a sequence of sub-items.
+     * @throws IllegalArgumentException if the header of a sub-item is malformed.
+     */
+    public RLPView[] items() {
+        var out = new RLPView[size()];
+        var item = first();
+        for (int i = 0; i < out.length; ++i, item = item.next())
+            out[i] = item;
+        return out;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns a copy of the binary RLP encoding of this item. */
+    public byte[] encode() {
+        var out = new byte[end - start];
+        buffer.get(start, out);
+        return out;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Fully decodes this item into an {@link RLP} layout, copying all byte arrays.
+     *
+     * @throws IllegalArgumentException if the item is not well-formed RLP.
+     */
+    public RLP toRLP() {
+        return RLPEncoding.decode(this);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return "RLPView " + (sequence ? "(sequence) " : "(bytes) ")
+            + ByteUtils.toCompressedHexString(encode());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
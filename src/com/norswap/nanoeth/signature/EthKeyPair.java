@@ -2,7 +2,9 @@ package com.norswap.nanoeth.signature;
 
 import com.norswap.nanoeth.data.Address;
 import com.norswap.nanoeth.data.Natural;
+import com.norswap.nanoeth.annotations.Nullable;
 import com.norswap.nanoeth.crypto.Crypto;
+import com.norswap.nanoeth.crypto.Curve;
 import com.norswap.nanoeth.utils.Hashing;
 import com.norswap.nanoeth.utils.Randomness;
 import org.bouncycastle.jcajce.provider.asymmetric.ec.BCECPrivateKey;
@@ -16,7 +18,6 @@ import java.security.KeyPairGenerator;
 import java.security.spec.ECGenParameterSpec;
 
 import static com.norswap.nanoeth.crypto.Curve.SECP256K1;
-import static com.norswap.nanoeth.signature.Signature.recoverPublicKeyWithoutHashing;
 
 /**
  * A SECP-256k1 key pair that can be used to sign transactions.
@@ -93,18 +94,33 @@ public final class EthKeyPair {
 
     /** In Ethereum, the {@code message} will always be a hash. */
     public Signature signWithoutHashing (byte[] message) {
-        BigInteger[] components = SECP256K1.sign(privateKey, message);
-        var r = new Natural(components[0]);
-        var s = SignatureUtils.canonicalizeS(new Natural(components[1]));
+        var signature = signature(SECP256K1.sign(privateKey, message));
+        return signature != null ? signature : signWithoutHashingWithRandomK(message);
+    }
+
+    // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Builds a signature from the (r, s, recovery ID) components returned by {@link
+     * Curve#sign}, canonicalizing s. Returns null in the very rare case where the recovery ID
+     * cannot be represented as a y parity, because {@code n <= x < q} (x being the x-coordinate of
+     * the curve point derived from the signature's "k" value). See signature package README for
+     * more information.
+     */
+    private static @Nullable Signature signature (BigInteger[] components) {
         // See signature package README to understand what the recovery ID is and its relationship
         // to "y parity".
-        int recoveryId = findYParity(message, r, s);
-
+        int recoveryId = components[2].intValueExact();
+        if (recoveryId >= 2)
+            return null;
+        var r = new Natural(components[0]);
+        var s = SignatureUtils.canonicalizeS(new Natural(components[1]));
+        // (r, n - s) is the signature obtained with -k instead of k, whose point is -R (same x,
+        // opposite y parity)
+        if (s.compareTo(components[1]) != 0)
+            recoveryId ^= 1;
         try {
-            return recoveryId >= 0
-                ? new Signature(recoveryId, r, s)
-                : signWithoutHashingWithRandomK(message);
+            return new Signature(recoveryId, r, s);
         } catch (IllegalSignature e) {
             throw new Error("implementation bug", e);
         }
@@ -112,37 +128,19 @@ public final class EthKeyPair {
 
     // ---------------------------------------------------------------------------------------------
 
-    /**
-     * Given that {@code (x,y)} is the public key (elliptic curve point) associated with the
-     * signature, this method returns the found y parity (0 or 1 for even or odd, respectively) for
-     * the message with the given {@code r} and {@code s} value; or -1 in the very rare case where
-     * {@code n <= x < q}. See signature package README for more information.
-     */
-    private int findYParity (byte[] message, Natural r, Natural s) {
-        for (int recoveryId = 0; recoveryId < 4; ++recoveryId)
-            if (publicKey.equals(recoverPublicKeyWithoutHashing(recoveryId, message, r, s)))
-                return recoveryId < 2 ? recoveryId : -1;
-        throw new Error("implementation error: invalid (r,s) signature for message");
-    }
-
-    // ---------------------------------------------------------------------------------------------
-
     /**
      * Same as {@link #signWithoutHashing} but uses a random k in the signature scheme, to handle
      * the 1/10^36 probability case where (r, s) is rejected (see signature package README).
      */
-    private Signature signWithoutHashingWithRandomK (byte[] message) throws IllegalSignature {
+    private Signature signWithoutHashingWithRandomK (byte[] message) {
 
         System.err.println("This event should only happen with 1/10^36 probability. " +
                 "In all likelihood, something went wrong in the implementation.");
 
         while (true) {
-            BigInteger[] components = SECP256K1.signWithRandomK(privateKey, message);
-            var r = new Natural(components[0]);
-            var s = new Natural(components[1]);
-            int recoveryId = findYParity(message, r, s);
-            if (recoveryId >= 0)
-                return new Signature(recoveryId, r, s);
+            var signature = signature(SECP256K1.signWithRandomK(privateKey, message));
+            if (signature != null)
+                return signature;
         }
     }
 
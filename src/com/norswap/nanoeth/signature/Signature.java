@@ -1,10 +1,9 @@
 package com.norswap.nanoeth.signature;
 
+import com.norswap.nanoeth.annotations.Nullable;
 import com.norswap.nanoeth.data.Natural;
 import com.norswap.nanoeth.utils.Hashing;
-import org.bouncycastle.math.ec.ECAlgorithms;
 import org.bouncycastle.math.ec.ECPoint;
-import java.math.BigInteger;
 import java.util.Objects;
 
 import static com.norswap.nanoeth.versions.EthereumVersion.HOMESTEAD;
@@ -83,9 +82,9 @@ public final class Signature
 
     /**
      * Recover the public key from the signature of the hash of the given message, as specified in
-     * SEC1 §4.1.6.
+     * SEC1 §4.1.6, or returns null if no key can be recovered.
      */
-    public ECPoint recoverPublicKey (byte[] message) {
+    public @Nullable ECPoint recoverPublicKey (byte[] message) {
         return recoverPublicKeyWithoutHashing(Hashing.keccak(message).bytes);
     }
 
@@ -93,56 +92,11 @@ public final class Signature
 
     /**
      * Recover the public key from the signature of the given message, as specified in
-     * SEC1 §4.1.6.
+     * SEC1 §4.1.6, or returns null if no key can be recovered.
      * <p>In Ethereum, the {@code message} will always be a hash.
      */
-    public ECPoint recoverPublicKeyWithoutHashing (byte[] message) {
-        return recoverPublicKeyWithoutHashing(yParity, message, r, s);
-    }
-
-    // ---------------------------------------------------------------------------------------------
-
-    /**
-     * See {@link #recoverPublicKeyWithoutHashing(byte[])}.
-     * <p>This method must be static because it is used in {@link EthKeyPair} to find the proper
-     * recoveryId for the signature.
-     */
-    static ECPoint recoverPublicKeyWithoutHashing
-            (int recoveryId, byte[] message, BigInteger r, BigInteger s) {
-
-        // Note that we must handle recoveryId in [0, 3] and not just [0, 1]!
-
-        // r could have been generated both by x, or by x + n (mod q).
-        // See signature package README.
-        BigInteger i = BigInteger.valueOf(recoveryId / 2); // 0 or 1
-        BigInteger x = r.add(i.multiply(SECP256K1.n()));
-
-        if (x.compareTo(SECP256K1.q()) >= 0)
-            // Cannot have x coordinate larger than the field prime q.
-            return null;
-
-        // Compressed keys require you to know an extra bit of data about the y-coordinate (as there
-        // are two possibilities), which is encoded as the parity of y.
-        boolean yOdd = (recoveryId & 1) == 1;
-        // R is called P in the README and in the intro articles.
-        ECPoint R = SECP256K1.point(x, yOdd);
-
-        if (!R.multiply(SECP256K1.n()).isInfinity())
-            // nR should = 0 (the point at infinity), because R is a point in the cyclic subgroup
-            // generated by G, whose order is n.
-            return null;
-
-        // ECDSA assumes that the message is a hash, but the scheme is still usable if it isn't.
-        BigInteger e = new BigInteger(1, message);
-
-        // Compute a candidate private key Q = mi(r) * (sR - eG),
-        // where mi is the modular inverse.
-        BigInteger minus_e = BigInteger.ZERO.subtract(e).mod(SECP256K1.n());
-        BigInteger r_inverse = r.modInverse(SECP256K1.n());
-
-        return ECAlgorithms.sumOfTwoMultiplies(
-            R,           r_inverse.multiply(s)       .mod(SECP256K1.n()),
-                SECP256K1.G(), r_inverse.multiply(minus_e) .mod(SECP256K1.n())).normalize();
+    public @Nullable ECPoint recoverPublicKeyWithoutHashing (byte[] message) {
+        return SECP256K1.recover(yParity, r, s, message);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -0,0 +1,95 @@
+package com.norswap.nanoeth.signature;
+
+import org.bouncycastle.math.ec.ECPoint;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static com.norswap.nanoeth.crypto.Curve.SECP256K1;
+
+/**
+ * A batch of signatures to verify together, e.g. the transaction signatures of a block.
+ * <p>
+ * Signatures are added with {@link #add}, then {@link #verify()} checks all of them at once (see
+ * {@link com.norswap.nanoeth.crypto.Curve#verifyBatch}), which is faster than verifying each of
+ * them. If the batch verification fails, the signatures are verified individually, in order to
+ * identify the invalid ones.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class SignatureBatch {
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final ArrayList<ECPoint> publicKeys = new ArrayList<>();
+    private final ArrayList<byte[]> hashes = new ArrayList<>();
+    private final ArrayList<Signature> signatures = new ArrayList<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds a signature of the given hash (the message is not hashed again, cf. {@link
+     * Signature#verifyWithoutHashing}) to verify against the public key, and returns this batch.
+     */
+    public SignatureBatch add (ECPoint publicKey, byte[] hash, Signature signature) {
+        publicKeys.add(publicKey);
+        hashes.add(hash);
+        signatures.add(signature);
+        return this;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the number of signatures in the batch. */
+    public int size() {
+        return signatures.size();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Verifies the signatures in the batch, and returns an array that indicates whether each of
+     * them (in the order they were added) is valid.
+     * <p>
+     * The signatures are first checked together. If this fails, they are verified one by one,
+     * which does not use the signatures' y parity (as {@link Signature#verifyWithoutHashing}), so a
+     * signature whose y parity is wrong but that is otherwise valid will be reported as valid.
+     */
+    public boolean[] verify() {
+        int size = size();
+        var valid = new boolean[size];
+        if (size == 0)
+            return valid;
+
+        var r = new BigInteger[size];
+        var s = new BigInteger[size];
+        var recoveryIds = new int[size];
+        for (int i = 0; i < size; i++) {
+            var signature = signatures.get(i);
+            r[i] = signature.r;
+            s[i] = signature.s;
+            recoveryIds[i] = signature.yParity;
+        }
+
+        if (SECP256K1.verifyBatch(publicKeys.toArray(new ECPoint[0]), r, s, recoveryIds,
+                hashes.toArray(new byte[0][]))) {
+            Arrays.fill(valid, true);
+            return valid;
+        }
+
+        for (int i = 0; i < size; i++)
+            valid[i] = signatures.get(i).verifyWithoutHashing(publicKeys.get(i), hashes.get(i));
+        return valid;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns true only if all the signatures in the batch are valid (cf. {@link #verify()}). */
+    public boolean verifyAll() {
+        for (boolean valid: verify())
+            if (!valid) return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,407 @@
+package com.norswap.nanoeth.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * An on-disk hash table mapping 32-byte keys to non-zero longs (typically {@link SegmentLog}
+ * locations), stored in a single memory-mapped file.
+ *
+ * <p>Keys are expected to be cryptographic hashes: their first 8 bytes are used as-is to pick a
+ * slot, without further hashing.
+ *
+ * <p>The table uses open addressing with linear probing. Each slot is made of the 32-byte key
+ * followed by the 8-byte value, with a zero value marking an empty slot. The table doubles in
+ * size (by rehashing into a new file) whenever it becomes half full, which keeps probe sequences
+ * short. Since the file can exceed 2GB (the limit of a single mapping), it is mapped in chunks.
+ *
+ * <p>Like {@link SegmentLog}, the table is not thread-safe, and changes are only guaranteed to
+ * be on disk after {@link #flush()}. However, the OS can write modified slots back to disk at any
+ * time, so if the process dies, the table can hold entries whose values refer to data that wasn't
+ * persisted. This can be detected with {@link #flushed()}.
+ */
+public final class HashIndex implements AutoCloseable {
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final VarHandle LONGS =
+        MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    /**
+     * Header: capacity (long), size (long) and a flag (long) that is 1 if the table has been
+     * modified since it was last flushed, 0 otherwise.
+     */
+    private static final int HEADER_SIZE = 24;
+
+    private static final int SLOT_SIZE = 40;
+
+    /** log2 of the number of slots per mapped chunk (chunks are 640 MB). */
+    private static final int CHUNK_SHIFT = 24;
+
+    private static final int CHUNK_SLOTS = 1 << CHUNK_SHIFT;
+
+    private static final int MIN_CAPACITY = 1024;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Path file;
+    private long capacity;
+    private long size;
+    private boolean flushed;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] chunks;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private HashIndex (Path file) {
+        this.file = file;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Opens the index stored in the given file, creating it if it does not exist. */
+    public static HashIndex open (Path file) throws IOException {
+        var index = new HashIndex(file);
+        boolean exists = Files.exists(file);
+        index.use(map(file, exists ? -1 : MIN_CAPACITY));
+        if (exists) {
+            if (Long.bitCount(index.capacity) != 1 || index.size > index.capacity / 2
+                    || (index.header.getLong(16) & ~1) != 0)
+                throw new IOException("corrupted index header in " + file);
+        }
+        index.flushed = index.header.getLong(16) == 0;
+        return index;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** A mapping of the index file, see {@link #map}. */
+    private static final class Mapping {
+        final MappedByteBuffer header;
+        final MappedByteBuffer[] chunks;
+        final long capacity;
+        final long size;
+
+        Mapping (MappedByteBuffer header, MappedByteBuffer[] chunks, long capacity, long size) {
+            this.header = header;
+            this.chunks = chunks;
+            this.capacity = capacity;
+            this.size = size;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Maps the given file, reading the capacity from its header if {@code capacity} is -1, or
+     * initializing a new empty (and flushed) table with the given capacity otherwise.
+     */
+    private static Mapping map (Path file, long capacity) throws IOException {
+        try (var channel = FileChannel.open(file, CREATE, READ, WRITE)) {
+            var header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            long size = 0;
+            if (capacity == -1) {
+                capacity = header.getLong(0);
+                size = header.getLong(8);
+            } else {
+                header.putLong(0, capacity);
+                header.putLong(8, 0);
+                header.putLong(16, 0);
+            }
+            int chunkCount = (int) ((capacity + CHUNK_SLOTS - 1) >>> CHUNK_SHIFT);
+            var chunks = new MappedByteBuffer[chunkCount];
+            for (int i = 0; i < chunkCount; ++i) {
+                long slots = Math.min(CHUNK_SLOTS, capacity - ((long) i << CHUNK_SHIFT));
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + ((long) i << CHUNK_SHIFT) * SLOT_SIZE, slots * SLOT_SIZE);
+            }
+            return new Mapping(header, chunks, capacity, size);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Makes the table use the given mapping. */
+    private void use (Mapping mapping) {
+        header = mapping.header;
+        chunks = mapping.chunks;
+        capacity = mapping.capacity;
+        size = mapping.size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private MappedByteBuffer chunk (long slot) {
+        return chunks[(int) (slot >>> CHUNK_SHIFT)];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int offset (long slot) {
+        return (int) (slot & (CHUNK_SLOTS - 1)) * SLOT_SIZE;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private long value (long slot) {
+        return chunk(slot).getLong(offset(slot) + 32);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean keyMatches (long slot, byte[] key) {
+        var chunk = chunk(slot);
+        int offset = offset(slot);
+        return chunk.getLong(offset)      == (long) LONGS.get(key, 0)
+            && chunk.getLong(offset + 8)  == (long) LONGS.get(key, 8)
+            && chunk.getLong(offset + 16) == (long) LONGS.get(key, 16)
+            && chunk.getLong(offset + 24) == (long) LONGS.get(key, 24);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private long home (long firstLong) {
+        return firstLong & (capacity - 1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the slot holding {@code key}, or the empty slot where it should be inserted if it
+     * isn't in the table.
+     */
+    private long find (byte[] key) {
+        if (key.length != 32)
+            throw new IllegalArgumentException("index keys must be 32 bytes long");
+        long mask = capacity - 1;
+        for (long slot = home((long) LONGS.get(key, 0)); ; slot = (slot + 1) & mask)
+            if (value(slot) == 0 || keyMatches(slot, key))
+                return slot;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the value associated with the key, or 0 if there is none. */
+    public long get (byte[] key) {
+        return value(find(key));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Number of keys in the table. Only reliable if the table was {@link #flushed()} when
+     * opened.
+     */
+    public long size() {
+        return size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * True iff the table hasn't been modified since it was last flushed. If this is false right
+     * after opening the table, the process that last used it died without flushing it, and the
+     * table may hold entries whose values refer to data that was never persisted (e.g. locations
+     * past the end of a {@link SegmentLog}), as well as a wrong {@link #size()}.
+     */
+    public boolean flushed() {
+        return flushed;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Records in the header that the table is being modified, before the modification. The flag is
+     * forced to disk, so that it is set if any modified slot reaches the disk.
+     */
+    private void modify() {
+        if (!flushed) return;
+        header.putLong(16, 1);
+        header.force();
+        flushed = false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Associates {@code value} (which must not be 0) with {@code key}, replacing the existing
+     * value if any.
+     *
+     * @throws UncheckedIOException if the table needs to grow, and the new file can't be created.
+     */
+    public void put (byte[] key, long value) {
+        if (value == 0)
+            throw new IllegalArgumentException("zero value cannot be stored in the index");
+        long slot = find(key);
+        modify();
+        if (value(slot) == 0) {
+            if (size + 1 > capacity / 2) {
+                grow();
+                slot = find(key);
+            }
+            ++size;
+            var chunk = chunk(slot);
+            int offset = offset(slot);
+            for (int i = 0; i < 32; i += 8)
+                chunk.putLong(offset + i, (long) LONGS.get(key, i));
+        }
+        chunk(slot).putLong(offset(slot) + 32, value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Removes the key from the table, returning its value (or 0 if the key wasn't in the table).
+     */
+    public long remove (byte[] key) {
+        long slot = find(key);
+        long value = value(slot);
+        if (value == 0) return 0;
+        modify();
+
+        // Backward-shift deletion: move up the entries of the probe sequence that follows the
+        // removed entry, so that lookups never stop at the freed slot while the key they look for
+        // lies further along.
+        long mask = capacity - 1;
+        long hole = slot;
+        for (long next = (hole + 1) & mask; value(next) != 0; next = (next + 1) & mask) {
+            long home = home(chunk(next).getLong(offset(next)));
+            // Can the entry at next be moved to the hole? Only if its home slot is not in the
+            // cyclic range ]hole, next].
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                copySlot(next, hole);
+                hole = next;
+            }
+        }
+        chunk(hole).putLong(offset(hole) + 32, 0);
+        --size;
+        return value;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void copySlot (long from, long to) {
+        var src = chunk(from);
+        var dst = chunk(to);
+        int srcOffset = offset(from);
+        int dstOffset = offset(to);
+        for (int i = 0; i < SLOT_SIZE; i += 8)
+            dst.putLong(dstOffset + i, src.getLong(srcOffset + i));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Doubles the capacity of the table by rehashing it into a new file, which then replaces the
+     * current file. The table keeps using the current mapping until the replacement succeeds, so
+     * that it is left unchanged if an I/O error occurs.
+     */
+    private void grow() {
+        try {
+            var tmp = tmpFile();
+            var grown = map(tmp, capacity * 2);
+            long mask = grown.capacity - 1;
+            for (long old = 0; old < capacity; ++old) {
+                var chunk = chunk(old);
+                int offset = offset(old);
+                if (chunk.getLong(offset + 32) == 0) continue;
+                long slot = chunk.getLong(offset) & mask;
+                while (grown.chunks[(int) (slot >>> CHUNK_SHIFT)].getLong(offset(slot) + 32) != 0)
+                    slot = (slot + 1) & mask;
+                var dst = grown.chunks[(int) (slot >>> CHUNK_SHIFT)];
+                int dstOffset = offset(slot);
+                for (int i = 0; i < SLOT_SIZE; i += 8)
+                    dst.putLong(dstOffset + i, chunk.getLong(offset + i));
+            }
+            grown.header.putLong(16, 1); // not flushed, like the current table
+            replace(tmp, new Mapping(grown.header, grown.chunks, grown.capacity, size));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Removes all keys from the table, shrinking it back to its minimum capacity. Like {@link
+     * #grow()}, this creates a new file, and the table is left unchanged if an I/O error occurs.
+     *
+     * @throws UncheckedIOException if the new file can't be created.
+     */
+    public void clear() {
+        try {
+            var tmp = tmpFile();
+            var empty = map(tmp, MIN_CAPACITY);
+            empty.header.putLong(16, 1); // the table was modified
+            replace(tmp, empty);
+            flushed = false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the path of the file used to replace the table file, deleting it if it exists. */
+    private Path tmpFile() throws IOException {
+        var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        return tmp;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Forces the given mapping of the temporary file {@code tmp} to disk, then replaces the table
+     * file with the temporary file and makes the table use the mapping.
+     */
+    private void replace (Path tmp, Mapping mapping) throws IOException {
+        force(mapping.header, mapping.chunks, mapping.size);
+        Files.move(tmp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+        use(mapping);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Forces all changes to the table to be written to disk, then marks the table as {@link
+     * #flushed()} on disk.
+     */
+    public void flush() {
+        force(header, chunks, size);
+        if (flushed) return;
+        header.putLong(16, 0);
+        header.force();
+        flushed = true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void force (MappedByteBuffer header, MappedByteBuffer[] chunks, long size) {
+        header.putLong(8, size);
+        header.force();
+        for (var chunk: chunks)
+            chunk.force();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Flushes the table. The table must not be used after being closed. */
+    @Override public void close() {
+        flush();
+        chunks = new MappedByteBuffer[0];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
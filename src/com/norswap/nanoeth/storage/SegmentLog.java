@@ -0,0 +1,289 @@
+package com.norswap.nanoeth.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.function.LongConsumer;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * An append-only log of binary records, stored in a directory as a sequence of fixed-size,
+ * memory-mapped segment files.
+ *
+ * <p>Each record is identified by its location: a long whose 32 high-order bits are the index of
+ * the segment and whose 32 low-order bits are the offset of the record inside the segment.
+ * Locations are never zero, so zero can be used as a "no record" marker.
+ *
+ * <p>Each segment starts with an 8-byte header holding the number of bytes used in the segment
+ * (header included), followed by the records, each made of a 4-byte size followed by the record's
+ * bytes. A record never straddles two segments. The header is only updated by {@link #flush()},
+ * after the records have been forced to disk: records appended after the last flush are lost if
+ * the process dies. Segments created since the last flush have a zero header: when the log is
+ * reopened, the first such segment (except the very first segment) and the ones following it are
+ * discarded.
+ *
+ * <p>Reads are served directly from the mapped segments, so the content of the log does not live
+ * on the Java heap (only in the OS page cache).
+ *
+ * <p>This class is not thread-safe.
+ */
+public final class SegmentLog implements AutoCloseable {
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Default size of segment files: 256 MB. */
+    public static final int DEFAULT_SEGMENT_SIZE = 256 << 20;
+
+    /** Size of the segment header (used length). */
+    private static final int HEADER_SIZE = 8;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Path directory;
+    private final String prefix;
+    private final int segmentSize;
+    private final ArrayList<MappedByteBuffer> segments = new ArrayList<>();
+
+    /** Offset of the first free byte in the last segment. */
+    private int used;
+
+    /** Index of the first segment modified since the last flush. */
+    private int dirtyFrom;
+
+    /**
+     * Used sizes of the segments filled up since the last flush (from index {@link #dirtyFrom}),
+     * to be written to their headers by the next flush.
+     */
+    private final ArrayList<Integer> filled = new ArrayList<>();
+
+    /** cf. {@link #lastLocation()} */
+    private long lastLocation;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private SegmentLog (Path directory, String prefix, int segmentSize) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Opens the log whose segments are the files named {@code <prefix>-<index>.seg} in {@code
+     * directory}, creating the directory and the first segment if they do not exist.
+     *
+     * <p>{@code segmentSize} must be the same every time the log is opened.
+     */
+    public static SegmentLog open (Path directory, String prefix, int segmentSize)
+            throws IOException {
+
+        if (segmentSize <= HEADER_SIZE + 4)
+            throw new IllegalArgumentException("segment size too small: " + segmentSize);
+
+        Files.createDirectories(directory);
+        var log = new SegmentLog(directory, prefix, segmentSize);
+        log.used = HEADER_SIZE;
+        int i = 0;
+        for (; Files.exists(log.segmentPath(i)); ++i) {
+            var segment = log.map(i);
+            long used = segment.getLong(0);
+            if (used == 0 && i > 0)
+                break; // segment created after the last flush, will be reused on rollover
+            if (used != 0 && (used < HEADER_SIZE || used > segmentSize))
+                throw new IOException("corrupted segment header in " + log.segmentPath(i));
+            log.segments.add(segment);
+            log.used = (int) Math.max(used, HEADER_SIZE);
+        }
+        while (Files.exists(log.segmentPath(++i)))
+            Files.delete(log.segmentPath(i));
+
+        if (log.segments.isEmpty())
+            log.segments.add(log.map(0));
+        log.dirtyFrom = log.segments.size() - 1;
+        return log;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Opens the log with {@link #DEFAULT_SEGMENT_SIZE}. */
+    public static SegmentLog open (Path directory, String prefix) throws IOException {
+        return open(directory, prefix, DEFAULT_SEGMENT_SIZE);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Path segmentPath (int index) {
+        return directory.resolve(String.format("%s-%05d.seg", prefix, index));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private MappedByteBuffer map (int index) throws IOException {
+        try (var channel = FileChannel.open(segmentPath(index), CREATE, READ, WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private MappedByteBuffer last() {
+        return segments.get(segments.size() - 1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the number of bytes used in the segment with the given index (header included). */
+    private int used (int index) {
+        return index == segments.size() - 1 ? used
+            : index >= dirtyFrom ? filled.get(index - dirtyFrom)
+            : (int) segments.get(index).getLong(0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the maximum size of a record. */
+    public int maxRecordSize() {
+        return segmentSize - HEADER_SIZE - 4;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Reserves space for a record of the given size at the end of the log, and returns a buffer
+     * whose position and limit delimit the space where the record must be written. The location
+     * of the record is {@link #lastLocation()}.
+     *
+     * <p>This avoids copying records that are serialized straight into the log (e.g. via {@link
+     * com.norswap.nanoeth.rlp.RLP#encodeInto(ByteBuffer)}).
+     *
+     * @throws IllegalArgumentException if {@code size} exceeds {@link #maxRecordSize()}.
+     * @throws UncheckedIOException if a new segment cannot be created.
+     */
+    public ByteBuffer reserve (int size) {
+        if (size < 0 || size > maxRecordSize())
+            throw new IllegalArgumentException("record size out of bounds: " + size);
+
+        if (segmentSize - used < 4 + size) {
+            filled.add(used);
+            try {
+                segments.add(map(segments.size()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            used = HEADER_SIZE;
+        }
+
+        var segment = last();
+        segment.putInt(used, size);
+        lastLocation = ((long) (segments.size() - 1) << 32) | used;
+        used += 4 + size;
+        return segment.duplicate().position((int) lastLocation + 4).limit(used);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the location of the record created by the last call to {@link #reserve(int)}. */
+    public long lastLocation() {
+        return lastLocation;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Appends a record to the log and returns its location.
+     *
+     * @throws IllegalArgumentException if the record exceeds {@link #maxRecordSize()}.
+     * @throws UncheckedIOException if a new segment cannot be created.
+     */
+    public long append (byte[] record) {
+        reserve(record.length).put(record);
+        return lastLocation;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Calls {@code action} with the location of each record in the log, in order. */
+    public void forEachLocation (LongConsumer action) {
+        for (int i = 0; i < segments.size(); ++i) {
+            var segment = segments.get(i);
+            int end = used(i);
+            for (int offset = HEADER_SIZE; offset < end; offset += 4 + segment.getInt(offset))
+                action.accept(((long) i << 32) | offset);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private int checkLocation (long location) {
+        int index = (int) (location >>> 32);
+        int offset = (int) location;
+        if (index >= segments.size() || offset < HEADER_SIZE
+                || (index == segments.size() - 1 ? used : segmentSize) - 4 < offset)
+            throw new IllegalArgumentException("invalid record location: " + location);
+        return index;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a read-only buffer spanning the record at the given location. No bytes are copied.
+     *
+     * @throws IllegalArgumentException if the location is not valid.
+     */
+    public ByteBuffer slice (long location) {
+        var segment = segments.get(checkLocation(location));
+        int offset = (int) location;
+        return segment.slice(offset + 4, segment.getInt(offset)).asReadOnlyBuffer();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a copy of the record at the given location.
+     *
+     * @throws IllegalArgumentException if the location is not valid.
+     */
+    public byte[] read (long location) {
+        var segment = segments.get(checkLocation(location));
+        int offset = (int) location;
+        var out = new byte[segment.getInt(offset)];
+        segment.get(offset + 4, out);
+        return out;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Forces all changes to the segments to be written to disk, then writes the used size of the
+     * modified segments to their headers (and forces these as well). Writing the headers last
+     * ensures that they never cover records that aren't on disk.
+     */
+    public void flush() {
+        for (int i = dirtyFrom; i < segments.size(); ++i)
+            segments.get(i).force();
+        for (int i = dirtyFrom; i < segments.size(); ++i) {
+            var segment = segments.get(i);
+            segment.putLong(0, i < segments.size() - 1 ? filled.get(i - dirtyFrom) : used);
+            segment.force(0, HEADER_SIZE);
+        }
+        filled.clear();
+        dirtyFrom = segments.size() - 1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Flushes the log. The log must not be used after being closed. */
+    @Override public void close() {
+        flush();
+        segments.clear();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -4,6 +4,7 @@ import com.norswap.nanoeth.data.Address;
 import com.norswap.nanoeth.data.StorageKey;
 import com.norswap.nanoeth.rlp.IllegalRLPAccess;
 import com.norswap.nanoeth.rlp.RLP;
+import com.norswap.nanoeth.rlp.RLPCodec;
 import com.norswap.nanoeth.rlp.RLPLayoutable;
 import com.norswap.nanoeth.rlp.RLPParsingException;
 import norswap.utils.NArrays;
@@ -33,6 +34,26 @@ public final class AccessList implements RLPLayoutable {
 
     // ---------------------------------------------------------------------------------------------
 
+    /** Codec for {@link AccessListItem}, see {@link #CODEC}. */
+    private static final RLPCodec<AccessListItem> ITEM_CODEC = RLPCodec.<AccessListItem>builder()
+        .bytes      (it -> it.address.bytes)
+        .bytesList  (it -> Arrays.stream(it.keys).map(k -> k.bytes).toArray(byte[][]::new))
+        .build(reader -> new AccessListItem(
+            new Address(reader.bytes()),
+            Arrays.stream(reader.bytesList()).map(StorageKey::new).toArray(StorageKey[]::new)));
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Codec that encodes access lists straight to bytes and decodes them straight from bytes, with
+     * the same results as {@link #rlpLayout()} and {@link #parse(RLP)}.
+     */
+    public static final RLPCodec<AccessList> CODEC = RLPCodec.<AccessList>builder()
+        .spread(it -> it.items, ITEM_CODEC)
+        .build(reader -> new AccessList(reader.rest(ITEM_CODEC, AccessListItem[]::new)));
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * A collection of addresses along with associated storage keys within that account's storage
      * tree.
@@ -81,6 +102,13 @@ public final class AccessList implements RLPLayoutable {
 
     // ---------------------------------------------------------------------------------------------
 
+    /** Returns the RLP encoding of the access list, computed via {@link #CODEC}. */
+    @Override public byte[] rlpEncode() {
+        return CODEC.encode(this);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     @Override public boolean equals (Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
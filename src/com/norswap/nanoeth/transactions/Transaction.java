@@ -1,5 +1,7 @@
 package com.norswap.nanoeth.transactions;
 
+import com.norswap.nanoeth.annotations.Nullable;
+import com.norswap.nanoeth.annotations.Retained;
 import com.norswap.nanoeth.data.Address;
 import com.norswap.nanoeth.data.Hash;
 import com.norswap.nanoeth.data.Natural;
@@ -13,8 +15,14 @@ import com.norswap.nanoeth.utils.ByteUtils;
 import com.norswap.nanoeth.utils.Hashing;
 import org.bouncycastle.math.ec.ECPoint;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import static com.norswap.nanoeth.transactions.TransactionEnvelopeType.ENVELOPE_TYPE_NONE;
 
@@ -26,6 +34,13 @@ import static com.norswap.nanoeth.transactions.TransactionEnvelopeType.ENVELOPE_
  *
  * <p>Creating the transaction does not verify its signature. To do so, call {@link
  * #verifySignature()}.
+ *
+ * <p>The {@link #binary() binary encoding}, {@link #hash() hash}, {@link #signingPayload() signing
+ * payload} and {@link #recoverSender() sender} are computed lazily and memoized (the binary
+ * encoding is retained from the wire when the transaction is parsed). Threads never wait on each
+ * other to obtain these values: threads that race to compute the same value may all compute it,
+ * but they all return the first memoized result. Transactions are therefore safe to share between
+ * threads.
  */
 public final class Transaction extends UnsignedTransaction implements RLPLayoutable {
 
@@ -36,6 +51,30 @@ public final class Transaction extends UnsignedTransaction implements RLPLayouta
 
     // ---------------------------------------------------------------------------------------------
 
+    // Memoized values, see class documentation. Computed values are published with a
+    // compare-and-set via the var handles below (see #memoize).
+
+    private volatile byte[] binary;
+    private volatile byte[] signingPayload;
+    private volatile Hash hash;
+    private volatile Address sender;
+
+    private static final VarHandle BINARY, SIGNING_PAYLOAD, HASH, SENDER;
+    static {
+        try {
+            var lookup = MethodHandles.lookup();
+            BINARY = lookup.findVarHandle(Transaction.class, "binary", byte[].class);
+            SIGNING_PAYLOAD =
+                lookup.findVarHandle(Transaction.class, "signingPayload", byte[].class);
+            HASH = lookup.findVarHandle(Transaction.class, "hash", Hash.class);
+            SENDER = lookup.findVarHandle(Transaction.class, "sender", Address.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     public Transaction (
         TransactionFormat format,
         Natural chainId,
@@ -55,6 +94,33 @@ public final class Transaction extends UnsignedTransaction implements RLPLayouta
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Same as the public constructor, but also supplies the binary encoding of the transaction
+     * and/or its signing payload (either can be null), when they are already known.
+     */
+    Transaction (
+        TransactionFormat format,
+        Natural chainId,
+        Natural nonce,
+        Natural maxFeePerGas,
+        Natural maxPriorityFeePerGas,
+        Natural gasLimit,
+        Address to,
+        Natural value,
+        byte[] payload,
+        AccessList accessList,
+        Signature signature,
+        @Nullable @Retained byte[] binary,
+        @Nullable @Retained byte[] signingPayload)
+    {
+        this(format, chainId, nonce, maxFeePerGas, maxPriorityFeePerGas, gasLimit, to, value,
+            payload, accessList, signature);
+        this.binary = binary;
+        this.signingPayload = signingPayload;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Parses a RLP sequence into a transaction.
      *
@@ -67,16 +133,85 @@ public final class Transaction extends UnsignedTransaction implements RLPLayouta
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Sets the memoized field accessed by {@code handle} to {@code value} if it is still null, and
+     * returns the field's value — either {@code value}, or the value memoized by another thread.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T memoize (VarHandle handle, T value) {
+        var witness = (T) handle.compareAndExchange(this, (Object) null, value);
+        return witness == null ? value : witness;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Returns the address of the transaction sender.
-     * <p>The address is recomputed from the RLP-encoded transaction and the signature
-     * each time this method is called.
+     * <p>The address is recovered from the signing payload and the signature the first time this
+     * method is called, and memoized.
+     *
+     * @throws IllegalStateException if the signature is invalid.
      */
     public Address recoverSender() {
-        ECPoint publicKey = signature.recoverPublicKey(signingRLP().encode());
+        var sender = this.sender;
+        if (sender != null)
+            return sender;
+        ECPoint publicKey = signature.recoverPublicKey(signingPayload());
         if (publicKey == null)
             throw new IllegalStateException("The transaction's signature is invalid.");
-        return SignatureUtils.address(publicKey);
+        return memoize(SENDER, SignatureUtils.address(publicKey));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the RLP encoding of {@link #signingRLP()}, which is the payload (before hashing)
+     * signed by the sender. Computed on first use and memoized: the returned array must not be
+     * modified.
+     */
+    public byte[] signingPayload() {
+        var signingPayload = this.signingPayload;
+        return signingPayload != null
+            ? signingPayload
+            : memoize(SIGNING_PAYLOAD, signingRLP().encode());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the addresses of the senders of the given transactions (e.g. the transactions of a
+     * block), in the same order, recovering them in parallel on the given executor (one task per
+     * transaction). Blocks until all senders have been recovered.
+     *
+     * @throws IllegalStateException if the signature of one of the transactions is invalid.
+     */
+    public static Address[] recoverSenders (Transaction[] transactions, Executor executor) {
+        var senders = new Address[transactions.length];
+        var tasks = new CompletableFuture<?>[transactions.length];
+        for (int i = 0; i < transactions.length; i++) {
+            int j = i;
+            tasks[i] = CompletableFuture.runAsync(
+                () -> senders[j] = transactions[j].recoverSender(), executor);
+        }
+        try {
+            // completion of the tasks happens-before the return of join()
+            CompletableFuture.allOf(tasks).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+        return senders;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #recoverSenders(Transaction[], Executor)}, using the {@link
+     * ForkJoinPool#commonPool() common pool}.
+     */
+    public static Address[] recoverSenders (Transaction[] transactions) {
+        return recoverSenders(transactions, ForkJoinPool.commonPool());
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -119,14 +254,9 @@ public final class Transaction extends UnsignedTransaction implements RLPLayouta
      * transactions in an RLP byte array. Use {@link #binary()} instead.
      */
     @Override public RLP rlpLayout() {
-        var plain = plainRLP();
-        if (format.type == ENVELOPE_TYPE_NONE) return plain;
-
-        byte[] encoded = plain.encode();
-        byte[] bytes = new byte[encoded.length + 1];
-        bytes[0] = format.type;
-        System.arraycopy(encoded, 0, bytes, 1, encoded.length);
-        return RLP.bytes(bytes);
+        return format.type == ENVELOPE_TYPE_NONE
+            ? plainRLP()
+            : RLP.bytes(binary());
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -138,12 +268,21 @@ public final class Transaction extends UnsignedTransaction implements RLPLayouta
      * The encoding is as described in {@link #rlpLayout()}, with the only difference that for typed
      * transactions, we just want the transaction type + opaque byte array representing the
      * transaction, but not the RLP size prefix.
+     * <p>
+     * The encoding is computed on first use and memoized (or retained from the wire if the
+     * transaction was parsed): the returned array must not be modified.
      */
     public byte[] binary() {
-        var rlp = rlpLayout();
-        return format.type == ENVELOPE_TYPE_NONE
-            ? rlp.encode()
-            : rlp.bytes();
+        var binary = this.binary;
+        if (binary != null)
+            return binary;
+        byte[] encoded = plainRLP().encode();
+        if (format.type == ENVELOPE_TYPE_NONE)
+            return memoize(BINARY, encoded);
+        binary = new byte[encoded.length + 1];
+        binary[0] = format.type;
+        System.arraycopy(encoded, 0, binary, 1, encoded.length);
+        return memoize(BINARY, binary);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -161,11 +300,11 @@ public final class Transaction extends UnsignedTransaction implements RLPLayouta
     /**
      * Returns true if the transaction's signature is valid.
      *
-     * <p>Use {@link #verifySignature(byte[])} for faster verification if you know the RLP encoding
-     * of the unsigned version of this transaction (which avoids recomputing it).
+     * <p>The RLP encoding of the unsigned version of this transaction is memoized (see {@link
+     * #signingPayload()}).
      */
     public boolean verifySignature() {
-        return signature.verify(signingRLP().encode());
+        return signature.verify(signingPayload());
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -179,15 +318,18 @@ public final class Transaction extends UnsignedTransaction implements RLPLayouta
      * version.
      */
     public boolean verifySignature (byte[] encodedUnsignedTransaction) {
-        assert Arrays.equals(signingRLP().encode(), encodedUnsignedTransaction);
+        assert Arrays.equals(signingPayload(), encodedUnsignedTransaction);
         return signature.verify(encodedUnsignedTransaction);
     }
 
     // ---------------------------------------------------------------------------------------------
 
-    /** Returns the transaction hash. This is recomputed anew each time it is requested. */
+    /** Returns the transaction hash, which is computed on first use and memoized. */
     public Hash hash() {
-        return Hashing.keccak(binary());
+        var hash = this.hash;
+        return hash != null
+            ? hash
+            : memoize(HASH, Hashing.keccak(binary()));
     }
 
     // ---------------------------------------------------------------------------------------------
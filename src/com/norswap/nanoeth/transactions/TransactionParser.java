@@ -9,7 +9,6 @@ import com.norswap.nanoeth.signature.Signature;
 import com.norswap.nanoeth.utils.ByteUtils;
 import com.norswap.nanoeth.versions.EthereumVersion;
 
-import java.util.Arrays;
 
 import static com.norswap.nanoeth.rlp.RLPParsing.*;
 import static com.norswap.nanoeth.transactions.TransactionFormat.*;
@@ -27,7 +26,10 @@ final class TransactionParser {
 
     // ---------------------------------------------------------------------------------------------
 
-    /** Implements {@link Transaction#from} */
+    /**
+     * Implements {@link Transaction#from}. The binary encoding of the transaction (the wire bytes)
+     * is retained in the transaction.
+     */
     static Transaction parse (RLP rlp) throws RLPParsingException {
 
         // The transaction can either be a RLP-encoded sequence (no envelope type), or a
@@ -83,8 +85,10 @@ final class TransactionParser {
         var s = getNatural(seq, 8);
         var signature = makeSignature(yParity, r, s); // legal, but unverified!
 
+        // When seq was decoded lazily (e.g. as part of a block), this returns the original bytes
+        // without re-encoding them.
         return new Transaction(format, chainId, nonce, gasPrice, gasPrice, gasLimit, to, value,
-            payload, AccessList.EMPTY, signature);
+            payload, AccessList.EMPTY, signature, seq.encode(), null);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -97,8 +101,7 @@ final class TransactionParser {
         // cf. comment in parse(RLP)
         byte[] bytes = rlp.bytes();
         assert bytes[0] == ENVELOPE_TYPE_EIP_2930;
-        bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
-        RLP seq = RLP.decode(bytes);
+        RLP seq = RLP.decodeLazily(bytes, 1, bytes.length - 1);
 
         var chainId     = getNatural(seq, 0);
         var nonce       = getNatural(seq, 1);
@@ -114,7 +117,7 @@ final class TransactionParser {
         var signature   = makeSignature(yParity, r, s); // legal, but unverified!
 
         return new Transaction(TX_EIP_2930, chainId, nonce, gasPrice, gasPrice, gasLimit, to, value,
-            payload, accessList, signature);
+            payload, accessList, signature, bytes, null);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -127,8 +130,7 @@ final class TransactionParser {
         // cf. comment in parse(RLP)
         byte[] bytes = rlp.bytes();
         assert bytes[0] == ENVELOPE_TYPE_EIP_2930;
-        bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
-        RLP seq = RLP.decode(bytes);
+        RLP seq = RLP.decodeLazily(bytes, 1, bytes.length - 1);
 
         var chainId                 = getNatural(seq, 0);
         var nonce                   = getNatural(seq, 1);
@@ -145,7 +147,7 @@ final class TransactionParser {
         var signature               = makeSignature(yParity, r, s); // legal, but unverified!
 
         return new Transaction(TX_EIP_1559, chainId, nonce, maxFeePerGas, maxPriorityFeePerGas,
-            gasLimit, to, value, payload, accessList, signature);
+            gasLimit, to, value, payload, accessList, signature, bytes, null);
     }
 
     // ---------------------------------------------------------------------------------------------
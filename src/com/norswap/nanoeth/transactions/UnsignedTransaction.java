@@ -169,9 +169,10 @@ public class UnsignedTransaction {
 
     /** Signs the transaction using the given private key, returning the signed transaction. */
     public Transaction sign (EthKeyPair keys) {
-        var signature = keys.sign(signingRLP().encode());
+        var signingPayload = signingRLP().encode();
+        var signature = keys.sign(signingPayload);
         return new Transaction(format, chainId, nonce, maxFeePerGas, maxPriorityFeePerGas,
-            gasLimit, to, value, payload, accessList, signature);
+            gasLimit, to, value, payload, accessList, signature, null, signingPayload);
     }
 
     // ---------------------------------------------------------------------------------------------
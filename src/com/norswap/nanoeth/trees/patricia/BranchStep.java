@@ -1,5 +1,7 @@
 package com.norswap.nanoeth.trees.patricia;
 
+import com.norswap.nanoeth.annotations.Nullable;
+
 /** See {@link PatriciaNode#step(NodeStore, Nibbles)}. */
 public final class BranchStep {
     public final PatriciaNode node;
@@ -13,4 +15,18 @@ public final class BranchStep {
         this.sharedPrefix = sharedPrefix;
         this.nibblesLeft = nibblesLeft;
     }
+
+    /**
+     * Assuming this is the last step of the branch for a key (i.e. {@link #child} is null),
+     * returns the value associated with the key, or null if there is none.
+     */
+    public @Nullable byte[] finalValue() {
+        if (nibblesLeft != 0)
+            return null;
+        // the key suffix may be a strict prefix of the leaf's
+        if (node instanceof PatriciaLeafNode
+                && sharedPrefix != ((PatriciaLeafNode) node).keySuffix.length())
+            return null;
+        return node.value();
+    }
 }
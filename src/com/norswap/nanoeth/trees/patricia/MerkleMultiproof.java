@@ -0,0 +1,98 @@
+package com.norswap.nanoeth.trees.patricia;
+
+import com.norswap.nanoeth.annotations.Nullable;
+import com.norswap.nanoeth.data.MerkleRoot;
+import com.norswap.nanoeth.trees.patricia.store.MissingNode;
+import java.util.Arrays;
+
+import static com.norswap.nanoeth.trees.patricia.PatriciaTree.EMPTY_TREE_ROOT;
+
+/**
+ * A proof that a set of keys are associated with given values (or with no value) in a tree,
+ * obtained via {@link PatriciaTree#proveAll(byte[]...)}. Note that the tree in question is not
+ * stored in this object.
+ * <p>
+ * Unlike a set of {@link MerkleProof}, the nodes shared by the branches of multiple keys (e.g. the
+ * upper levels of the tree) are only included once. The size of the proof and the time needed to
+ * verify it are therefore proportional to the number of distinct nodes on the branches of the
+ * keys, rather than to the number of keys.
+ * <p>
+ * The nodes are stored in their RLP encoded form (as returned by {@link PatriciaNode#compose()}),
+ * ready to be sent over the network. Nodes whose encoding is shorter than 32 bytes are embedded in
+ * their parent's encoding, and are not included separately (except for the root).
+ */
+public final class MerkleMultiproof {
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Keys being proven. */
+    public final byte[][] keys;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Values whose association with the key at the same index is being proven, or null when
+     * proving the absence of a value.
+     */
+    public final @Nullable byte[][] values;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Distinct RLP encodings of the nodes on the branches from the root to the nodes that contain
+     * the values associated with the keys, <b>or</b> to the deepest nodes that would have to be
+     * modified in order to insert a value for the keys (for keys without value). In no particular
+     * order.
+     */
+    public final byte[][] nodes;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public MerkleMultiproof (byte[][] keys, @Nullable byte[][] values, byte[][] nodes) {
+        assert keys.length == values.length : "keys and values have different lengths";
+        this.keys = keys;
+        this.values = values;
+        this.nodes = nodes;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Verifies that the proof is valid for a tree with the given root: that the nodes make up
+     * valid branches for all keys, starting from the root, and that the values at the end of the
+     * branches are the proven values.
+     */
+    public boolean verify (MerkleRoot root) {
+        if (nodes.length == 0)
+            // absence of value is trivially correct in an empty tree
+            return root.equals(EMPTY_TREE_ROOT) && Arrays.stream(values).allMatch(v -> v == null);
+
+        var store = new ProofNodeStore();
+        if (!store.addEncodings(nodes))
+            return false;
+
+        var rootNode = store.getNode(root.bytes);
+        if (rootNode == null)
+            return false;
+
+        var tree = new PatriciaTree(store, rootNode);
+        for (int i = 0; i < keys.length; i++) {
+            // using forBranch guarantees that the proof contains a valid branch
+            var finalStep = new BranchStep[1];
+            try {
+                tree.forBranch(keys[i], step -> {
+                    if (step.child == null) finalStep[0] = step;
+                });
+            } catch (MissingNode | ClassCastException e) {
+                // a node points to a child that is not in the proof, or has the wrong type
+                return false;
+            }
+
+            if (!Arrays.equals(values[i], finalStep[0].finalValue()))
+                return false;
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
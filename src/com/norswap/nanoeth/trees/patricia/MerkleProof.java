@@ -42,11 +42,34 @@ public final class MerkleProof {
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns the RLP encodings of the nodes in {@link #branch}, as expected by {@link
+     * ProofVerifier}.
+     */
+    public byte[][] encodedBranch() {
+        var encodings = new byte[branch.length][];
+        for (int i = 0; i < branch.length; i++)
+            encodings[i] = branch[i].compose().encode();
+        return encodings;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Verifies that the proof is valid for a tree with the given root: that the branch starts from
+     * the root and is valid for the key, and that the value at the end of the branch is the proven
+     * value.
+     * <p>
+     * To verify many proofs against the same root, prefer {@link ProofVerifier}.
+     */
     public boolean verify (MerkleRoot root) {
         if (branch.length == 0)
             // absence of value is trivially correct in an empty tree
             return value == null && root.equals(EMPTY_TREE_ROOT);
 
+        if (!branch[0].merkleRoot().equals(root))
+            return false;
+
         var store = new MapNodeStore();
         var tree = new PatriciaTree(store, branch[0]);
         for (var node: branch) store.addNode(node);
@@ -64,15 +87,8 @@ public final class MerkleProof {
             return false;
         }
 
-        var nibblesLeft = finalStep[0].nibblesLeft;
-        var foundValue = finalStep[0].node.value();
-
-        if (value != null)
-            // key must be fully used and the value must match
-            return nibblesLeft == 0 && Arrays.equals(value, foundValue);
-        else
-            // the branch must not prove a value
-            return !(nibblesLeft == 0 && foundValue != null);
+        // the branch must prove the value, or the absence of value
+        return Arrays.equals(value, finalStep[0].finalValue());
     }
 
     // ---------------------------------------------------------------------------------------------
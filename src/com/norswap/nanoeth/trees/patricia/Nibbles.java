@@ -2,6 +2,7 @@ package com.norswap.nanoeth.trees.patricia;
 
 import com.norswap.nanoeth.annotations.Retained;
 import com.norswap.nanoeth.utils.ByteUtils;
+import java.util.Arrays;
 
 /**
  * Represent a sequence of nibbles (half-bytes, 4-bit values), which are used as key fragments
@@ -63,7 +64,7 @@ public final class Nibbles {
      */
     public static Nibbles fromHexPrefix (@Retained byte[] hexPrefixEncoded) {
         var oddSize = (hexPrefixEncoded[0] & 0x10) != 0;
-        return new Nibbles(hexPrefixEncoded, oddSize ? 1 : 2, hexPrefixEncoded.length);
+        return new Nibbles(hexPrefixEncoded, oddSize ? 1 : 2, hexPrefixEncoded.length * 2);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -71,10 +72,15 @@ public final class Nibbles {
     /** Returns the nibble at the given index. */
     public byte get (int i) {
         assert 0 <= i && i < length() : "index out of range";
-        int index = start + i;
-        return index % 2 == 0
-            ? (byte) ((key[index / 2] & 0xF0) >>> 4)
-            : (byte)  (key[index / 2] & 0x0F);
+        return get(key, start + i);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the nibble at the given nibble index in {@code bytes}. */
+    public static byte get (byte[] bytes, int i) {
+        // high-order nibble (shift by 4) for even indices, low-order nibble for odd indices
+        return (byte) ((bytes[i >>> 1] >>> ((~i & 1) << 2)) & 0x0F);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -88,10 +94,48 @@ public final class Nibbles {
 
     /** Return the amount of nibbles that this object and {@code o} share as prefix. */
     public int sharedPrefix (Nibbles o) {
-        final int max = Math.min(length(), o.length());
+        return sharedPrefix(key, start, o.key, o.start, Math.min(length(), o.length()));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Return the amount of nibbles that this object shares as prefix with the nibbles of {@code
+     * bytes} starting at nibble index {@code from}.
+     * <p>
+     * This avoids allocating a {@link Nibbles} object for a key suffix during tree traversals.
+     */
+    public int sharedPrefix (byte[] bytes, int from) {
+        return sharedPrefix(key, start, bytes, from, Math.min(length(), bytes.length * 2 - from));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the amount of nibbles shared by the {@code length}-nibble sequences starting at
+     * nibble index {@code aFrom} in {@code a} and {@code bFrom} in {@code b}.
+     */
+    private static int sharedPrefix (byte[] a, int aFrom, byte[] b, int bFrom, int length) {
         int i = 0;
-        for (; i < max; ++i)
-            if (get(i) != o.get(i)) break;
+        if (((aFrom ^ bFrom) & 1) == 0) {
+            // Both sequences have the same alignment: compare whole bytes, which Arrays#mismatch
+            // does multiple bytes at a time.
+            if ((aFrom & 1) == 1 && length > 0) {
+                if (get(a, aFrom) != get(b, bFrom)) return 0;
+                i = 1;
+            }
+            int aByte = (aFrom + i) >>> 1;
+            int bByte = (bFrom + i) >>> 1;
+            int bytes = (length - i) / 2;
+            int mismatch = Arrays.mismatch(a, aByte, aByte + bytes, b, bByte, bByte + bytes);
+            if (mismatch >= 0) {
+                i += 2 * mismatch;
+                return ((a[aByte + mismatch] ^ b[bByte + mismatch]) & 0xF0) == 0 ? i + 1 : i;
+            }
+            i += 2 * bytes;
+        }
+        for (; i < length; ++i)
+            if (get(a, aFrom + i) != get(b, bFrom + i)) break;
         return i;
     }
 
@@ -227,7 +271,7 @@ public final class Nibbles {
     @Override public int hashCode () {
         int hash = 0;
         for (int i = start; i < end; i++)
-            hash = 31 * hash + get(i);
+            hash = 31 * hash + get(key, i);
         return hash;
     }
 
@@ -4,6 +4,7 @@ import com.norswap.nanoeth.annotations.Nullable;
 import com.norswap.nanoeth.annotations.Retained;
 import com.norswap.nanoeth.trees.patricia.memory.TreeNodeStore;
 import com.norswap.nanoeth.trees.patricia.store.MapNodeStore;
+import com.norswap.nanoeth.trees.patricia.store.PruningNodeStore;
 import com.norswap.nanoeth.utils.Pair;
 
 /**
@@ -66,6 +67,24 @@ public interface NodeStore {
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns a new branch node with the given value, whose child for nibble {@code i} is {@code
+     * children[i]} (possibly null) if bit {@code i} of {@code mask} is set, or the child of {@code
+     * base} for that nibble otherwise (no child if {@code base} is null).
+     * <p>
+     * Unlike {@link #branchNode(Pair[])}, the children are used as-is: the nibble for their slot
+     * is already consumed from their keys. It is the responsability of the caller to ensure that
+     * the returned node is valid (i.e. has at a least a child and a value or two children).
+     * <p>
+     * This is meant for batch updates ({@link PatriciaBatch}), which replace many children at once.
+     * The returned value must be added to the store, but {@code base} is <b>not</b> removed from
+     * the store. Nothing should be done with the children.
+     */
+    PatriciaBranchNode branchNode (@Nullable PatriciaBranchNode base, int mask,
+            @Nullable PatriciaNode[] children, @Nullable @Retained byte[] value);
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Returns a copy of {@code branch} with its value set to {@code value} (possibly null).
      * <p>
@@ -142,7 +161,7 @@ public interface NodeStore {
      * <p>
      * The major example is that for the chain state, reorgs are possible, so we want to keep old
      * nodes around. However, we might want to record which block removed which nodes, so that
-     * we may eventually prune the tree.
+     * we may eventually prune the tree. This is what {@link PruningNodeStore} does.
      */
     void removeNode (PatriciaNode node);
 
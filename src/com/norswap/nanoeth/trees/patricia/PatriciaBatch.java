@@ -0,0 +1,414 @@
+package com.norswap.nanoeth.trees.patricia;
+
+import com.norswap.nanoeth.annotations.Nullable;
+import com.norswap.nanoeth.annotations.Retained;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A mutable batch of updates to a {@link PatriciaTree}, obtained via {@link PatriciaTree#batch()}.
+ * <p>
+ * Each call to {@link PatriciaTree#add} or {@link PatriciaTree#remove} creates new nodes for the
+ * whole path from the root to the modified node — and for store-backed trees, computes their cap
+ * (i.e. hashes them) — only for most of these nodes to be replaced by the next update.
+ * <p>
+ * A batch instead applies updates in place to a mutable copy of the tree, which is expanded
+ * lazily: a node of the original tree is only copied when an update goes through it. Nodes are
+ * only created through the store when {@link #commit()} is called: once per node that was
+ * modified, while unmodified subtrees are reused as-is. As a result, cap values are computed at
+ * most once per node of the resulting tree, when its Merkle root is requested.
+ * <p>
+ * The original tree is not modified, but nodes that do not appear in the committed tree are
+ * removed from the store at commit time, as they would have been by the equivalent sequence of
+ * {@link PatriciaTree#add} and {@link PatriciaTree#remove} calls.
+ */
+public final class PatriciaBatch {
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final NodeStore store;
+
+    private @Nullable Node root;
+
+    /** Nodes of the original tree that were dropped from the mutable tree. */
+    private final ArrayList<PatriciaNode> discarded = new ArrayList<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    PatriciaBatch (PatriciaTree tree) {
+        this.store = tree.store;
+        this.root = tree.root == null ? null : new Ref(tree.root);
+    }
+
+    // =============================================================================================
+    // region Mutable Nodes
+    // =============================================================================================
+
+    private static abstract class Node {
+        /** The node of the original tree this node was expanded from, if any. */
+        final @Nullable PatriciaNode original;
+
+        Node (@Nullable PatriciaNode original) {
+            this.original = original;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** A node (and the subtree under it) of the original tree that hasn't been modified. */
+    private static final class Ref extends Node {
+        Ref (PatriciaNode node) {
+            super(node);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Leaf extends Node {
+        Nibbles keySuffix;
+        byte[] value;
+
+        Leaf (Nibbles keySuffix, byte[] value, @Nullable PatriciaNode original) {
+            super(original);
+            this.keySuffix = keySuffix;
+            this.value = value;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Extension extends Node {
+        Nibbles keyFragment;
+        Node child;
+
+        Extension (Nibbles keyFragment, Node child, @Nullable PatriciaNode original) {
+            super(original);
+            this.keyFragment = keyFragment;
+            this.child = child;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Branch extends Node {
+        @Nullable byte[] value;
+
+        /**
+         * Children of the branch. For branches expanded from the original tree, only valid for the
+         * nibbles whose bit is set in {@link #loaded}, the other children being those of {@link
+         * #original}.
+         */
+        final Node[] children = new Node[16];
+
+        int loaded;
+
+        Branch (@Nullable PatriciaBranchNode original) {
+            super(original);
+            this.value = original == null ? null : original.value();
+            this.loaded = original == null ? 0xFFFF : 0;
+        }
+
+        void set (int nibble, @Nullable Node child) {
+            children[nibble] = child;
+            loaded |= 1 << nibble;
+        }
+
+        boolean hasChildAt (int nibble) {
+            return (loaded & (1 << nibble)) != 0
+                ? children[nibble] != null
+                : ((PatriciaBranchNode) original).hasChildAt(nibble);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns a mutable copy of the given node of the original tree. */
+    private Node expand (PatriciaNode node) {
+        if (node instanceof PatriciaLeafNode) {
+            var leaf = (PatriciaLeafNode) node;
+            return new Leaf(leaf.keySuffix, leaf.value, leaf);
+        }
+        if (node instanceof PatriciaExtensionNode) {
+            var ext = (PatriciaExtensionNode) node;
+            return new Extension(ext.keyFragment(), new Ref(ext.child(store)), ext);
+        }
+        return new Branch((PatriciaBranchNode) node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the child of the branch for the given nibble, or null. */
+    private @Nullable Node childAt (Branch branch, int nibble) {
+        if ((branch.loaded & (1 << nibble)) == 0) {
+            var child = ((PatriciaBranchNode) branch.original).childAt(store, nibble);
+            branch.set(nibble, child == null ? null : new Ref(child));
+        }
+        return branch.children[nibble];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Records that the given node was dropped from the mutable tree. */
+    private void discard (Node node) {
+        if (node.original != null)
+            discarded.add(node.original);
+    }
+
+    // endregion
+    // =============================================================================================
+    // region Public API
+    // =============================================================================================
+
+    /**
+     * Returns the value associated with the given key, taking into account the updates made so
+     * far, or null if no such value exists.
+     */
+    public @Nullable byte[] get (byte[] key) {
+        return lookup(root, key, 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Associates the given value with the given key (does nothing if the key is empty), and
+     * returns this batch.
+     */
+    public PatriciaBatch put (byte[] key, @Retained byte[] value) {
+        if (key.length == 0 || Arrays.equals(get(key), value)) return this;
+        root = insert(root, new Nibbles(key), value);
+        return this;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Removes the entry for the given key (if any), and returns this batch. */
+    public PatriciaBatch remove (byte[] key) {
+        if (get(key) == null) return this;
+        root = remove(root, new Nibbles(key));
+        return this;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates the nodes of the updated tree in the store, and returns the updated tree. The batch
+     * can still be used afterwards, to prepare further updates to the returned tree.
+     */
+    public PatriciaTree commit() {
+        var newRoot = root == null ? null : commit(root);
+        for (var node: discarded)
+            store.removeNode(node);
+        discarded.clear();
+        root = newRoot == null ? null : new Ref(newRoot);
+        return new PatriciaTree(store, newRoot);
+    }
+
+    // endregion
+    // =============================================================================================
+    // region Implementation
+    // =============================================================================================
+
+    /** Lookup the value for the suffix of {@code key} starting at nibble index {@code from}. */
+    private @Nullable byte[] lookup (@Nullable Node node, byte[] key, int from) {
+        if (node == null)
+            return null;
+        if (node instanceof Ref)
+            return node.original.lookup(store, key, from);
+        if (node instanceof Leaf) {
+            var leaf = (Leaf) node;
+            int len = leaf.keySuffix.length();
+            return len == key.length * 2 - from && leaf.keySuffix.sharedPrefix(key, from) == len
+                ? leaf.value
+                : null;
+        }
+        if (node instanceof Extension) {
+            var ext = (Extension) node;
+            int len = ext.keyFragment.length();
+            return ext.keyFragment.sharedPrefix(key, from) == len
+                ? lookup(ext.child, key, from + len)
+                : null;
+        }
+        var branch = (Branch) node;
+        return from == key.length * 2
+            ? branch.value
+            : lookup(childAt(branch, Nibbles.get(key, from)), key, from + 1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Sets the value for {@code key} in a branch, which must not have an entry for it. */
+    private static void setEntry (Branch branch, Nibbles key, byte[] value) {
+        if (key.length() == 0)
+            branch.value = value;
+        else
+            branch.set(key.get(0), new Leaf(key.dropFirst(1), value, null));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Node insert (@Nullable Node node, Nibbles key, byte[] value) {
+        if (node == null)
+            return new Leaf(key, value, null);
+        if (node instanceof Ref)
+            node = expand(node.original);
+
+        if (node instanceof Leaf) {
+            var leaf = (Leaf) node;
+            int shared = leaf.keySuffix.sharedPrefix(key);
+            if (shared == leaf.keySuffix.length() && shared == key.length()) {
+                leaf.value = value;
+                return leaf;
+            }
+            // split into a branch node with two children (or a child and a value)
+            var branch = new Branch(null);
+            if (shared == leaf.keySuffix.length()) {
+                branch.value = leaf.value;
+                discard(leaf);
+            } else {
+                branch.set(leaf.keySuffix.get(shared), leaf);
+                leaf.keySuffix = leaf.keySuffix.dropFirst(shared + 1);
+            }
+            setEntry(branch, key.dropFirst(shared), value);
+            return shared == 0 ? branch : new Extension(key.prefix(shared), branch, null);
+        }
+
+        if (node instanceof Extension) {
+            var ext = (Extension) node;
+            int len = ext.keyFragment.length();
+            int shared = ext.keyFragment.sharedPrefix(key);
+            if (shared == len) {
+                ext.child = insert(ext.child, key.dropFirst(len), value);
+                return ext;
+            }
+            // split into a branch node with two children (or a child and a value)
+            var branch = new Branch(null);
+            if (shared == len - 1) {
+                branch.set(ext.keyFragment.get(shared), ext.child);
+                discard(ext);
+            } else {
+                branch.set(ext.keyFragment.get(shared), ext);
+                ext.keyFragment = ext.keyFragment.dropFirst(shared + 1);
+            }
+            setEntry(branch, key.dropFirst(shared), value);
+            return shared == 0 ? branch : new Extension(key.prefix(shared), branch, null);
+        }
+
+        var branch = (Branch) node;
+        if (key.length() == 0) {
+            branch.value = value;
+        } else {
+            int nibble = key.get(0);
+            branch.set(nibble, insert(childAt(branch, nibble), key.dropFirst(1), value));
+        }
+        return branch;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Removes the entry for the key, which must be present under the node. */
+    private @Nullable Node remove (Node node, Nibbles key) {
+        if (node instanceof Ref)
+            node = expand(node.original);
+
+        if (node instanceof Leaf) {
+            discard(node);
+            return null;
+        }
+
+        if (node instanceof Extension) {
+            var ext = (Extension) node;
+            var child = remove(ext.child, key.dropFirst(ext.keyFragment.length()));
+            if (child == null) {
+                discard(ext);
+                return null;
+            }
+            ext.child = child;
+            return prepend(ext.keyFragment, ext, child);
+        }
+
+        var branch = (Branch) node;
+        if (key.length() == 0) {
+            branch.value = null;
+        } else {
+            int nibble = key.get(0);
+            branch.set(nibble, remove(childAt(branch, nibble), key.dropFirst(1)));
+        }
+
+        int count = 0, last = -1;
+        for (int i = 0; i < 16; i++)
+            if (branch.hasChildAt(i)) {
+                ++count;
+                last = i;
+            }
+
+        if (count + (branch.value == null ? 0 : 1) >= 2)
+            return branch;
+
+        discard(branch);
+        if (count == 0) // only the value is left, make this a leaf node
+            return branch.value == null ? null : new Leaf(Nibbles.EMPTY, branch.value, null);
+
+        // a single child is left, prepend its nibble
+        var child = childAt(branch, last);
+        if (child instanceof Ref && !(child.original instanceof PatriciaBranchNode))
+            child = expand(child.original);
+        return prepend(new Nibbles((byte) last), null, child);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the node obtained by prepending {@code nibbles} to {@code child}, merging them if
+     * {@code child} is a leaf or extension node. If {@code ext} is non-null, it is the extension
+     * node holding {@code nibbles} and {@code child}, and it is returned if {@code child} is a
+     * branch node.
+     */
+    private Node prepend (Nibbles nibbles, @Nullable Extension ext, Node child) {
+        if (child instanceof Leaf) {
+            var leaf = (Leaf) child;
+            leaf.keySuffix = nibbles.concat(leaf.keySuffix);
+            if (ext != null) discard(ext);
+            return leaf;
+        }
+        if (child instanceof Extension) {
+            var childExt = (Extension) child;
+            childExt.keyFragment = nibbles.concat(childExt.keyFragment);
+            if (ext != null) discard(ext);
+            return childExt;
+        }
+        return ext != null ? ext : new Extension(nibbles, child, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private PatriciaNode commit (Node node) {
+        if (node instanceof Ref)
+            return node.original;
+
+        PatriciaNode out;
+        if (node instanceof Leaf) {
+            var leaf = (Leaf) node;
+            out = store.leafNode(leaf.keySuffix, leaf.value);
+        }
+        else if (node instanceof Extension) {
+            var ext = (Extension) node;
+            out = store.extensionNode(ext.keyFragment, (PatriciaBranchNode) commit(ext.child));
+        }
+        else {
+            var branch = (Branch) node;
+            var children = new PatriciaNode[16];
+            for (int i = 0; i < 16; i++)
+                if ((branch.loaded & (1 << i)) != 0 && branch.children[i] != null)
+                    children[i] = commit(branch.children[i]);
+            out = store.branchNode((PatriciaBranchNode) branch.original, branch.loaded, children,
+                branch.value);
+        }
+
+        if (node.original != null)
+            store.removeNode(node.original);
+        return out;
+    }
+
+    // endregion
+    // =============================================================================================
+}
@@ -70,10 +70,10 @@ public abstract class PatriciaBranchNode extends PatriciaNode {
 
     // ---------------------------------------------------------------------------------------------
 
-    @Override public byte[] lookup (NodeStore store, Nibbles keySuffix) {
-        if (keySuffix.length() == 0) return value();
-        var child = childAt(store, keySuffix.get(0));
-        return child != null ? child.lookup(store, keySuffix.dropFirst(1)) : null;
+    @Override public @Nullable byte[] lookup (NodeStore store, byte[] key, int from) {
+        if (from == key.length * 2) return value();
+        var child = childAt(store, Nibbles.get(key, from));
+        return child != null ? child.lookup(store, key, from + 1) : null;
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -99,14 +99,25 @@ public abstract class PatriciaBranchNode extends PatriciaNode {
 
     @Override public PatriciaNode remove (NodeStore store, Nibbles keySuffix) {
 
-        if (keySuffix.length() == 0) // erase value
-            return value() == null
-                ? this
-                : store.withValue(this, null);
+        if (keySuffix.length() == 0) { // erase value
+            if (value() == null)
+                return this;
+            if (childAndValueCount() > 2)
+                return store.withValue(this, null);
+            for (int i = 0; i < 16; i++) {
+                // a single child is left, prepend index nibble
+                if (!hasChildAt(i)) continue;
+                store.removeNode(this);
+                return store.prepend(new Nibbles((byte) i), childAt(store, i));
+            }
+        }
 
         int index  = keySuffix.get(0);
         var suffix = keySuffix.dropFirst(1);
         var oldChild = childAt(store, index);
+        if (oldChild == null)
+            return this; // not found
+
         var newChild = oldChild.remove(store, suffix);
 
         if (newChild == oldChild)
@@ -131,6 +142,7 @@ public abstract class PatriciaBranchNode extends PatriciaNode {
         for (int i = 0; i < 16; i++) {
             // a single child is left, prepend index nibble
             if (!hasChildAt(i) || i == index) continue;
+            store.removeNode(this);
             return store.prepend(new Nibbles((byte) i), childAt(store, i));
         }
 
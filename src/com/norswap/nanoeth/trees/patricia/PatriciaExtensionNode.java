@@ -54,10 +54,10 @@ public abstract class PatriciaExtensionNode extends PatriciaNode {
 
     // ---------------------------------------------------------------------------------------------
 
-    @Override public byte[] lookup (NodeStore store, Nibbles keySuffix) {
+    @Override public @Nullable byte[] lookup (NodeStore store, byte[] key, int from) {
         int len = keyFragment().length();
-        return keyFragment().sharedPrefix(keySuffix) == len
-            ? child(store).lookup(store, keySuffix.dropFirst(len))
+        return keyFragment().sharedPrefix(key, from) == len
+            ? child(store).lookup(store, key, from + len)
             : null;
     }
 
@@ -67,6 +67,8 @@ public abstract class PatriciaExtensionNode extends PatriciaNode {
 
         int prefixLen = keyFragment().sharedPrefix(keySuffix);
 
+        store.removeNode(this);
+
         // the whole key fragment is shared, merge child
         if (prefixLen == keyFragment().length())
             return store.extensionNode(
@@ -1,5 +1,6 @@
 package com.norswap.nanoeth.trees.patricia;
 
+import com.norswap.nanoeth.annotations.Nullable;
 import com.norswap.nanoeth.annotations.Retained;
 import com.norswap.nanoeth.rlp.RLP;
 import com.norswap.nanoeth.utils.ByteUtils;
@@ -42,8 +43,9 @@ public final class PatriciaLeafNode extends PatriciaNode {
 
     // ---------------------------------------------------------------------------------------------
 
-    @Override public byte[] lookup (NodeStore store, Nibbles keySuffix) {
-        return keySuffix.equals(this.keySuffix)
+    @Override public @Nullable byte[] lookup (NodeStore store, byte[] key, int from) {
+        int len = keySuffix.length();
+        return len == key.length * 2 - from && keySuffix.sharedPrefix(key, from) == len
             ? value
             : null;
     }
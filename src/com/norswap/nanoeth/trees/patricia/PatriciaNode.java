@@ -4,10 +4,12 @@ import com.norswap.nanoeth.annotations.Nullable;
 import com.norswap.nanoeth.data.MerkleRoot;
 import com.norswap.nanoeth.rlp.RLP;
 import com.norswap.nanoeth.rlp.RLPParsingException;
+import com.norswap.nanoeth.trees.patricia.store.SegmentNodeStore;
 import com.norswap.nanoeth.trees.patricia.store.StorePatriciaBranchNode;
 import com.norswap.nanoeth.trees.patricia.store.StorePatriciaExtensionNode;
 import com.norswap.nanoeth.utils.Hashing;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import static com.norswap.nanoeth.rlp.RLPParsing.getBytes;
 import static com.norswap.nanoeth.rlp.RLPParsing.getItems;
@@ -20,6 +22,8 @@ import static com.norswap.nanoeth.rlp.RLPParsing.getItems;
  * but such an implementation is not realistic in practice as the mainnet account trie is itself
  * larger than 20GB. The inclusion of this interface enables more efficient implementation to be
  * plugged into nanoeth, by subclassing {@link PatriciaTree}.
+ * <p>
+ * For tries that do not fit in memory, {@link SegmentNodeStore} persists nodes to disk.
  */
 public abstract class PatriciaNode {
 
@@ -50,7 +54,8 @@ public abstract class PatriciaNode {
             var children = new byte[16][];
             for (int i = 0; i < 16; ++i)
                 children[i] = getChildCap(rlp.itemAt(i));
-            return new StorePatriciaBranchNode(getBytes(rlp, 16), children);
+            var value = getBytes(rlp, 16);
+            return new StorePatriciaBranchNode(value.length == 0 ? null : value, children);
         }
 
         throw new RLPParsingException("wrong sequence size for patricia tree node: " + items.length);
@@ -58,10 +63,12 @@ public abstract class PatriciaNode {
 
     // ---------------------------------------------------------------------------------------------
 
-    private static byte[] getChildCap (RLP rlp) {
-        return rlp.isBytes()
-                ? rlp.bytes()
-                : rlp.encode();
+    /** Returns the cap of a child from its wrapped form, or null if the child slot is empty. */
+    private static @Nullable byte[] getChildCap (RLP rlp) {
+        if (!rlp.isBytes())
+            return rlp.encode();
+        var bytes = rlp.bytes();
+        return bytes.length == 0 ? null : bytes;
     }
 
     // =============================================================================================
@@ -98,12 +105,15 @@ public abstract class PatriciaNode {
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Lookup the entry with the given key suffix, the suffix of a sequence of nibbles, where the
-     * missing prefix was used to reach the present node.
+     * Lookup the entry with the given key suffix, made of the nibbles of {@code key} starting at
+     * nibble index {@code from}, where the missing prefix was used to reach the present node.
      * <p>
-     * This must handle empty nibble sequences.
+     * The key is passed as an array and an index (rather than as a {@link Nibbles} object) so that
+     * lookups do not allocate anything along the path.
+     * <p>
+     * This must handle empty key suffixes ({@code from == key.length * 2}).
      */
-    public abstract byte[] lookup (NodeStore store, Nibbles keySuffix);
+    public abstract @Nullable byte[] lookup (NodeStore store, byte[] key, int from);
 
     // ---------------------------------------------------------------------------------------------
 
@@ -151,6 +161,29 @@ public abstract class PatriciaNode {
 
     // ---------------------------------------------------------------------------------------------
 
+    /** Whether the cap of this node has already been computed (cf. {@link #cap()}). */
+    public final boolean hasCap() {
+        return cap != null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the children of this node that it links to directly (as opposed to referencing them
+     * via their cap), and whose cap must therefore be computed to compute this node's cap.
+     * <p>
+     * This is used by {@link PatriciaTree#merkleRoot(ForkJoinPool)} to compute the caps of
+     * independent subtrees in parallel. The default implementation returns an empty array, which
+     * is correct for leaves and store-backed nodes.
+     */
+    public PatriciaNode[] linkedChildren() {
+        return NO_CHILDREN;
+    }
+
+    private static final PatriciaNode[] NO_CHILDREN = new PatriciaNode[0];
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Packages the given cap as a RLP byte array if it's a hash (length 32) or as an
      * already-encoded RLP sequence if it's not.
@@ -4,12 +4,19 @@ import com.norswap.nanoeth.annotations.Nullable;
 import com.norswap.nanoeth.annotations.Wrapper;
 import com.norswap.nanoeth.data.MerkleRoot;
 import com.norswap.nanoeth.rlp.RLP;
+import com.norswap.nanoeth.trees.patricia.store.CapKey;
 import com.norswap.nanoeth.utils.Hashing;
+import com.norswap.nanoeth.utils.Pair;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.Consumer;
 
 /**
@@ -63,7 +70,7 @@ public class PatriciaTree {
     /** Lookup the value associated with the given key, or null if no such value exists. */
     public @Nullable byte[] lookup (byte[] key) {
         return root != null
-            ? root.lookup(store, new Nibbles(key, 0, key.length * 2))
+            ? root.lookup(store, key, 0)
             : null;
     }
 
@@ -97,6 +104,33 @@ public class PatriciaTree {
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns a batch of updates to this tree, which is much more efficient than successive calls
+     * to {@link #add} and {@link #remove} when making many changes. See {@link PatriciaBatch}.
+     */
+    public PatriciaBatch batch() {
+        return new PatriciaBatch(this);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the transformed tree, after associating each key with the value at the same index
+     * (ignoring empty keys). This is equivalent to, but more efficient than, successive calls to
+     * {@link #add}.
+     * <p>
+     * The store might be modified as a result, refer to the documentation for the used store.
+     */
+    public PatriciaTree addAll (byte[][] keys, byte[][] values) {
+        assert keys.length == values.length : "keys and values have different lengths";
+        var batch = batch();
+        for (int i = 0; i < keys.length; i++)
+            batch.put(keys[i], values[i]);
+        return batch.commit();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /** Collects all (key, value) entries in the tree in a map, and returns it. */
     public Map<byte[], byte[]> toMap() {
         if (root == null)
@@ -108,6 +142,20 @@ public class PatriciaTree {
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns a lazy iterator over the (key, value) entries whose key is in {@code [start, end)},
+     * in increasing order of key (comparing keys as unsigned byte sequences, where a key comes
+     * before the keys it is a prefix of). If {@code end} is null, the range is unbounded.
+     * <p>
+     * Unlike {@link #toMap()}, nodes are only retrieved from the store as the iteration reaches
+     * them, and subtrees that lie before {@code start} are skipped.
+     */
+    public Iterator<Pair<byte[], byte[]>> iterator (byte[] start, @Nullable byte[] end) {
+        return new RangeIterator(this, start, end);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Returns the Merkle root of the tree, i.e. the TRIE function in the yellowpaper (equation 195).
      */
@@ -119,6 +167,67 @@ public class PatriciaTree {
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Number of branch node levels under which subtrees get their own fork-join task in {@link
+     * #merkleRoot(ForkJoinPool)}: up to 16^2 = 256 tasks, enough to keep any reasonable number of
+     * cores busy, while subtrees remain big enough to amortize the cost of forking.
+     */
+    private static final int PARALLEL_DEPTH = 2;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #merkleRoot()}, but computes the caps of independent subtrees in parallel in
+     * the given pool, fanning out over the children of the top-level branch nodes.
+     * <p>
+     * This is only useful when many node caps have to be computed, e.g. after many changes to a
+     * tree whose nodes are linked in memory (like {@link
+     * com.norswap.nanoeth.trees.patricia.memory.TreeNodeStore}), as store-backed nodes reference
+     * their children via their already computed cap. The result is identical to {@link
+     * #merkleRoot()}, and the computed caps are memoized in the same way.
+     * <p>
+     * The tree must not be used concurrently from other threads during the call.
+     */
+    public MerkleRoot merkleRoot (ForkJoinPool pool) {
+        if (root == null)
+            return EMPTY_TREE_ROOT;
+        pool.invoke(new CapTask(root, 0));
+        return root.merkleRoot();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Computes the cap of a node, after computing the caps of the children whose cap is missing in
+     * parallel, if the node is less than {@link #PARALLEL_DEPTH} branch levels deep.
+     */
+    @SuppressWarnings("serial")
+    private static final class CapTask extends RecursiveAction {
+        private final PatriciaNode node;
+        private final int depth;
+
+        CapTask (PatriciaNode node, int depth) {
+            this.node = node;
+            this.depth = depth;
+        }
+
+        @Override protected void compute() {
+            if (node.hasCap()) return;
+            if (depth < PARALLEL_DEPTH) {
+                int childDepth = node instanceof PatriciaBranchNode ? depth + 1 : depth;
+                var tasks = new ArrayList<CapTask>();
+                for (var child: node.linkedChildren())
+                    if (!child.hasCap())
+                        tasks.add(new CapTask(child, childDepth));
+                // the joins make the memoized caps of the children visible to this thread
+                invokeAll(tasks);
+            }
+            node.cap();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Calls {@code f} with every node on the branch for {@code keySuffix} (represented by a {@link
      * PatriciaNode#step step}, where this branch is the node path from this node towards the node
@@ -155,8 +264,8 @@ public class PatriciaTree {
 
             forBranch(key, step -> {
                 nodes.add(step.node);
-                if (step.nibblesLeft == 0)
-                    value[0] = step.node.value();
+                if (step.child == null)
+                    value[0] = step.finalValue();
             });
 
             return new MerkleProof(key, value[0], nodes.toArray(PatriciaNode[]::new));
@@ -164,6 +273,68 @@ public class PatriciaTree {
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Returns a Merkle proof for all the given keys, proving either their association to their
+     * values, or their absence of value. The nodes shared by the branches of multiple keys are
+     * only included once in the proof.
+     */
+    public MerkleMultiproof proveAll (byte[]... keys) {
+        var values = new byte[keys.length][];
+        if (root == null)
+            return new MerkleMultiproof(keys, values, new byte[0][]);
+
+        var nodes = new LinkedHashMap<CapKey, byte[]>();
+        for (int i = 0; i < keys.length; i++) {
+            int index = i; // effectively final copy for the lambda
+            forBranch(keys[i], step -> {
+                var cap = step.node.cap();
+                // embedded nodes are part of their parent's encoding
+                if (cap.length == 32 || step.node == root)
+                    nodes.computeIfAbsent(CapKey.of(cap), k -> step.node.compose().encode());
+                if (step.child == null)
+                    values[index] = step.finalValue();
+            });
+        }
+        return new MerkleMultiproof(keys, values, nodes.values().toArray(byte[][]::new));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a proof for the entries with keys starting at {@code start}, in increasing order,
+     * up to {@code maxEntries} entries.
+     * <p>
+     * If {@code end} is not null, the entries stop at the first key that is not before {@code
+     * end}. As in snap sync, this entry is included, so that the proof shows that there are no
+     * other keys before {@code end}.
+     *
+     * @throws IllegalArgumentException if {@code maxEntries} is not positive
+     */
+    public RangeProof proveRange (byte[] start, @Nullable byte[] end, int maxEntries) {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("non-positive max entries: " + maxEntries);
+
+        var keys = new ArrayList<byte[]>();
+        var values = new ArrayList<byte[]>();
+        var it = iterator(start, null);
+        while (it.hasNext() && keys.size() < maxEntries) {
+            var entry = it.next();
+            keys.add(entry.fst);
+            values.add(entry.snd);
+            if (end != null && Arrays.compareUnsigned(entry.fst, end) >= 0)
+                break;
+        }
+
+        var boundaries = keys.isEmpty()
+            ? proveAll(start)
+            : proveAll(start, keys.get(keys.size() - 1));
+        return new RangeProof(start,
+            keys.toArray(byte[][]::new), values.toArray(byte[][]::new), !it.hasNext(),
+            boundaries.nodes);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     @Override public boolean equals (Object o) {
         return this == o || o instanceof PatriciaTree && Objects.equals(root, ((PatriciaTree) o).root);
     }
@@ -0,0 +1,69 @@
+package com.norswap.nanoeth.trees.patricia;
+
+import com.norswap.nanoeth.annotations.Nullable;
+import com.norswap.nanoeth.rlp.RLP;
+import com.norswap.nanoeth.rlp.RLPParsingException;
+import com.norswap.nanoeth.trees.patricia.store.CapKey;
+import com.norswap.nanoeth.trees.patricia.store.StoreNodeStore;
+import com.norswap.nanoeth.utils.Hashing;
+import java.util.HashMap;
+
+/**
+ * Short-lived node store used to verify proofs, holding the nodes parsed from a proof, keyed by the
+ * hash of their encoding.
+ * <p>
+ * Nodes embedded in their parent (with a cap shorter than 32 bytes) are parsed from their cap when
+ * requested, as proofs need not include them separately. Nodes are never removed from the store.
+ */
+final class ProofNodeStore extends StoreNodeStore {
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final HashMap<CapKey, PatriciaNode> nodes = new HashMap<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Parses the given node encodings and adds them to the store, returning false if some of them
+     * are malformed. Each node is hashed exactly once, and is keyed by the hash of its encoding,
+     * even if it's shorter than 32 bytes (as is the root of small trees).
+     */
+    boolean addEncodings (byte[][] encodings) {
+        for (var encoding: encodings) {
+            try {
+                var node = PatriciaNode.parse(RLP.decode(encoding));
+                nodes.put(CapKey.of(Hashing.keccak(encoding).bytes), node);
+            } catch (RLPParsingException | IllegalArgumentException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public @Nullable PatriciaNode getNode (byte[] cap) {
+        if (cap.length == 32)
+            return nodes.get(CapKey.of(cap));
+        try { // embedded node
+            return PatriciaNode.parse(RLP.decode(cap));
+        } catch (RLPParsingException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public <T extends PatriciaNode> T addNode (T node) {
+        var cap = node.cap();
+        if (cap.length == 32)
+            nodes.put(CapKey.of(cap), node);
+        return node;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public void removeNode (PatriciaNode node) {}
+
+    // ---------------------------------------------------------------------------------------------
+}
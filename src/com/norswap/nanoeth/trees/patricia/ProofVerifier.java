@@ -0,0 +1,174 @@
+package com.norswap.nanoeth.trees.patricia;
+
+import com.norswap.nanoeth.annotations.Nullable;
+import com.norswap.nanoeth.data.MerkleRoot;
+import com.norswap.nanoeth.rlp.IllegalRLPAccess;
+import com.norswap.nanoeth.rlp.RLPView;
+import com.norswap.nanoeth.trees.patricia.store.CapKey;
+import com.norswap.nanoeth.utils.Hashing;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Verifies Merkle proofs against a trusted Merkle root, working directly on the RLP encoding of
+ * the proof nodes (see {@link MerkleProof#encodedBranch()}).
+ * <p>
+ * Unlike {@link MerkleProof#verify(MerkleRoot)}, no {@link PatriciaNode} objects are built: each
+ * node is read through an {@link RLPView}, and the reference to the next node on the branch is
+ * compared directly with the next node (its hash, or its encoding for embedded nodes).
+ * <p>
+ * Moreover, the verifier remembers the encodings of the nodes it has already verified against
+ * the root (up to a bounded number of nodes). When the encoding of a node is identical to that of
+ * a verified node with the expected hash, the node needs not be hashed again. This is typically
+ * the case of the upper levels of the tree, shared by many proofs against the same root (e.g. the
+ * state root of a block).
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class ProofVerifier {
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Default maximum number of verified nodes remembered by a verifier. */
+    public static final int DEFAULT_CACHE_SIZE = 4096;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** The trusted root. */
+    public final MerkleRoot root;
+
+    /** Maps the hashes of verified nodes to their encoding. */
+    private final LinkedHashMap<CapKey, byte[]> verified;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Creates a verifier for proofs against the given root, remembering up to {@code cacheSize}
+     * verified nodes. */
+    public ProofVerifier (MerkleRoot root, int cacheSize) {
+        this.root = root;
+        this.verified = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry (Map.Entry<CapKey, byte[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Creates a verifier for proofs against the given root, with {@link #DEFAULT_CACHE_SIZE}. */
+    public ProofVerifier (MerkleRoot root) {
+        this(root, DEFAULT_CACHE_SIZE);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Same as {@code verify(proof.key, proof.value, proof.encodedBranch())}. */
+    public boolean verify (MerkleProof proof) {
+        return verify(proof.key, proof.value, proof.encodedBranch());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Verifies that {@code branch} (the RLP encodings of the nodes on the branch for {@code key},
+     * starting from the root) proves that {@code key} is associated with {@code value} (or has no
+     * value if {@code value} is null) in the tree with the verifier's root.
+     * <p>
+     * The branch must include the nodes that are embedded in their parent, and must not include
+     * any node past the one that holds the value (or proves its absence). Malformed nodes cause
+     * the verification to fail.
+     */
+    public boolean verify (byte[] key, @Nullable byte[] value, byte[][] branch) {
+        if (branch.length == 0)
+            // absence of value is trivially correct in an empty tree
+            return value == null && root.equals(PatriciaTree.EMPTY_TREE_ROOT);
+        try {
+            return verifyBranch(key, value, branch);
+        } catch (IllegalArgumentException | IllegalRLPAccess e) {
+            return false; // malformed node
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean verifyBranch (byte[] key, @Nullable byte[] value, byte[][] branch) {
+        int keyLength = key.length * 2;
+        int index = 0; // nibble index in key
+
+        // reference to the next node: a hash (bytes item), or an embedded node (sequence item)
+        RLPView ref = null;
+
+        for (int i = 0; i < branch.length; i++) {
+            var encoding = branch[i];
+            if (ref == null ? !checkHash(root.bytes, encoding) : !checkRef(ref, encoding))
+                return false;
+
+            var node = RLPView.of(encoding);
+            var item = node.first();
+            var second = item.next();
+            boolean last = i == branch.length - 1;
+
+            if (second != null && second.next() == null) { // leaf or extension
+                int flags = (item.byteAt(0) & 0xF0) >>> 4;
+                int fragmentStart = (flags & 1) != 0 ? 1 : 2; // nibble index in the hex-prefix
+                int fragmentLength = item.payloadSize() * 2 - fragmentStart;
+                boolean matches = fragmentLength <= keyLength - index;
+                for (int j = 0; matches && j < fragmentLength; j++)
+                    matches = nibble(item, fragmentStart + j) == Nibbles.get(key, index + j);
+
+                if ((flags & 2) != 0) // leaf
+                    return last && Arrays.equals(value,
+                        matches && fragmentLength == keyLength - index ? second.bytes() : null);
+                if (!matches) // extension that diverges from the key
+                    return last && value == null;
+                index += fragmentLength;
+                ref = second;
+            }
+            else { // branch node (17 items)
+                if (index == keyLength) {
+                    var nodeValue = node.itemAt(16).bytes();
+                    return last && Arrays.equals(value, nodeValue.length == 0 ? null : nodeValue);
+                }
+                ref = node.itemAt(Nibbles.get(key, index++));
+                if (ref.isBytes() && ref.payloadSize() == 0) // no child
+                    return last && value == null;
+            }
+        }
+        return false; // the branch is incomplete
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the nibble at the given nibble index in a byte array item. */
+    private static int nibble (RLPView item, int i) {
+        int b = item.byteAt(i >>> 1);
+        return (i & 1) == 0 ? (b & 0xF0) >>> 4 : b & 0x0F;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Checks that {@code encoding} is the node referenced by {@code ref}. */
+    private boolean checkRef (RLPView ref, byte[] encoding) {
+        if (ref.isBytes())
+            return ref.payloadSize() == 32 && checkHash(ref.bytes(), encoding);
+        // embedded node: the reference is the node's encoding
+        return ref.encodedSize() == encoding.length && Arrays.equals(ref.encode(), encoding);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Checks that {@code encoding} hashes to {@code hash}, avoiding hashing if possible. */
+    private boolean checkHash (byte[] hash, byte[] encoding) {
+        var key = CapKey.of(hash);
+        var known = verified.get(key);
+        if (known != null)
+            return Arrays.equals(known, encoding);
+        if (!Arrays.equals(Hashing.keccak(encoding).bytes, hash))
+            return false;
+        verified.put(key, encoding.clone());
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,199 @@
+package com.norswap.nanoeth.trees.patricia;
+
+import com.norswap.nanoeth.annotations.Nullable;
+import com.norswap.nanoeth.utils.Pair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator over the entries of a tree whose keys are in a range, in increasing order of key
+ * (comparing keys as unsigned byte sequences, where a key comes before the keys it is a prefix
+ * of), obtained via {@link PatriciaTree#iterator(byte[], byte[])}.
+ * <p>
+ * The iterator is lazy: it performs a depth-first traversal of the tree, retrieving nodes from the
+ * store only when the traversal reaches them. Subtrees whose keys all come before the start of the
+ * range are skipped without being retrieved, and the traversal stops at the first key past the end
+ * of the range.
+ * <p>
+ * The tree must not be modified during the iteration (which is never an issue for trees whose
+ * store does not remove nodes, since trees are immutable).
+ */
+final class RangeIterator implements Iterator<Pair<byte[], byte[]>> {
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final NodeStore store;
+
+    /** Inclusive start of the range. */
+    private final byte[] start;
+
+    /** Exclusive end of the range, or null if the range is unbounded. */
+    private final @Nullable byte[] end;
+
+    /** Nodes whose subtree hasn't been fully traversed yet, on the path to the current node. */
+    private final ArrayList<Frame> stack = new ArrayList<>();
+
+    /** Nibbles of the path from the root to the current node. */
+    private byte[] path = new byte[64];
+
+    /** The next entry to return, or null if the iteration is over. */
+    private @Nullable Pair<byte[], byte[]> next;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Frame {
+        final PatriciaNode node;
+
+        /** Number of nibbles in the path from the root to the node. */
+        final int depth;
+
+        /** Whether the path to the node is a prefix of {@link #start}. */
+        final boolean bounded;
+
+        /** For branch nodes, next child to visit, or -1 if the value hasn't been visited. */
+        int child = -1;
+
+        Frame (PatriciaNode node, int depth, boolean bounded) {
+            this.node = node;
+            this.depth = depth;
+            this.bounded = bounded;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    RangeIterator (PatriciaTree tree, byte[] start, @Nullable byte[] end) {
+        this.store = tree.store;
+        this.start = start;
+        this.end = end;
+        if (tree.root != null)
+            stack.add(new Frame(tree.root, 0, true));
+        next = advance();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public boolean hasNext() {
+        return next != null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public Pair<byte[], byte[]> next() {
+        if (next == null)
+            throw new NoSuchElementException();
+        var out = next;
+        next = advance();
+        return out;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Resumes the traversal and returns the next entry in the range, or null if none. */
+    private @Nullable Pair<byte[], byte[]> advance() {
+        int startLength = start.length * 2;
+
+        while (!stack.isEmpty()) {
+            var frame = stack.get(stack.size() - 1);
+            int depth = frame.depth;
+
+            if (frame.node instanceof PatriciaBranchNode) {
+                var branch = (PatriciaBranchNode) frame.node;
+                if (frame.child < 0) {
+                    // when bounded, the value's key comes before the start, unless it's the start
+                    frame.child = frame.bounded && depth < startLength
+                        ? Nibbles.get(start, depth) // skip the children before the start
+                        : 0;
+                    var value = branch.value();
+                    if (value != null && (!frame.bounded || depth == startLength))
+                        return entry(depth, value);
+                    continue;
+                }
+                int i = frame.child;
+                while (i < 16 && !branch.hasChildAt(i)) ++i;
+                if (i == 16) {
+                    stack.remove(stack.size() - 1);
+                    continue;
+                }
+                frame.child = i + 1;
+                ensureCapacity(depth + 1);
+                path[depth] = (byte) i;
+                boolean bounded = frame.bounded && depth < startLength
+                    && i == Nibbles.get(start, depth);
+                stack.add(new Frame(branch.childAt(store, i), depth + 1, bounded));
+            }
+            else if (frame.node instanceof PatriciaExtensionNode) {
+                stack.remove(stack.size() - 1);
+                var ext = (PatriciaExtensionNode) frame.node;
+                var fragment = ext.keyFragment();
+                int cmp = write(depth, fragment, frame.bounded);
+                if (cmp >= 0)
+                    stack.add(new Frame(ext.child(store), depth + fragment.length(), cmp == 0));
+            }
+            else {
+                stack.remove(stack.size() - 1);
+                var leaf = (PatriciaLeafNode) frame.node;
+                int length = depth + leaf.keySuffix.length();
+                int cmp = write(depth, leaf.keySuffix, frame.bounded);
+                // if cmp == 0, the key is a prefix of the start (or the start itself)
+                if (cmp > 0 || cmp == 0 && length == startLength)
+                    return entry(length, leaf.value);
+            }
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes {@code nibbles} to the path at index {@code from}, then if {@code bounded}, returns
+     * the comparison of the written nibbles with the nibbles of the start at the same index (if
+     * the start runs out first, the path comes after it). Otherwise returns 1.
+     */
+    private int write (int from, Nibbles nibbles, boolean bounded) {
+        int length = nibbles.length();
+        ensureCapacity(from + length);
+        for (int i = 0; i < length; i++)
+            path[from + i] = nibbles.get(i);
+        if (!bounded)
+            return 1;
+        int startLength = start.length * 2;
+        for (int i = from; i < from + length; i++) {
+            if (i == startLength)
+                return 1;
+            int diff = path[i] - Nibbles.get(start, i);
+            if (diff != 0)
+                return diff;
+        }
+        return 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void ensureCapacity (int length) {
+        if (path.length < length)
+            path = Arrays.copyOf(path, Math.max(length, path.length * 2));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the entry for the key made of the first {@code length} nibbles of the path, or null
+     * (and stops the iteration) if the key is not before the end of the range.
+     */
+    private @Nullable Pair<byte[], byte[]> entry (int length, byte[] value) {
+        assert length % 2 == 0 : "odd number of nibbles in key";
+        var key = new byte[length / 2];
+        for (int i = 0; i < key.length; i++)
+            key[i] = (byte) (path[2 * i] << 4 | path[2 * i + 1]);
+        if (end != null && Arrays.compareUnsigned(key, end) >= 0) {
+            stack.clear();
+            return null;
+        }
+        return Pair.of(key, value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
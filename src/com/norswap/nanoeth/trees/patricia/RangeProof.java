@@ -0,0 +1,258 @@
+package com.norswap.nanoeth.trees.patricia;
+
+import com.norswap.nanoeth.annotations.Nullable;
+import com.norswap.nanoeth.data.MerkleRoot;
+import com.norswap.nanoeth.trees.patricia.store.MissingNode;
+import java.util.Arrays;
+
+import static com.norswap.nanoeth.trees.patricia.PatriciaTree.EMPTY_TREE_ROOT;
+
+/**
+ * A proof that a tree contains exactly the given entries in a range of keys, obtained via {@link
+ * PatriciaTree#proveRange(byte[], byte[], int)}. Note that the tree in question is not stored in
+ * this object.
+ * <p>
+ * The range starts at {@link #start} (inclusive), and ends at the last key of the proof
+ * (inclusive), or is unbounded if the proof is {@link #complete}. This is the kind of proof used by
+ * snap sync to download the state as contiguous ranges of leaves (see the README of the {@code
+ * network.sync} package).
+ * <p>
+ * The proof consists of the entries themselves, along with the (distinct) nodes on the branches
+ * for {@link #start} and for the last key — the boundaries of the range. Everything between the
+ * boundaries is rebuilt from the entries during verification: the proof is valid if the tree whose
+ * nodes between the boundaries are replaced by the ones obtained from the entries has the expected
+ * root.
+ */
+public final class RangeProof {
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Start of the range (inclusive). */
+    public final byte[] start;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Keys of the entries in the range, in increasing order. */
+    public final byte[][] keys;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Values of the entries in the range, matching {@link #keys}. */
+    public final byte[][] values;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the tree has no entry past the last key (or past {@link #start} if there are no
+     * entries), making the range unbounded.
+     */
+    public final boolean complete;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Distinct RLP encodings of the nodes on the branches from the root for {@link #start} and for
+     * the last key, in no particular order (cf. {@link MerkleMultiproof#nodes}).
+     */
+    public final byte[][] nodes;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public RangeProof (byte[] start, byte[][] keys, byte[][] values, boolean complete,
+            byte[][] nodes) {
+        assert keys.length == values.length : "keys and values have different lengths";
+        this.start = start;
+        this.keys = keys;
+        this.values = values;
+        this.complete = complete;
+        this.nodes = nodes;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Verifies that the proof is valid for a tree with the given root: that the tree's entries
+     * whose key is in the range are exactly the entries in the proof.
+     */
+    public boolean verify (MerkleRoot root) {
+        if (keys.length == 0 && !complete)
+            return false; // the range is undefined
+
+        // keys must be in the range and increasing
+        if (keys.length > 0 && Arrays.compareUnsigned(keys[0], start) < 0)
+            return false;
+        for (int i = 1; i < keys.length; i++)
+            if (Arrays.compareUnsigned(keys[i - 1], keys[i]) >= 0)
+                return false;
+
+        if (nodes.length == 0)
+            return keys.length == 0 && root.equals(EMPTY_TREE_ROOT);
+
+        var store = new ProofNodeStore();
+        if (!store.addEncodings(nodes))
+            return false;
+
+        var rootNode = store.getNode(root.bytes);
+        if (rootNode == null)
+            return false;
+
+        try {
+            var last = complete ? null : keys[keys.length - 1];
+            var newRoot = new Rebuild(store, last).rebuild(rootNode, 0, true, last != null, 0,
+                keys.length);
+            return new PatriciaTree(store, newRoot).merkleRoot().equals(root);
+        } catch (MissingNode | ClassCastException e) {
+            // a boundary node points to a child that is not in the proof, or has the wrong type
+            return false;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Rebuilds the tree from the proof's nodes, replacing the part of the tree between the range
+     * boundaries ({@link #start} and {@code right}, the last key) with the proof's entries. Nodes
+     * whose subtree lies entirely in the range are not retrieved (they are not part of the proof),
+     * and are rebuilt from scratch from the entries.
+     * <p>
+     * Each method takes the path ({@code depth} nibbles) to the node, whether this path is a prefix
+     * of the left (respectively right) boundary — if it isn't, the node's subtree lies entirely
+     * after the left (resp. before the right) boundary — and the range {@code [lo, hi)} of the
+     * entries whose key starts with the path.
+     */
+    private final class Rebuild {
+        final NodeStore store;
+        final @Nullable byte[] right;
+
+        Rebuild (NodeStore store, @Nullable byte[] right) {
+            this.store = store;
+            this.right = right;
+        }
+
+        /** Returns the rebuilt node, or null if the node has no entries left. */
+        @Nullable PatriciaNode rebuild (PatriciaNode node, int depth, boolean onLeft,
+                boolean onRight, int lo, int hi) {
+
+            if (node instanceof PatriciaBranchNode)
+                return rebuildBranch((PatriciaBranchNode) node, depth, onLeft, onRight, lo, hi);
+
+            Nibbles nibbles = node instanceof PatriciaLeafNode
+                ? ((PatriciaLeafNode) node).keySuffix
+                : ((PatriciaExtensionNode) node).keyFragment();
+
+            int cmpLeft  = onLeft  ? compare(nibbles, depth, start) : 1;
+            int cmpRight = onRight ? compare(nibbles, depth, right) : -1;
+            int length   = depth + nibbles.length();
+
+            if (node instanceof PatriciaLeafNode) {
+                // cmp == 0 means the key is a prefix of the boundary
+                boolean afterLeft = cmpLeft > 0 || cmpLeft == 0 && length == start.length * 2;
+                return afterLeft && cmpRight <= 0
+                    ? build(null, depth, lo, hi) // the leaf is one of the entries
+                    : build(node, depth, lo, hi);
+            }
+
+            if (cmpLeft < 0 || cmpRight > 0)
+                return build(node, depth, lo, hi); // subtree out of the range (expect no entries)
+            if (cmpLeft > 0 && cmpRight < 0)
+                return build(null, depth, lo, hi); // subtree inside the range
+
+            // entries under the extension's child
+            int childLo = lo;
+            while (childLo < hi && compare(nibbles, depth, keys[childLo]) > 0) ++childLo;
+            int childHi = childLo;
+            while (childHi < hi && compare(nibbles, depth, keys[childHi]) == 0) ++childHi;
+
+            var child = ((PatriciaExtensionNode) node).child(store);
+            var newChild = rebuild(child, length, cmpLeft == 0, cmpRight == 0, childLo, childHi);
+            var newNode = newChild == null ? null : store.prepend(nibbles, newChild);
+            // the other entries do not belong here, but must be accounted for
+            newNode = build(newNode, depth, lo, childLo);
+            return build(newNode, depth, childHi, hi);
+        }
+
+        @Nullable PatriciaNode rebuildBranch (PatriciaBranchNode branch, int depth,
+                boolean onLeft, boolean onRight, int lo, int hi) {
+
+            int leftNibble  = onLeft  && depth < start.length * 2 ? Nibbles.get(start, depth) : -1;
+            int rightNibble = onRight && depth < right.length * 2 ? Nibbles.get(right, depth) : -1;
+
+            // the key of the value is on the left boundary or after it, and not after the right one
+            byte[] value = branch.value();
+            if (!onLeft || leftNibble < 0)
+                value = lo < hi && keys[lo].length * 2 == depth ? values[lo++] : null;
+
+            // children outside the range are kept as-is, without retrieving them
+            var children = new PatriciaNode[16];
+            int mask = 0;
+            int count = value == null ? 0 : 1;
+            for (int i = 0; i < 16; i++) {
+                int from = lo;
+                while (lo < hi && Nibbles.get(keys[lo], depth) == i) ++lo;
+                boolean childOnLeft  = onLeft  && i == leftNibble;
+                boolean childOnRight = onRight && i == rightNibble;
+                boolean outside = onLeft && i < leftNibble || onRight && i > rightNibble;
+
+                if (outside) { // entries are in the range, so none are under this child
+                    if (branch.hasChildAt(i)) ++count;
+                    continue;
+                }
+                mask |= 1 << i;
+                if ((childOnLeft || childOnRight) && branch.hasChildAt(i))
+                    children[i] = rebuild(branch.childAt(store, i), depth + 1,
+                        childOnLeft, childOnRight, from, lo);
+                else // the child (if any) lies entirely inside the range
+                    children[i] = build(null, depth + 1, from, lo);
+                if (children[i] != null) ++count;
+            }
+
+            if (count == 0)
+                return null;
+            if (count >= 2)
+                return store.branchNode(branch, mask, children, value);
+            if (value != null) // only the value is left
+                return store.leafNode(Nibbles.EMPTY, value);
+            for (int i = 0; i < 16; i++) { // a single child is left, prepend index nibble
+                var child = (mask & 1 << i) != 0 ? children[i]
+                    : branch.hasChildAt(i) ? branch.childAt(store, i) : null;
+                if (child != null)
+                    return store.prepend(new Nibbles((byte) i), child);
+            }
+            throw new Error("unreachable");
+        }
+
+        /**
+         * Adds the entries in {@code [lo, hi)} to {@code node} (which can be null), given that
+         * their keys start with the {@code depth} nibbles of the path to the node.
+         */
+        @Nullable PatriciaNode build (@Nullable PatriciaNode node, int depth, int lo, int hi) {
+            for (int i = lo; i < hi; i++) {
+                var suffix = new Nibbles(keys[i], depth, keys[i].length * 2);
+                node = node == null
+                    ? store.leafNode(suffix, values[i])
+                    : node.add(store, suffix, values[i]);
+            }
+            return node;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compares {@code nibbles} with the nibbles of {@code key} starting at nibble index {@code
+     * from}. If the key runs out first, {@code nibbles} come after it.
+     */
+    private static int compare (Nibbles nibbles, int from, byte[] key) {
+        int keyLength = key.length * 2;
+        for (int i = 0; i < nibbles.length(); i++) {
+            if (from + i == keyLength)
+                return 1;
+            int diff = nibbles.get(i) - Nibbles.get(key, from + i);
+            if (diff != 0)
+                return diff;
+        }
+        return 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
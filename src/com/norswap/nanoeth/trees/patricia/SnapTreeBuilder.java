@@ -0,0 +1,221 @@
+package com.norswap.nanoeth.trees.patricia;
+
+import com.norswap.nanoeth.annotations.Nullable;
+import com.norswap.nanoeth.data.MerkleRoot;
+import com.norswap.nanoeth.rlp.RLP;
+import com.norswap.nanoeth.rlp.RLPParsingException;
+import com.norswap.nanoeth.trees.patricia.store.MissingNode;
+import com.norswap.nanoeth.trees.patricia.store.StoreNodeStore;
+import com.norswap.nanoeth.utils.Hashing;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Rebuilds a tree from ranges of entries, as in snap sync (see the README of the {@code
+ * network.sync} package): instead of downloading the tree node by node, a client downloads
+ * contiguous ranges of entries (with a {@link RangeProof}), and rebuilds the interior nodes
+ * locally.
+ * <p>
+ * Verified ranges are added with {@link #addRange(RangeProof, MerkleRoot)}, in any order, and their
+ * entries are immediately inserted in the tree being built, whose nodes are added to the store.
+ * {@link #nextMissing()} returns the start of the first key range not yet covered, i.e. the next
+ * range to request.
+ * <p>
+ * Since the chain keeps moving during the sync, the ranges are typically proven against the roots
+ * of different blocks, and once all ranges are covered, the resulting tree does not match the
+ * state of any block. {@link #heal(MerkleRoot, Function)} then fetches the nodes of the target tree
+ * that are missing from the store — usually a small fraction of the tree, since most nodes are
+ * unchanged between the roots.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class SnapTreeBuilder {
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** The store in which the tree is rebuilt. */
+    public final StoreNodeStore store;
+
+    /** The tree built from the ranges added so far. */
+    private PatriciaTree tree;
+
+    /**
+     * Maps the start of the covered key ranges (which do not overlap) to their inclusive end, or to
+     * null if they are unbounded.
+     */
+    private final TreeMap<byte[], byte[]> covered = new TreeMap<>(Arrays::compareUnsigned);
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a builder that rebuilds a tree in the given store, which must be able to retrieve
+     * nodes by cap, and should initially be empty (nodes already present in the store are assumed
+     * to be part of complete subtrees, which are not fetched again while healing).
+     */
+    public SnapTreeBuilder (StoreNodeStore store) {
+        this.store = store;
+        this.tree = new PatriciaTree(store);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the tree built from the ranges added so far. */
+    public PatriciaTree tree() {
+        return tree;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Verifies the range proof against the given root (the root of the tree the range was
+     * requested from), and if it is valid, inserts its entries in the tree and marks its range as
+     * covered. Returns whether the proof was valid.
+     */
+    public boolean addRange (RangeProof proof, MerkleRoot root) {
+        if (!proof.verify(root))
+            return false;
+        tree = tree.addAll(proof.keys, proof.values);
+        cover(proof.start, proof.complete ? null : proof.keys[proof.keys.length - 1]);
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Marks {@code [start, end]} as covered ({@code end} is null for unbounded ranges). */
+    private void cover (byte[] start, @Nullable byte[] end) {
+        // merge with the overlapping or adjacent ranges
+        var before = covered.floorEntry(start);
+        if (before != null && (before.getValue() == null || compare(successor(before.getValue()),
+                start) >= 0)) {
+            start = before.getKey();
+            end = max(end, before.getValue());
+        }
+        var it = covered.tailMap(start, true).entrySet().iterator();
+        while (it.hasNext()) {
+            var range = it.next();
+            if (end != null && compare(range.getKey(), successor(end)) > 0)
+                break;
+            end = max(end, range.getValue());
+            it.remove();
+        }
+        covered.put(start, end);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the start of the first key range that isn't covered by the ranges added so far, or
+     * null if the whole key space is covered.
+     */
+    public @Nullable byte[] nextMissing() {
+        var cursor = new byte[0];
+        for (var range: covered.entrySet()) {
+            if (compare(range.getKey(), cursor) > 0)
+                break;
+            if (range.getValue() == null)
+                return null;
+            cursor = successor(range.getValue());
+        }
+        return cursor;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Whether the whole key space is covered by the ranges added so far. */
+    public boolean isComplete() {
+        return nextMissing() == null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Completes the tree so that its root is {@code target}, and returns it.
+     * <p>
+     * The target tree is walked from its root, skipping the subtrees whose root is already in the
+     * store. Other nodes are retrieved with {@code fetch}, which maps a node hash to the RLP
+     * encoding of the node (e.g. by requesting it from the network), or to null if unavailable.
+     * Nodes are added to the store after all their children, so that if the healing fails, it can
+     * be resumed later, skipping the subtrees that were completely healed.
+     *
+     * @throws MissingNode if {@code fetch} returns null or an encoding that doesn't match the hash,
+     * or if the encoding isn't a valid node.
+     */
+    public PatriciaTree heal (MerkleRoot target, Function<byte[], byte[]> fetch) {
+        if (tree.merkleRoot().equals(target))
+            return tree;
+        if (target.equals(PatriciaTree.EMPTY_TREE_ROOT))
+            return tree = new PatriciaTree(store);
+        // the root is identified by its hash, even if its encoding is shorter than 32 bytes
+        var root = store.getNode(target.bytes);
+        if (root == null)
+            root = heal(target.bytes, fetch(target.bytes, fetch), fetch);
+        return tree = new PatriciaTree(store, root);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Fetches the encoding of the node with the given hash, checking it against the hash. */
+    private static byte[] fetch (byte[] hash, Function<byte[], byte[]> fetch) {
+        var encoding = fetch.apply(hash);
+        if (encoding == null || !Arrays.equals(Hashing.keccak(encoding).bytes, hash))
+            throw new MissingNode(hash);
+        return encoding;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Parses the node with the given cap and encoding, heals its children that are missing from
+     * the store, then adds it to the store and returns it.
+     */
+    private PatriciaNode heal (byte[] cap, byte[] encoding, Function<byte[], byte[]> fetch) {
+        PatriciaNode node;
+        try {
+            node = PatriciaNode.parse(RLP.decode(encoding));
+        } catch (RLPParsingException | IllegalArgumentException e) {
+            throw new MissingNode(cap);
+        }
+        if (node instanceof PatriciaBranchNode) {
+            var branch = (PatriciaBranchNode) node;
+            for (int i = 0; i < 16; i++) {
+                var childCap = branch.childCapAt(i);
+                if (childCap != null) healChild(childCap, fetch);
+            }
+        }
+        else if (node instanceof PatriciaExtensionNode)
+            healChild(((PatriciaExtensionNode) node).childCap(), fetch);
+        return store.addNode(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void healChild (byte[] cap, Function<byte[], byte[]> fetch) {
+        if (store.getNode(cap) != null)
+            return;
+        // embedded nodes are their own encoding
+        heal(cap, cap.length == 32 ? fetch(cap, fetch) : cap, fetch);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int compare (byte[] a, byte[] b) {
+        return Arrays.compareUnsigned(a, b);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the key that immediately follows {@code key}. */
+    private static byte[] successor (byte[] key) {
+        return Arrays.copyOf(key, key.length + 1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the greatest end among {@code a} and {@code b}, where null is unbounded. */
+    private static @Nullable byte[] max (@Nullable byte[] a, @Nullable byte[] b) {
+        return a == null || b == null ? null : compare(a, b) >= 0 ? a : b;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,193 @@
+package com.norswap.nanoeth.trees.patricia;
+
+import com.norswap.nanoeth.annotations.Nullable;
+import com.norswap.nanoeth.annotations.Retained;
+import com.norswap.nanoeth.data.MerkleRoot;
+import com.norswap.nanoeth.rlp.RLP;
+import com.norswap.nanoeth.trees.patricia.store.StorePatriciaBranchNode;
+import com.norswap.nanoeth.trees.patricia.store.StorePatriciaExtensionNode;
+import com.norswap.nanoeth.utils.ByteUtils;
+import java.util.ArrayList;
+
+/**
+ * Computes the Merkle root of a patricia tree from a stream of key-value pairs sorted by key,
+ * without materializing the tree.
+ * <p>
+ * This is useful for tries that are only built to be checked against a root — like the
+ * transactions and receipts tries of a block — and whose keys are known in advance. Use {@link
+ * #ofList(byte[][])} for these.
+ * <p>
+ * Since keys arrive in order, once a key diverges from the previous key at some nibble, no
+ * subsequent key will ever enter the subtrees hanging under deeper nibbles of the previous key.
+ * These subtrees are complete and are immediately collapsed to their cap. As a result, only the
+ * branch nodes on the path of the last added key are kept in memory (and only as arrays of child
+ * caps), and each node is hashed exactly once.
+ * <p>
+ * The resulting root is the same as the root of a {@link PatriciaTree} to which the same pairs have
+ * been added.
+ */
+public final class StackTrie {
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** A branch node under construction, on the path of {@link #lastKey}. */
+    private static final class Frame {
+        /** Nibble index (in the keys) discriminating the children of this branch. */
+        final int depth;
+        final byte[][] childrenCaps = new byte[16][];
+        @Nullable byte[] value;
+
+        Frame (int depth) {
+            this.depth = depth;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Frames with strictly increasing depth. */
+    private final ArrayList<Frame> stack = new ArrayList<>();
+
+    /** The last added key, whose leaf hasn't been attached yet. */
+    private @Nullable Nibbles lastKey;
+
+    private @Nullable byte[] lastValue;
+
+    private boolean done;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds a key-value pair to the trie. Keys must be added in strictly increasing order
+     * (lexicographic order of unsigned bytes). Empty keys are ignored, just like {@link
+     * PatriciaTree#add}.
+     *
+     * @throws IllegalArgumentException if the key is not greater than the last added key.
+     * @throws IllegalStateException if {@link #merkleRoot()} has already been called.
+     */
+    public StackTrie add (@Retained byte[] key, @Retained byte[] value) {
+        if (done)
+            throw new IllegalStateException("cannot add to a stack trie after computing its root");
+        if (key.length == 0)
+            return this;
+
+        var nibbles = new Nibbles(key);
+
+        if (lastKey != null) {
+            var last = lastKey;
+            int shared = last.sharedPrefix(nibbles);
+            if (shared == nibbles.length() || shared < last.length()
+                    && last.get(shared) > nibbles.get(shared))
+                throw new IllegalArgumentException(
+                    "keys must be added in strictly increasing order: " + nibbles);
+
+            // The last key's leaf hangs under the branch where the new key diverges, unless it
+            // already diverged deeper from the key before it.
+            if (stack.isEmpty() || top().depth < shared)
+                stack.add(new Frame(shared));
+            attachLeaf();
+
+            // No more keys can go under deeper branches.
+            while (top().depth > shared) {
+                var frame = stack.remove(stack.size() - 1);
+                if (stack.isEmpty() || top().depth < shared)
+                    stack.add(new Frame(shared));
+                var parent = top();
+                parent.childrenCaps[last.get(parent.depth)] =
+                    collapse(frame, parent.depth + 1).cap();
+            }
+        }
+
+        lastKey = nibbles;
+        lastValue = value;
+        return this;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Frame top() {
+        return stack.get(stack.size() - 1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Attaches the leaf for {@link #lastKey} to the top frame. */
+    private void attachLeaf() {
+        var frame = top();
+        assert lastKey != null && lastValue != null;
+        if (lastKey.length() == frame.depth)
+            frame.value = lastValue;
+        else
+            frame.childrenCaps[lastKey.get(frame.depth)] =
+                new PatriciaLeafNode(lastKey.dropFirst(frame.depth + 1), lastValue).cap();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the node for the given frame, whose position in the tree starts at nibble index
+     * {@code start} (on the path of {@link #lastKey}). This is an extension node if {@code start}
+     * is smaller than the frame's depth, or the branch node itself otherwise.
+     */
+    private PatriciaNode collapse (Frame frame, int start) {
+        assert lastKey != null;
+        var branch = new StorePatriciaBranchNode(frame.value, frame.childrenCaps);
+        return start == frame.depth
+            ? branch
+            : new StorePatriciaExtensionNode(
+                lastKey.dropFirst(start).prefix(frame.depth - start), branch.cap());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the Merkle root of the trie formed by all the added pairs. No pairs can be added
+     * afterwards.
+     */
+    public MerkleRoot merkleRoot() {
+        done = true;
+        if (lastKey == null)
+            return PatriciaTree.EMPTY_TREE_ROOT;
+        if (stack.isEmpty())
+            return new PatriciaLeafNode(lastKey, lastValue).merkleRoot();
+
+        attachLeaf();
+        while (stack.size() > 1) {
+            var frame = stack.remove(stack.size() - 1);
+            var parent = top();
+            parent.childrenCaps[lastKey.get(parent.depth)] =
+                collapse(frame, parent.depth + 1).cap();
+        }
+        return collapse(stack.get(0), 0).merkleRoot();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the Merkle root of the trie mapping the RLP encoding of each index {@code i} to
+     * {@code values[i]}, i.e. the layout of the transactions and receipts tries.
+     * <p>
+     * The encoding of index 0 is {@code 0x80}, which sorts after indices 1 to 127 (encoded as a
+     * single byte) but before indices greater than 127 (whose encoding starts with at least {@code
+     * 0x81}), so the pairs are fed to a {@link StackTrie} in that order.
+     */
+    public static MerkleRoot ofList (byte[][] values) {
+        var trie = new StackTrie();
+        int firstLarge = Math.min(values.length, 128);
+        for (int i = 1; i < firstLarge; i++)
+            trie.add(indexKey(i), values[i]);
+        if (values.length > 0)
+            trie.add(indexKey(0), values[0]);
+        for (int i = firstLarge; i < values.length; i++)
+            trie.add(indexKey(i), values[i]);
+        return trie.merkleRoot();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the key of the given index in the transactions and receipts tries. */
+    public static byte[] indexKey (int i) {
+        return RLP.bytes(ByteUtils.bytes(i)).encode();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -73,6 +73,12 @@ public final class MemPatriciaBranchNode extends PatriciaBranchNode {
 
     // ---------------------------------------------------------------------------------------------
 
+    @Override public PatriciaNode[] linkedChildren() {
+        return Arrays.stream(children).filter(Objects::nonNull).toArray(PatriciaNode[]::new);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     @Override public boolean equals (Object o) {
         if (this == o) return true;
         if (!(o instanceof MemPatriciaBranchNode)) return false;
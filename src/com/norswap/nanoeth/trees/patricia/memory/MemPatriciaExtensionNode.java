@@ -4,6 +4,7 @@ import com.norswap.nanoeth.trees.patricia.NodeStore;
 import com.norswap.nanoeth.trees.patricia.Nibbles;
 import com.norswap.nanoeth.trees.patricia.PatriciaBranchNode;
 import com.norswap.nanoeth.trees.patricia.PatriciaExtensionNode;
+import com.norswap.nanoeth.trees.patricia.PatriciaNode;
 import java.util.Objects;
 
 /** An extension node in the in-memory patricia tree. */
@@ -43,6 +44,12 @@ public final class MemPatriciaExtensionNode extends PatriciaExtensionNode {
 
     // ---------------------------------------------------------------------------------------------
 
+    @Override public PatriciaNode[] linkedChildren() {
+        return new PatriciaNode[] { child };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     @Override public boolean equals (Object o) {
         if (this == o) return true;
         if (!(o instanceof MemPatriciaExtensionNode)) return false;
@@ -29,7 +29,7 @@ public final class TreeNodeStore implements NodeStore {
 
     @SafeVarargs
     @Override public final PatriciaBranchNode branchNode (Pair<Nibbles, PatriciaNode>... pairs) {
-        // Almost identical to MapNodeStore#branchNode
+        // Almost identical to StoreNodeStore#branchNode
         var children = new PatriciaNode[16];
         byte[] value = null;
         for (var pair: pairs) {
@@ -49,6 +49,20 @@ public final class TreeNodeStore implements NodeStore {
 
     // ---------------------------------------------------------------------------------------------
 
+    @Override public PatriciaBranchNode branchNode (@Nullable PatriciaBranchNode base, int mask,
+            @Nullable PatriciaNode[] children, @Nullable @Retained byte[] value) {
+        assert base == null || base instanceof MemPatriciaBranchNode;
+        var newChildren = base == null
+            ? new PatriciaNode[16]
+            : ((MemPatriciaBranchNode) base).children.clone();
+        for (int i = 0; i < 16; i++)
+            if ((mask & (1 << i)) != 0)
+                newChildren[i] = children[i];
+        return new MemPatriciaBranchNode(value, newChildren);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     @Override public PatriciaBranchNode withValue (
             PatriciaBranchNode branch,
             @Nullable @Retained byte[] value) {
@@ -0,0 +1,78 @@
+package com.norswap.nanoeth.trees.patricia.store;
+
+import com.norswap.nanoeth.annotations.Retained;
+import com.norswap.nanoeth.utils.ByteUtils;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A key for content-addressed node stores, compared by value (unlike the {@code byte[]} cap it
+ * wraps, whose {@code equals} and {@code hashCode} are based on identity).
+ *
+ * <p>Caps are either 32-byte Keccak hashes, or (for nodes whose RLP encoding is shorter than 32
+ * bytes) the encoding itself. The key retains the cap array, which is usually the node's own
+ * memoized cap, so that the key costs no more than the wrapper object.
+ */
+public final class CapKey {
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final VarHandle INTS =
+        MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final byte[] cap;
+    private final int hash;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private CapKey (byte[] cap, int hash) {
+        this.cap = cap;
+        this.hash = hash;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the key for the given cap, which is retained and must not be modified afterwards. */
+    public static CapKey of (@Retained byte[] cap) {
+        assert cap.length <= 32 : "cap longer than 32 bytes";
+        // Hashes are uniformly distributed, so any of their bits make for a good hash code.
+        return new CapKey(cap, cap.length == 32 ? (int) INTS.get(cap, 0) : Arrays.hashCode(cap));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** True iff the cap is a 32-byte hash (as opposed to a short RLP encoding). */
+    public boolean isHash() {
+        return cap.length == 32;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the cap this key was created from, which must not be modified. */
+    public byte[] cap() {
+        return cap;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public boolean equals (Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CapKey)) return false;
+        var that = (CapKey) o;
+        return hash == that.hash && Arrays.equals(cap, that.cap);
+    }
+
+    @Override public int hashCode() {
+        return hash;
+    }
+
+    @Override public String toString() {
+        return ByteUtils.toFullHexString(cap);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
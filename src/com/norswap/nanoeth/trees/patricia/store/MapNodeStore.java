@@ -1,98 +1,66 @@
 package com.norswap.nanoeth.trees.patricia.store;
 
 import com.norswap.nanoeth.annotations.Nullable;
-import com.norswap.nanoeth.annotations.Retained;
-import com.norswap.nanoeth.trees.patricia.NodeStore;
-import com.norswap.nanoeth.trees.patricia.Nibbles;
-import com.norswap.nanoeth.trees.patricia.PatriciaBranchNode;
-import com.norswap.nanoeth.trees.patricia.PatriciaExtensionNode;
-import com.norswap.nanoeth.trees.patricia.PatriciaLeafNode;
 import com.norswap.nanoeth.trees.patricia.PatriciaNode;
-import com.norswap.nanoeth.utils.Pair;
 import java.util.HashMap;
 
 /**
  * Key-value store implementation that stores key-values in an in-memory map (dictionary).
+ * <p>
+ * The store is content-addressed: nodes are keyed by the value of their cap (see {@link CapKey}),
+ * so a node can be retrieved with a cap obtained independently (e.g. from a parsed parent node).
+ * <p>
+ * As a result, structurally identical nodes appearing at multiple places in a tree (or in multiple
+ * trees sharing the store) share an entry. The store counts how many times such nodes were added,
+ * and only removes the entry when all of them have been removed.
  */
-public final class MapNodeStore implements NodeStore {
+public final class MapNodeStore extends StoreNodeStore {
 
     // ---------------------------------------------------------------------------------------------
 
-    private final HashMap<byte[], PatriciaNode> store = new HashMap<>();
+    private final HashMap<CapKey, PatriciaNode> store = new HashMap<>();
 
-    // ---------------------------------------------------------------------------------------------
-
-    @Override public PatriciaExtensionNode extensionNode
-            (Nibbles keyFragment, PatriciaBranchNode child) {
-        return addNode(new StorePatriciaExtensionNode(keyFragment, child.cap()));
-    }
-
-    // ---------------------------------------------------------------------------------------------
-
-    @SafeVarargs
-    @Override public final PatriciaBranchNode branchNode (Pair<Nibbles, PatriciaNode>... pairs) {
-        // Almost identical to TreeNodeStore#branchNode
-        var childrenCaps = new byte[16][];
-        byte[] value = null;
-        for (var pair: pairs) {
-            var keySuffix = pair.fst;
-            if (keySuffix.length() == 0) {
-                // always a leaf node in this case
-                value = ((PatriciaLeafNode) pair.snd).value;
-                continue;
-            }
-            var child = pair.snd;
-            var pivot  = keySuffix.get(0);
-            var suffix = keySuffix.dropFirst(1);
-            childrenCaps[pivot] = prepend(suffix, child).cap();
-        }
-        return addNode(new StorePatriciaBranchNode(value, childrenCaps));
-    }
-
-    // ---------------------------------------------------------------------------------------------
-
-    @Override public PatriciaBranchNode withValue (
-            PatriciaBranchNode branch,
-            @Nullable @Retained byte[] value) {
-        assert branch instanceof StorePatriciaBranchNode;
-        var sbranch = (StorePatriciaBranchNode) branch;
-        removeNode(branch);
-        return addNode(new StorePatriciaBranchNode(value, sbranch.childrenCaps));
-    }
-
-    // ---------------------------------------------------------------------------------------------
-
-    @Override public PatriciaBranchNode withChild (
-            PatriciaBranchNode branch, int nibble, PatriciaNode child) {
-        assert 0 <= nibble && nibble < 16;
-        assert branch instanceof StorePatriciaBranchNode;
-        var sbranch = (StorePatriciaBranchNode) branch;
-        var newChildrenCaps = sbranch.childrenCaps.clone();
-        newChildrenCaps[nibble] = child == null
-            ? null
-            : child.cap();
-        removeNode(branch);
-        return addNode(new StorePatriciaBranchNode(sbranch.value(), newChildrenCaps));
-    }
+    /**
+     * For nodes that have been added more times than they have been removed, number of additions
+     * in excess of one. Duplicate nodes are rare, so keeping this separate saves a counter per
+     * entry in {@link #store}.
+     */
+    private final HashMap<CapKey, Integer> duplicates = new HashMap<>();
 
     // ---------------------------------------------------------------------------------------------
 
     @Override public @Nullable PatriciaNode getNode (byte[] cap) {
-        return store.get(cap);
+        return store.get(CapKey.of(cap));
     }
 
     // ---------------------------------------------------------------------------------------------
 
     @Override public <T extends PatriciaNode> T addNode (T node) {
-        store.put(node.cap(), node);
+        var key = CapKey.of(node.cap());
+        if (store.putIfAbsent(key, node) != null)
+            duplicates.merge(key, 1, Integer::sum);
         return node;
     }
 
     // ---------------------------------------------------------------------------------------------
 
     @Override public void removeNode (PatriciaNode node) {
-        assert store.containsKey(node.cap());
-        store.remove(node.cap());
+        var key = CapKey.of(node.cap());
+        assert store.containsKey(key);
+        var extra = duplicates.get(key);
+        if (extra == null)
+            store.remove(key);
+        else if (extra == 1)
+            duplicates.remove(key);
+        else
+            duplicates.put(key, extra - 1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the number of distinct nodes in the store. */
+    public int size() {
+        return store.size();
     }
 
     // ---------------------------------------------------------------------------------------------
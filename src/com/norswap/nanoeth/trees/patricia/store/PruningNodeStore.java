@@ -0,0 +1,199 @@
+package com.norswap.nanoeth.trees.patricia.store;
+
+import com.norswap.nanoeth.annotations.Nullable;
+import com.norswap.nanoeth.trees.patricia.PatriciaNode;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * In-memory node store for chain state, which keeps the trees of the last blocks available (to
+ * handle reorgs), while pruning nodes that are only used by older trees.
+ * <p>
+ * Nodes are reference-counted, as in {@link MapNodeStore}. Node additions and removals are recorded
+ * in a journal, which is associated with a block by {@link #commitBlock(long)}. Additions are
+ * applied immediately, but removals are only applied once the block falls past the reorg depth,
+ * i.e. when a block whose number is at least {@code reorgDepth} more is committed. Until then, the
+ * trees of the block and its predecessors remain intact, and {@link #revertTo(long)} can undo the
+ * changes made by the blocks after a given block.
+ * <p>
+ * Nodes that are added and removed within a single block (typically, intermediate nodes created
+ * while applying successive updates) are never part of a committed tree: they are removed as soon
+ * as the block is committed.
+ * <p>
+ * As a result, the store holds the nodes of the trees of the last {@code reorgDepth + 1} committed
+ * blocks, plus the nodes added since the last committed block.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class PruningNodeStore extends StoreNodeStore {
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final MapNodeStore store = new MapNodeStore();
+
+    private final int reorgDepth;
+
+    /** Journals of the committed blocks that can still be reverted, from oldest to newest. */
+    private final ArrayDeque<Journal> journals = new ArrayDeque<>();
+
+    /** Changes since the last committed block. */
+    private HashMap<CapKey, Change> pending = new HashMap<>();
+
+    /** Number of the last committed block, or {@link Long#MIN_VALUE} if none. */
+    private long lastBlock = Long.MIN_VALUE;
+
+    /**
+     * Number of the last block whose removals have been applied, or {@link Long#MIN_VALUE} if
+     * none. Blocks up to this one can't be reverted anymore.
+     */
+    private long prunedBlock = Long.MIN_VALUE;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of additions and removals of a node in a block. */
+    private static final class Change {
+        final PatriciaNode node;
+        int added;
+        int removed;
+
+        Change (PatriciaNode node) {
+            this.node = node;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Journal {
+        final long block;
+        final HashMap<CapKey, Change> changes;
+
+        Journal (long block, HashMap<CapKey, Change> changes) {
+            this.block = block;
+            this.changes = changes;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a new store that keeps the removals of the last {@code reorgDepth} blocks revertible.
+     */
+    public PruningNodeStore (int reorgDepth) {
+        if (reorgDepth < 0)
+            throw new IllegalArgumentException("negative reorg depth: " + reorgDepth);
+        this.reorgDepth = reorgDepth;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public @Nullable PatriciaNode getNode (byte[] cap) {
+        return store.getNode(cap);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public <T extends PatriciaNode> T addNode (T node) {
+        store.addNode(node);
+        pending.computeIfAbsent(CapKey.of(node.cap()), k -> new Change(node)).added++;
+        return node;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Records the removal of the node, which will only be applied once the current block falls
+     * past the reorg depth.
+     */
+    @Override public void removeNode (PatriciaNode node) {
+        pending.computeIfAbsent(CapKey.of(node.cap()), k -> new Change(node)).removed++;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Associates the changes made since the last committed block with the block with the given
+     * number, then prunes the nodes removed by blocks that fall past the reorg depth (whose number
+     * is at most {@code number - reorgDepth}).
+     *
+     * @throws IllegalArgumentException if {@code number} is not greater than the number of the
+     * last committed block.
+     */
+    public void commitBlock (long number) {
+        if (number <= lastBlock)
+            throw new IllegalArgumentException(
+                "block " + number + " is not after last committed block " + lastBlock);
+
+        // nodes both added and removed in the block are not in any committed tree
+        var it = pending.values().iterator();
+        while (it.hasNext()) {
+            var change = it.next();
+            int cancelled = Math.min(change.added, change.removed);
+            for (int i = 0; i < cancelled; i++)
+                store.removeNode(change.node);
+            change.added   -= cancelled;
+            change.removed -= cancelled;
+            if (change.added == 0 && change.removed == 0)
+                it.remove();
+        }
+
+        journals.add(new Journal(number, pending));
+        pending = new HashMap<>();
+        lastBlock = number;
+
+        while (!journals.isEmpty() && journals.peek().block <= number - reorgDepth) {
+            var journal = journals.poll();
+            for (var change: journal.changes.values())
+                for (int i = 0; i < change.removed; i++)
+                    store.removeNode(change.node);
+            prunedBlock = journal.block;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Undoes the changes made after the block with the given number: the changes of all committed
+     * blocks with a greater number, and the changes since the last committed block. The trees of
+     * the reverted blocks must not be used anymore.
+     *
+     * @throws IllegalArgumentException if the changes of some of these blocks were already pruned,
+     * i.e. if {@code number} is further than the reorg depth from the last committed block.
+     */
+    public void revertTo (long number) {
+        if (number < prunedBlock)
+            throw new IllegalArgumentException(
+                "cannot revert to block " + number + ", blocks up to " + prunedBlock
+                    + " have been pruned");
+
+        undo(pending);
+        pending = new HashMap<>();
+        while (!journals.isEmpty() && journals.peekLast().block > number)
+            undo(journals.pollLast().changes);
+        lastBlock = Math.min(lastBlock, number);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void undo (HashMap<CapKey, Change> changes) {
+        // removals were never applied
+        for (var change: changes.values())
+            for (int i = 0; i < change.added; i++)
+                store.removeNode(change.node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the number of the last committed block, or {@link Long#MIN_VALUE} if none. */
+    public long lastBlock() {
+        return lastBlock;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the number of distinct nodes in the store. */
+    public int size() {
+        return store.size();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
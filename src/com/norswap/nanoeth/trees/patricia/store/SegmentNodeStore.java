@@ -0,0 +1,166 @@
+package com.norswap.nanoeth.trees.patricia.store;
+
+import com.norswap.nanoeth.annotations.Nullable;
+import com.norswap.nanoeth.rlp.RLP;
+import com.norswap.nanoeth.rlp.RLPParsingException;
+import com.norswap.nanoeth.rlp.RLPView;
+import com.norswap.nanoeth.storage.HashIndex;
+import com.norswap.nanoeth.storage.SegmentLog;
+import com.norswap.nanoeth.trees.patricia.PatriciaNode;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Disk-backed node store, which persists the RLP encoding of nodes (as returned by {@link
+ * PatriciaNode#compose()}) in an append-only {@link SegmentLog}, and maps the cap (hash) of each
+ * node to its location in the log via an on-disk {@link HashIndex}. Both are memory-mapped, so
+ * the size of the store is not bounded by the size of the Java heap.
+ * <p>
+ * Nodes are parsed back via {@link PatriciaNode#parse(RLP)} when retrieved. A bounded cache of
+ * recently used nodes avoids re-parsing nodes on hot paths (e.g. near the root of the tree).
+ * <p>
+ * Nodes whose cap is shorter than 32 bytes are not stored: their cap is their encoding, which is
+ * embedded in their parent's encoding, and {@link #getNode(byte[])} simply parses them from the
+ * cap.
+ * <p>
+ * Nodes are never removed: {@link #removeNode(PatriciaNode)} is a no-op. This keeps old versions
+ * of the tree available (e.g. to handle reorgs), at the cost of requiring separate pruning.
+ * <p>
+ * Nodes added to the store are only guaranteed to be persisted after {@link #flush()} or {@link
+ * #close()}. To reopen a tree after closing the store, keep its root cap, and retrieve the root
+ * node with {@link #getNode(byte[])}.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class SegmentNodeStore extends StoreNodeStore implements AutoCloseable {
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Default number of parsed nodes kept in memory. */
+    public static final int DEFAULT_CACHE_SIZE = 1 << 16;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final SegmentLog log;
+    private final HashIndex index;
+    private final LinkedHashMap<CapKey, PatriciaNode> cache;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private SegmentNodeStore (SegmentLog log, HashIndex index, int cacheSize) {
+        this.log = log;
+        this.index = index;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry (Map.Entry<CapKey, PatriciaNode> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Opens the store located in the given directory (creating it if it does not exist), keeping
+     * up to {@code cacheSize} parsed nodes in memory and using segments files of the given size.
+     */
+    public static SegmentNodeStore open (Path directory, int cacheSize, int segmentSize)
+            throws IOException {
+        var log = SegmentLog.open(directory, "nodes", segmentSize);
+        var index = HashIndex.open(directory.resolve("nodes.idx"));
+        return new SegmentNodeStore(log, index, cacheSize);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Opens the store located in the given directory (creating it if it does not exist), with the
+     * default cache and segment sizes.
+     */
+    public static SegmentNodeStore open (Path directory) throws IOException {
+        return open(directory, DEFAULT_CACHE_SIZE, SegmentLog.DEFAULT_SEGMENT_SIZE);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Parses a node from its encoding.
+     *
+     * @throws IllegalStateException if the encoding is not a valid node, which indicates that the
+     * store has been corrupted.
+     */
+    private static PatriciaNode parse (RLP rlp) {
+        try {
+            return PatriciaNode.parse(rlp);
+        } catch (RLPParsingException | IllegalArgumentException e) {
+            throw new IllegalStateException("corrupted patricia node in store", e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public @Nullable PatriciaNode getNode (byte[] cap) {
+        if (cap.length < 32)
+            return parse(RLP.decode(cap));
+
+        var key = CapKey.of(cap);
+        var node = cache.get(key);
+        if (node != null)
+            return node;
+
+        long location = index.get(cap);
+        if (location == 0)
+            return null;
+
+        node = parse(RLPView.of(log.slice(location)).toRLP());
+        cache.put(key, node);
+        return node;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public <T extends PatriciaNode> T addNode (T node) {
+        var cap = node.cap();
+        if (cap.length < 32)
+            return node;
+
+        if (index.get(cap) == 0) {
+            var rlp = node.compose();
+            rlp.encodeInto(log.reserve(rlp.encodedSize()));
+            index.put(cap, log.lastLocation());
+        }
+        cache.put(CapKey.of(cap), node);
+        return node;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** No-op: nodes are never removed from the store. */
+    @Override public void removeNode (PatriciaNode node) {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the number of nodes persisted in the store. */
+    public long size() {
+        return index.size();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Forces all nodes added to the store to be written to disk. */
+    public void flush() {
+        log.flush();
+        index.flush();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Flushes the store. The store must not be used after being closed. */
+    @Override public void close() {
+        log.close();
+        index.close();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
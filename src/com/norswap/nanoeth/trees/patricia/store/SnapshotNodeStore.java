@@ -0,0 +1,213 @@
+package com.norswap.nanoeth.trees.patricia.store;
+
+import com.norswap.nanoeth.annotations.Nullable;
+import com.norswap.nanoeth.trees.patricia.PatriciaNode;
+import com.norswap.nanoeth.trees.patricia.PatriciaTree;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory node store that lets a single writer thread update a tree, while any number of reader
+ * threads access consistent snapshots of previous versions of the tree.
+ * <p>
+ * Like {@link MapNodeStore}, the store is content-addressed and counts duplicate nodes. Unlike it,
+ * {@link #removeNode(PatriciaNode)} does not immediately remove the node: the node is retired, and
+ * only reclaimed once no reader can access it anymore.
+ * <p>
+ * The writer updates a tree over this store as usual (e.g. via {@link PatriciaTree#add}, {@link
+ * PatriciaTree#remove} or {@link PatriciaTree#batch()}), then publishes the result as the new
+ * version of the tree with {@link #commit(PatriciaTree)}. Each version is identified by a number,
+ * starting at 0 for the empty tree.
+ * <p>
+ * Readers call {@link #snapshot()} to pin the latest committed version, and must close the
+ * returned {@link Snapshot} when done. The nodes retired by the writer while building version
+ * {@code v + 1} are reclaimed once all snapshots of versions up to {@code v} have been closed.
+ * Reclamation is performed by the writer, during {@link #commit(PatriciaTree)} or when calling
+ * {@link #reclaim()}, so that the writer is the only thread ever modifying the store.
+ * <p>
+ * Readers can use {@link #getNode(byte[])} (and hence {@link PatriciaTree#lookup}, {@link
+ * PatriciaTree#toMap()}, merkle proofs, ...) concurrently with the writer, but all other methods
+ * must only be called by the writer.
+ */
+public final class SnapshotNodeStore extends StoreNodeStore {
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final ConcurrentHashMap<CapKey, PatriciaNode> store = new ConcurrentHashMap<>();
+
+    /** cf. {@link MapNodeStore} — only accessed by the writer. */
+    private final HashMap<CapKey, Integer> duplicates = new HashMap<>();
+
+    /** Nodes removed since the last commit. */
+    private ArrayList<PatriciaNode> removed = new ArrayList<>();
+
+    /** Nodes retired by past commits, in commit order. */
+    private final ArrayDeque<Retired> retired = new ArrayDeque<>();
+
+    /** Maps versions to their number of open snapshots. Guards {@link #latest}. */
+    private final TreeMap<Long, Integer> pins = new TreeMap<>();
+
+    /** The latest committed tree. */
+    private Version latest = new Version(0, null);
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Version {
+        final long number;
+        final @Nullable PatriciaNode root;
+
+        Version (long number, @Nullable PatriciaNode root) {
+            this.number = number;
+            this.root = root;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Nodes that were part of the tree up to a given version, but not in the next version. */
+    private static final class Retired {
+        final long lastVersion;
+        final ArrayList<PatriciaNode> nodes;
+
+        Retired (long lastVersion, ArrayList<PatriciaNode> nodes) {
+            this.lastVersion = lastVersion;
+            this.nodes = nodes;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A read-only view of a committed version of the tree, whose nodes remain available until the
+     * snapshot is closed. Snapshots can be used from any thread.
+     */
+    public final class Snapshot implements AutoCloseable {
+
+        /** The version number of the snapshot's tree. */
+        public final long version;
+
+        /** The tree, which must not be modified. */
+        public final PatriciaTree tree;
+
+        private boolean closed;
+
+        private Snapshot (Version version) {
+            this.version = version.number;
+            this.tree = new PatriciaTree(SnapshotNodeStore.this, version.root);
+        }
+
+        /** Releases the snapshot, allowing the nodes it uses to be reclaimed. Idempotent. */
+        @Override public void close() {
+            synchronized (pins) {
+                if (closed) return;
+                closed = true;
+                pins.compute(version, (k, count) -> count == 1 ? null : count - 1);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns a snapshot of the latest committed version of the tree. Thread-safe. */
+    public Snapshot snapshot() {
+        synchronized (pins) {
+            pins.merge(latest.number, 1, Integer::sum);
+            return new Snapshot(latest);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Publishes {@code tree} (which must use this store) as the latest version of the tree, then
+     * reclaims the nodes that are not used by any open snapshot. Returns the new version number.
+     */
+    public long commit (PatriciaTree tree) {
+        if (tree.store != this)
+            throw new IllegalArgumentException("tree does not use this store");
+        long number;
+        synchronized (pins) {
+            number = latest.number + 1;
+            // nodes removed since the previous version may still be used by snapshots of it
+            retired.add(new Retired(latest.number, removed));
+            latest = new Version(number, tree.root);
+        }
+        removed = new ArrayList<>();
+        reclaim();
+        return number;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Reclaims the retired nodes that are not used by any open snapshot. This is done automatically
+     * by {@link #commit(PatriciaTree)}, but can also be called by the writer after snapshots have
+     * been closed.
+     */
+    public void reclaim() {
+        long oldestUsed;
+        synchronized (pins) {
+            oldestUsed = pins.isEmpty() ? latest.number : pins.firstKey();
+        }
+        while (!retired.isEmpty() && retired.peek().lastVersion < oldestUsed)
+            for (var node: retired.poll().nodes)
+                reclaim(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void reclaim (PatriciaNode node) {
+        var key = CapKey.of(node.cap());
+        assert store.containsKey(key);
+        var extra = duplicates.get(key);
+        if (extra == null)
+            store.remove(key);
+        else if (extra == 1)
+            duplicates.remove(key);
+        else
+            duplicates.put(key, extra - 1);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public @Nullable PatriciaNode getNode (byte[] cap) {
+        return store.get(CapKey.of(cap));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public <T extends PatriciaNode> T addNode (T node) {
+        var key = CapKey.of(node.cap());
+        if (store.putIfAbsent(key, node) != null)
+            duplicates.merge(key, 1, Integer::sum);
+        return node;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Retires the node, which will be reclaimed once no snapshot can use it anymore. */
+    @Override public void removeNode (PatriciaNode node) {
+        removed.add(node);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the latest committed version number. */
+    public long version() {
+        synchronized (pins) {
+            return latest.number;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the number of distinct nodes in the store, including retired nodes. */
+    public int size() {
+        return store.size();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,93 @@
+package com.norswap.nanoeth.trees.patricia.store;
+
+import com.norswap.nanoeth.annotations.Nullable;
+import com.norswap.nanoeth.annotations.Retained;
+import com.norswap.nanoeth.trees.patricia.NodeStore;
+import com.norswap.nanoeth.trees.patricia.Nibbles;
+import com.norswap.nanoeth.trees.patricia.PatriciaBranchNode;
+import com.norswap.nanoeth.trees.patricia.PatriciaExtensionNode;
+import com.norswap.nanoeth.trees.patricia.PatriciaLeafNode;
+import com.norswap.nanoeth.trees.patricia.PatriciaNode;
+import com.norswap.nanoeth.utils.Pair;
+
+/**
+ * Base class for node stores that store nodes by cap, implementing the factory methods of {@link
+ * NodeStore} with the node implementations of this package ({@link StorePatriciaBranchNode}, {@link
+ * StorePatriciaExtensionNode}), which refer to their children by cap.
+ * <p>
+ * Subclasses only need to implement the data access methods.
+ */
+public abstract class StoreNodeStore implements NodeStore {
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public PatriciaExtensionNode extensionNode
+            (Nibbles keyFragment, PatriciaBranchNode child) {
+        return addNode(new StorePatriciaExtensionNode(keyFragment, child.cap()));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @SafeVarargs
+    @Override public final PatriciaBranchNode branchNode (Pair<Nibbles, PatriciaNode>... pairs) {
+        // Almost identical to TreeNodeStore#branchNode
+        var childrenCaps = new byte[16][];
+        byte[] value = null;
+        for (var pair: pairs) {
+            var keySuffix = pair.fst;
+            if (keySuffix.length() == 0) {
+                // always a leaf node in this case, which isn't part of the tree
+                value = ((PatriciaLeafNode) pair.snd).value;
+                removeNode(pair.snd);
+                continue;
+            }
+            var child = pair.snd;
+            var pivot  = keySuffix.get(0);
+            var suffix = keySuffix.dropFirst(1);
+            childrenCaps[pivot] = prepend(suffix, child).cap();
+        }
+        return addNode(new StorePatriciaBranchNode(value, childrenCaps));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public PatriciaBranchNode branchNode (@Nullable PatriciaBranchNode base, int mask,
+            @Nullable PatriciaNode[] children, @Nullable @Retained byte[] value) {
+        assert base == null || base instanceof StorePatriciaBranchNode;
+        var childrenCaps = base == null
+            ? new byte[16][]
+            : ((StorePatriciaBranchNode) base).childrenCaps.clone();
+        for (int i = 0; i < 16; i++)
+            if ((mask & (1 << i)) != 0)
+                childrenCaps[i] = children[i] == null ? null : children[i].cap();
+        return addNode(new StorePatriciaBranchNode(value, childrenCaps));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public PatriciaBranchNode withValue (
+            PatriciaBranchNode branch,
+            @Nullable @Retained byte[] value) {
+        assert branch instanceof StorePatriciaBranchNode;
+        var sbranch = (StorePatriciaBranchNode) branch;
+        removeNode(branch);
+        return addNode(new StorePatriciaBranchNode(value, sbranch.childrenCaps));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public PatriciaBranchNode withChild (
+            PatriciaBranchNode branch, int nibble, PatriciaNode child) {
+        assert 0 <= nibble && nibble < 16;
+        assert branch instanceof StorePatriciaBranchNode;
+        var sbranch = (StorePatriciaBranchNode) branch;
+        var newChildrenCaps = sbranch.childrenCaps.clone();
+        newChildrenCaps[nibble] = child == null
+            ? null
+            : child.cap();
+        removeNode(branch);
+        return addNode(new StorePatriciaBranchNode(sbranch.value(), newChildrenCaps));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -1,12 +1,30 @@
 package com.norswap.nanoeth.blocks;
 
 import com.norswap.nanoeth.Config;
+import com.norswap.nanoeth.data.Address;
+import com.norswap.nanoeth.data.Hash;
+import com.norswap.nanoeth.data.MerkleRoot;
+import com.norswap.nanoeth.data.Natural;
+import com.norswap.nanoeth.receipts.BloomFilter;
+import com.norswap.nanoeth.rlp.RLP;
 import com.norswap.nanoeth.rlp.RLPParsingException;
+import com.norswap.nanoeth.signature.EthKeyPair;
+import com.norswap.nanoeth.storage.StorageTests;
+import com.norswap.nanoeth.transactions.AccessList;
+import com.norswap.nanoeth.transactions.Transaction;
+import com.norswap.nanoeth.transactions.UnsignedTransaction;
+import com.norswap.nanoeth.trees.patricia.StackTrie;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.function.Supplier;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import static com.norswap.nanoeth.Context.CONTEXT;
-import static org.testng.Assert.assertEquals;
+import static com.norswap.nanoeth.blocks.BlockValidityStatus.*;
+import static com.norswap.nanoeth.transactions.TransactionFormat.TX_EIP_155;
+import static org.testng.Assert.*;
 
 public final class BlockTests {
 
@@ -38,6 +56,10 @@ public final class BlockTests {
 
         for (var block: testCase.blocks) {
             assertEquals(Block.from(block.rlpLayout()), block);
+            assertEquals(Block.decode(block.rlpLayout().encode()), block);
+            var headerEncoding = block.header.rlpLayout().encode();
+            assertEquals(BlockHeader.CODEC.encode(block.header), headerEncoding);
+            assertEquals(BlockHeader.decode(headerEncoding), block.header);
             Blocks.DB.register(block);
             if (testCase.validatePoW) {
                 var computedDifficulty = Difficulty.computeDifficulty(
@@ -53,4 +75,202 @@ public final class BlockTests {
     }
 
     // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a child of {@code parent} with {@code txCount} transactions and the given uncles,
+     * that is valid if proof of work validation is disabled. The timestamp offset distinguishes
+     * siblings.
+     */
+    private static Block child (Block parent, int txCount, int timestampOffset,
+            BlockHeader... uncles) {
+        var key = new EthKeyPair(
+            "0x4646464646464646464646464646464646464646464646464646464646464646");
+        var txs = new Transaction[txCount];
+        var binaries = new byte[txCount][];
+        for (int i = 0; i < txCount; i++) {
+            txs[i] = new UnsignedTransaction(TX_EIP_155,
+                new Natural(1), new Natural(i), new Natural(1), new Natural(1),
+                new Natural(21_000), Address.ZERO, new Natural(i), new byte[i], AccessList.EMPTY)
+                .sign(key);
+            binaries[i] = txs[i].binary();
+        }
+        var p = parent.header;
+        var header = new BlockHeader(
+            p.hash(), RLP.sequence((Object[]) uncles).hash(), Address.ZERO, MerkleRoot.ZERO,
+            StackTrie.ofList(binaries), MerkleRoot.ZERO, new BloomFilter(), p.difficulty,
+            p.number.add(1), p.gasLimit, Natural.ZERO, p.timestamp.add(15 + timestampOffset),
+            new byte[0], Hash.ZERO, 0);
+        return new Block(header, txs, uncles);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Registers a chain with a fork in {@code store}, then checks the content of the store, and of
+     * the store returned by {@code reopen} (which must have the same content).
+     */
+    private void testBlockStore (BlockStore store, Supplier<BlockStore> reopen) {
+        var chain = new ArrayList<Block>();
+        chain.add(Config.GENESIS);
+        for (int i = 1; i <= 8; i++)
+            chain.add(child(chain.get(i - 1), i % 3, 0));
+        var fork = child(chain.get(3), 1, 1);
+        var nephew = child(chain.get(7), 2, 0, fork.header);
+
+        for (var block: chain)
+            store.register(block);
+        store.register(fork);
+        store.register(nephew);
+        store.register(chain.get(2)); // no effect
+
+        Config.VALIDATE_POW = false;
+        try {
+            for (int i = 0; i < 2; i++) {
+                var s = i == 0 ? store : reopen.get();
+                for (var block: chain) {
+                    assertEquals(s.get(block.header.hash()), block);
+                    assertEquals(s.getHeader(block.header.hash()), block.header);
+                }
+                assertEquals(s.get(nephew.header.hash()), nephew);
+                assertNull(s.get(Hash.ZERO));
+                assertNull(s.getHeader(Hash.ZERO));
+                assertEquals(s.getHashes(2), new Hash[] { chain.get(2).header.hash() });
+                assertEquals(s.getHashes(4),
+                    new Hash[] { chain.get(4).header.hash(), fork.header.hash() });
+                assertEquals(s.getHashes(10), new Hash[0]);
+                assertEquals(nephew.validate(s), BlockValidity.BLOCK_VALID);
+
+                var index = s.headerIndex();
+                var h = chain.stream().map(b -> b.header.hash()).toArray(Hash[]::new);
+                assertTrue(index.isAncestor(h[2], h[8], 6));
+                assertTrue(index.isAncestor(h[8], h[8], 0));
+                assertFalse(index.isAncestor(h[1], h[8], 6));
+                assertFalse(index.isAncestor(fork.header.hash(), h[8], 6));
+                assertTrue(index.isUncleIncluded(fork.header.hash(), nephew.header.hash()));
+                assertFalse(index.isUncleIncluded(fork.header.hash(), h[8]));
+                assertEquals(index.parentHeader(h[5]), chain.get(4).header);
+                assertNull(index.parentHeader(Hash.ZERO));
+
+                assertEquals(s.getUncleHashes(nephew.header.hash()),
+                    new Hash[] { fork.header.hash() });
+                assertEquals(s.getUncleHashes(h[3]), new Hash[0]);
+                assertNull(s.getUncleHashes(Hash.ZERO));
+
+                // a tiny index, whose records are evicted and rebuilt from the store
+                var small = new HeaderIndex(s, 2);
+                assertTrue(small.isAncestor(h[2], h[8], 6));
+                assertFalse(small.isAncestor(fork.header.hash(), h[8], 6));
+                assertTrue(small.isUncleIncluded(fork.header.hash(), nephew.header.hash()));
+                assertTrue(small.isAncestor(h[3], fork.header.hash(), 1));
+
+                var included = child(nephew, 0, 0, fork.header);
+                assertEquals(included.validate(s).status, VAL_UNCLE_ALREADY_INCLUDED);
+                var ancestor = child(chain.get(7), 0, 1, chain.get(5).header);
+                assertEquals(ancestor.validate(s).status, VAL_UNCLE_IS_ANCESTOR);
+                var unrelated = child(chain.get(7), 0, 1, child(fork, 0, 0).header);
+                assertEquals(unrelated.validate(s).status, VAL_UNRELATED_UNCLE);
+            }
+        } finally {
+            Config.VALIDATE_POW = true;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testBlockStores() throws IOException {
+        var blocks = new Blocks();
+        testBlockStore(blocks, () -> blocks);
+        blocks.clear();
+        assertNull(blocks.get(Config.GENESIS.header.hash()));
+        assertEquals(blocks.getHashes(0), new Hash[0]);
+
+        var dir = StorageTests.tempDirectory();
+        var stores = new ArrayList<SegmentBlockStore>();
+        // tiny cache and segments, to exercise eviction and segment rollover
+        Supplier<BlockStore> open = () -> {
+            try {
+                stores.forEach(SegmentBlockStore::close);
+                stores.add(SegmentBlockStore.open(dir, 2, 4096));
+                return stores.get(stores.size() - 1);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        try {
+            testBlockStore(open.get(), open);
+            assertEquals(stores.get(1).size(), 11);
+        } finally {
+            stores.get(stores.size() - 1).close();
+            StorageTests.delete(dir);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testBlockStoreCrash() throws IOException {
+        var chain = new ArrayList<Block>();
+        chain.add(Config.GENESIS);
+        for (int i = 1; i <= 8; i++)
+            chain.add(child(chain.get(i - 1), i % 3, 0));
+        var fork = child(chain.get(3), 1, 1);
+        var h = chain.stream().map(b -> b.header.hash()).toArray(Hash[]::new);
+
+        var dir = StorageTests.tempDirectory();
+        try {
+            // the first store is never closed, simulating a crash
+            var crashed = SegmentBlockStore.open(dir, 2, 4096);
+            for (int i = 0; i <= 4; i++)
+                crashed.register(chain.get(i));
+            crashed.flush();
+            for (int i = 5; i <= 8; i++)
+                crashed.register(chain.get(i));
+            crashed.register(fork);
+
+            try (var store = SegmentBlockStore.open(dir, 2, 4096)) {
+                assertEquals(store.size(), 5);
+                for (int i = 0; i <= 4; i++)
+                    assertEquals(store.get(h[i]), chain.get(i));
+                for (int i = 5; i <= 8; i++)
+                    assertNull(store.get(h[i]));
+                assertNull(store.get(fork.header.hash()));
+                assertEquals(store.getHashes(4), new Hash[] { h[4] });
+
+                // the new records reuse the locations of the lost ones
+                store.register(fork);
+                for (int i = 5; i <= 8; i++)
+                    store.register(chain.get(i));
+                assertEquals(store.get(fork.header.hash()), fork);
+                assertEquals(store.getHashes(4), new Hash[] { h[4], fork.header.hash() });
+            }
+
+            try (var store = SegmentBlockStore.open(dir, 2, 4096)) {
+                assertEquals(store.size(), 10);
+                for (int i = 0; i <= 8; i++)
+                    assertEquals(store.get(h[i]), chain.get(i));
+                assertEquals(store.getHashes(4), new Hash[] { h[4], fork.header.hash() });
+                assertEquals(store.getHashes(8), new Hash[] { h[8] });
+            }
+        } finally {
+            StorageTests.delete(dir);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testDecode() throws RLPParsingException {
+        var parent = child(Config.GENESIS, 0, 0);
+        var uncle = child(Config.GENESIS, 1, 1).header;
+        var block = child(parent, 3, 0, uncle);
+        var encoding = block.rlpEncode();
+        assertEquals(Block.decode(encoding), block);
+        assertEquals(Block.decodeHeader(encoding), block.header);
+        assertEquals(Block.decodeHeader(encoding).hash(), block.header.hash());
+        // not a block
+        expectThrows(RLPParsingException.class,
+            () -> Block.decodeHeader(RLP.bytes(new byte[] { 1 }).encode()));
+        expectThrows(RLPParsingException.class,
+            () -> Block.decodeHeader(RLP.sequence(RLP.bytes(new byte[] { 1 })).encode()));
+    }
+
+    // ---------------------------------------------------------------------------------------------
 }
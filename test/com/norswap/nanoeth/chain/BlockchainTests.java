@@ -0,0 +1,116 @@
+package com.norswap.nanoeth.chain;
+
+import com.norswap.nanoeth.Config;
+import com.norswap.nanoeth.blocks.Block;
+import com.norswap.nanoeth.blocks.BlockHeader;
+import com.norswap.nanoeth.blocks.Blocks;
+import com.norswap.nanoeth.data.Address;
+import com.norswap.nanoeth.data.Hash;
+import com.norswap.nanoeth.data.MerkleRoot;
+import com.norswap.nanoeth.data.Natural;
+import com.norswap.nanoeth.receipts.BloomFilter;
+import com.norswap.nanoeth.transactions.Transaction;
+import com.norswap.nanoeth.trees.patricia.PatriciaTree;
+import java.util.ArrayList;
+import org.testng.annotations.Test;
+
+import static com.norswap.nanoeth.blocks.BlockValidity.BLOCK_VALID;
+import static com.norswap.nanoeth.blocks.BlockValidityStatus.*;
+import static org.testng.Assert.*;
+
+public final class BlockchainTests {
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a child of {@code parent} without transactions, with the given difficulty, that is
+     * valid if proof of work validation is disabled. The timestamp offset distinguishes siblings.
+     */
+    private static Block child (Block parent, long difficulty, int timestampOffset) {
+        var p = parent.header;
+        var header = new BlockHeader(
+            p.hash(), Hash.EMPTY_SEQ_HASH, Address.ZERO, MerkleRoot.ZERO,
+            PatriciaTree.EMPTY_TREE_ROOT, MerkleRoot.ZERO, new BloomFilter(),
+            new Natural(difficulty), p.number.add(1), p.gasLimit, Natural.ZERO,
+            p.timestamp.add(15 + timestampOffset), new byte[0], Hash.ZERO, 0);
+        return new Block(header, new Transaction[0], new BlockHeader[0]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Checks that the canonical chain is made of the given blocks. */
+    private static void assertCanonical (Blockchain chain, ArrayList<Block> blocks) {
+        assertEquals(chain.height(), blocks.size() - 1);
+        assertEquals(chain.head(), blocks.get(blocks.size() - 1).header);
+        for (int i = 0; i < blocks.size(); i++) {
+            var hash = blocks.get(i).header.hash();
+            assertEquals(chain.canonicalHash(i), hash);
+            assertTrue(chain.isCanonical(i, hash));
+            assertEquals(chain.canonicalBlock(i), blocks.get(i));
+        }
+        assertNull(chain.canonicalHash(blocks.size()));
+        assertNull(chain.canonicalBlock(blocks.size()));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testBlockchain() {
+        Config.VALIDATE_POW = false;
+        try {
+            var chain = new Blockchain(new Blocks(), Config.GENESIS);
+            var genesisDifficulty = Config.GENESIS.header.difficulty;
+
+            // main chain: 6 blocks of difficulty 10
+            var main = new ArrayList<Block>();
+            main.add(Config.GENESIS);
+            for (int i = 1; i <= 6; i++) {
+                main.add(child(main.get(i - 1), 10, 0));
+                assertEquals(chain.add(main.get(i)), BLOCK_VALID);
+            }
+            assertCanonical(chain, main);
+            assertEquals(chain.headTotalDifficulty(), genesisDifficulty.add(new Natural(60)));
+
+            // lighter fork from block 3: not canonical
+            var fork = new ArrayList<>(main.subList(0, 4));
+            fork.add(child(fork.get(3), 10, 1));
+            fork.add(child(fork.get(4), 15, 0));
+            assertEquals(chain.add(fork.get(4)), BLOCK_VALID);
+            assertEquals(chain.add(fork.get(5)), BLOCK_VALID);
+            assertCanonical(chain, main);
+            assertFalse(chain.isCanonical(4, fork.get(4).header.hash()));
+            assertEquals(chain.totalDifficulty(fork.get(5).header.hash()),
+                genesisDifficulty.add(new Natural(55)));
+
+            // same total difficulty as the head: the head is kept
+            fork.add(child(fork.get(5), 5, 0));
+            assertEquals(chain.add(fork.get(6)), BLOCK_VALID);
+            assertCanonical(chain, main);
+
+            // heavier: reorg
+            fork.add(child(fork.get(6), 1, 0));
+            assertEquals(chain.add(fork.get(7)), BLOCK_VALID);
+            assertCanonical(chain, fork);
+
+            // shorter but heavier fork from block 5 of the main chain: reorg back
+            main.add(child(main.get(6), 3, 0));
+            assertEquals(chain.add(main.get(7)), BLOCK_VALID);
+            assertCanonical(chain, main);
+
+            // adding twice has no effect, unknown parents and invalid blocks are rejected
+            assertEquals(chain.add(fork.get(7)), BLOCK_VALID);
+            assertCanonical(chain, main);
+            var orphan = child(child(main.get(7), 10, 0), 10, 0);
+            assertEquals(chain.add(orphan).status, VAL_UNKNOWN_PARENT);
+            var sibling = child(main.get(6), 100, 0);
+            var invalid = new Block(sibling.header, sibling.transactions,
+                new BlockHeader[] { main.get(1).header });
+            assertEquals(chain.add(invalid).status, VAL_UNCLE_IS_ANCESTOR);
+            assertNull(chain.totalDifficulty(invalid.header.hash()));
+            assertCanonical(chain, main);
+        } finally {
+            Config.VALIDATE_POW = true;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
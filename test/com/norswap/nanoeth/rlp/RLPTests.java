@@ -1,13 +1,25 @@
 package com.norswap.nanoeth.rlp;
 
+import com.norswap.nanoeth.data.Natural;
 import org.testng.annotations.Test;
 
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.stream.IntStream;
 
 import static com.norswap.nanoeth.utils.ByteUtils.array;
 import static com.norswap.nanoeth.utils.ByteUtils.concat;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
 
 public final class RLPTests {
 
@@ -185,4 +197,222 @@ public final class RLPTests {
     }
 
     // ---------------------------------------------------------------------------------------------
+
+    @Test public void testViews() {
+        for (int i = 0; i < BYTES_DECODED.length; ++i) {
+            var view = RLPView.of(BYTES_ENCODED[i]);
+            assertTrue(view.isBytes());
+            assertEquals(view.bytes(), BYTES_DECODED[i]);
+            assertEquals(view.payloadSize(), BYTES_DECODED[i].length);
+            assertEquals(view.encode(), BYTES_ENCODED[i]);
+            assertEquals(view.toRLP(), RLP.bytes(BYTES_DECODED[i]));
+        }
+
+        var seq = RLP.sequence(
+            RLP.sequence(INDIRECT_500, SINGLE_127),
+            RLP.sequence(),
+            RLP.bytes(DIRECT_55));
+        var view = RLPView.of(seq.encode());
+        assertTrue(view.isSequence());
+        assertEquals(view.size(), 3);
+        assertEquals(view.toRLP(), seq);
+        assertEquals(view.itemAt(0).itemAt(0).bytes(), INDIRECT_500);
+        assertEquals(view.itemAt(0).itemAt(1).byteAt(0), (byte) 127);
+        assertEquals(view.itemAt(1).size(), 0);
+        assertNull(view.itemAt(1).first());
+        assertEquals(view.itemAt(2).payload(), ByteBuffer.wrap(DIRECT_55));
+        assertEquals(view.items().length, 3);
+        assertNull(view.itemAt(2).next());
+
+        assertThrows(IllegalRLPAccess.class, () -> view.bytes());
+        assertThrows(IllegalRLPAccess.class, () -> view.itemAt(2).items());
+        assertThrows(IllegalRLPAccess.class, () -> view.itemAt(3));
+        assertThrows(IllegalArgumentException.class, () -> RLPView.of(concat(E_DIRECT_2, E_SINGLE_0)));
+        assertThrows(IllegalArgumentException.class, () -> RLPView.of(array(128 + 3, 1, 2)));
+        assertThrows(IllegalArgumentException.class, () -> RLP.decode(array(192 + 3, 128 + 3, 1, 2)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testViewStreaming() throws IOException {
+        var items = new RLP[] {
+            RLP.bytes(INDIRECT_256), RLP.sequence(SINGLE_0, DIRECT_2), RLP.bytes(SINGLE_255) };
+        byte[] stream = concat(Arrays.stream(items).map(RLP::encode).toArray(byte[][]::new));
+
+        var file = Files.createTempFile("rlp", ".bin");
+        try {
+            Files.write(file, stream);
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, stream.length);
+                int i = 0;
+                for (var view = RLPView.at(buffer, 0); view != null; view = view.next())
+                    assertEquals(view.toRLP(), items[i++]);
+                assertEquals(i, items.length);
+                assertFalse(RLPView.at(buffer, 0).isSequence());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testEncodeInto() {
+        var seq = RLP.sequence(
+            RLP.sequence(INDIRECT_500, SINGLE_127, RLP.encoded(E_DIRECT_55)),
+            RLP.sequence(),
+            RLP.bytes(INDIRECT_56),
+            RLP.sequence(RLP.sequence(RLP.sequence(DIRECT_2))));
+        byte[] encoded = encodeSequence(
+            encodeSequence(E_INDIRECT_500, E_SINGLE_127, E_DIRECT_55),
+            E_EMPTY_SEQ,
+            E_INDIRECT_56,
+            encodeSequence(encodeSequence(encodeSequence(E_DIRECT_2))));
+
+        assertEquals(seq.encode(), encoded);
+        assertEquals(seq.encodedSize(), encoded.length);
+
+        var buffer = ByteBuffer.allocate(encoded.length + 4);
+        buffer.put((byte) 1);
+        seq.encodeInto(buffer);
+        assertEquals(buffer.position(), encoded.length + 1);
+        assertEquals(Arrays.copyOfRange(buffer.array(), 1, encoded.length + 1), encoded);
+
+        var small = ByteBuffer.allocate(encoded.length - 1);
+        assertThrows(BufferOverflowException.class, () -> seq.encodeInto(small));
+        assertEquals(small.position(), 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testLazyDecoding() throws RLPParsingException {
+        var seq = RLP.sequence(
+            RLP.sequence(INDIRECT_500, SINGLE_127),
+            RLP.sequence(),
+            RLP.bytes(DIRECT_55),
+            RLP.sequence(RLP.sequence(DIRECT_2)));
+        byte[] encoded = seq.encode();
+
+        var lazy = RLP.decodeLazily(encoded);
+        assertTrue(lazy.isSequence());
+        assertEquals(lazy.encode(), encoded);
+        assertEquals(lazy.encodedSize(), encoded.length);
+        assertEquals(lazy.itemAt(3).itemAt(0).itemAt(0).bytes(), DIRECT_2);
+        assertEquals(lazy, seq);
+        assertEquals(seq, lazy);
+        assertEquals(lazy.hashCode(), seq.hashCode());
+        assertEquals(RLP.sequence(lazy, RLP.bytes(SINGLE_0)).encode(),
+                     RLP.sequence(seq,  RLP.bytes(SINGLE_0)).encode());
+        assertEquals(lazy.size(), 4);
+        assertEquals(lazy.items().length, 4);
+        assertEquals(RLPParsing.getBytes(lazy, 2), DIRECT_55);
+        assertThrows(RLPParsingException.class, () -> RLPParsing.getBytes(lazy, 4));
+        assertThrows(IllegalRLPAccess.class, () -> lazy.itemAt(2).size());
+        assertEquals(lazy.itemAt(0).encode(), seq.itemAt(0).encode());
+
+        byte[] padded = concat(array(1, 2), encoded, array(3));
+        var lazyRange = RLP.decodeLazily(padded, 2, encoded.length);
+        assertEquals(lazyRange, seq);
+        assertEquals(lazyRange.encode(), encoded);
+
+        assertEquals(RLP.decodeLazily(E_INDIRECT_56), RLP.bytes(INDIRECT_56));
+        assertThrows(IllegalArgumentException.class, () -> RLP.decodeLazily(concat(encoded, E_SINGLE_0)));
+        assertThrows(IllegalArgumentException.class, () -> RLP.decodeLazily(array(192 + 3, 128 + 3, 1, 2)));
+        assertThrows(IllegalArgumentException.class,
+            () -> RLP.decodeLazily(array(192 + 5, 192 + 3, 128 + 3, 1, 2, 3)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final class Entry {
+        final byte[] key;
+        final BigInteger value;
+
+        Entry (byte[] key, BigInteger value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        RLP rlpLayout() {
+            return RLP.sequence(key, new Natural(value));
+        }
+    }
+
+    private static final class Point {
+        final long id;
+        final BigInteger weight;
+        final byte[] label;
+        final byte[][] tags;
+        final Entry[] entries;
+
+        Point (long id, BigInteger weight, byte[] label, byte[][] tags, Entry... entries) {
+            this.id = id;
+            this.weight = weight;
+            this.label = label;
+            this.tags = tags;
+            this.entries = entries;
+        }
+
+        RLP rlpLayout() {
+            return RLP.sequence(id, new Natural(weight), label, RLP.sequence((Object[]) tags),
+                RLP.sequence(Arrays.stream(entries).map(Entry::rlpLayout).toArray(RLP[]::new)));
+        }
+    }
+
+    private static final RLPCodec<Entry> ENTRY_CODEC = RLPCodec.<Entry>builder()
+        .bytes(it -> it.key)
+        .natural(it -> it.value)
+        .build(reader -> new Entry(reader.bytes(), reader.natural()));
+
+    private static final RLPCodec<Point> POINT_CODEC = RLPCodec.<Point>builder()
+        .int64(it -> it.id)
+        .natural(it -> it.weight)
+        .bytes(it -> it.label)
+        .bytesList(it -> it.tags)
+        .list(it -> it.entries, ENTRY_CODEC)
+        .build(reader -> new Point(reader.int64(), reader.natural(), reader.bytes(),
+            reader.bytesList(), reader.list(ENTRY_CODEC, Entry[]::new)));
+
+    private static void assertPointEquals (Point actual, Point expected) {
+        assertEquals(actual.id, expected.id);
+        assertEquals(actual.weight, expected.weight);
+        assertEquals(actual.label, expected.label);
+        assertEquals(actual.tags, expected.tags);
+        assertEquals(actual.entries.length, expected.entries.length);
+        for (int i = 0; i < actual.entries.length; i++) {
+            assertEquals(actual.entries[i].key, expected.entries[i].key);
+            assertEquals(actual.entries[i].value, expected.entries[i].value);
+        }
+    }
+
+    @Test public void testCodec() throws RLPParsingException {
+        var weights = new BigInteger[] {
+            BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(127), BigInteger.valueOf(128),
+            BigInteger.valueOf(65536), BigInteger.TWO.pow(63), BigInteger.TWO.pow(256).subtract(BigInteger.ONE) };
+
+        for (var weight: weights) {
+            var point = new Point(Long.MAX_VALUE, weight, INDIRECT_56, new byte[][] { SINGLE_0, DIRECT_55 },
+                new Entry(EMPTY_BYTES, weight),
+                new Entry(INDIRECT_500, BigInteger.TEN),
+                new Entry(SINGLE_127, weight));
+            var empty = new Point(0, weight, EMPTY_BYTES, new byte[0][]);
+            assertEquals(POINT_CODEC.encode(empty), empty.rlpLayout().encode());
+
+            byte[] encoding = point.rlpLayout().encode();
+            assertEquals(POINT_CODEC.encode(point), encoding);
+            assertEquals(POINT_CODEC.encodedSize(point), encoding.length);
+            assertPointEquals(POINT_CODEC.decode(encoding), point);
+
+            var buffer = ByteBuffer.allocate(encoding.length);
+            POINT_CODEC.encodeInto(point, buffer);
+            assertEquals(buffer.array(), encoding);
+        }
+
+        assertThrows(RLPParsingException.class, () -> POINT_CODEC.decode(RLP.sequence().encode()));
+        assertThrows(RLPParsingException.class, () -> POINT_CODEC.decode(E_DIRECT_2));
+        assertThrows(RLPParsingException.class,
+            () -> POINT_CODEC.decode(RLP.sequence(RLP.bytes(DIRECT_2)).encode()));
+    }
+
+    // ---------------------------------------------------------------------------------------------
 }
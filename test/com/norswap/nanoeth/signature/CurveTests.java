@@ -1,13 +1,27 @@
 package com.norswap.nanoeth.signature;
 
 import com.norswap.nanoeth.utils.ReflectionUtils;
+import org.bouncycastle.asn1.x9.X9IntegerConverter;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.crypto.signers.HMacDSAKCalculator;
+import org.bouncycastle.math.ec.ECAlgorithms;
 import org.bouncycastle.math.ec.ECPoint;
 import org.testng.annotations.Test;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.norswap.nanoeth.crypto.Curve.SECP256K1;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.expectThrows;
 
 /**
  * Tests the private {@code com.norswap.nanoeth.signature.Curve} class.
@@ -30,6 +44,77 @@ public final class CurveTests {
 
     // ---------------------------------------------------------------------------------------------
 
+    @Test public void testSignRecoveryId() {
+        var random = new Random(42);
+        var bcSigner = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
+        var domain = new ECDomainParameters(SECP256K1.G().getCurve(), SECP256K1.G(), SECP256K1.n());
+        for (int i = 0; i < 200; i++) {
+            var key = new BigInteger(256, random).mod(SECP256K1.n()).max(BigInteger.ONE);
+            var keys = new EthKeyPair(key);
+            var message = new byte[32];
+            random.nextBytes(message);
+
+            // same (r, s) as BouncyCastle's signer
+            var components = SECP256K1.sign(key, message);
+            bcSigner.init(true, new ECPrivateKeyParameters(key, domain));
+            var expected = bcSigner.generateSignature(message);
+            assertEquals(components[0], expected[0]);
+            assertEquals(components[1], expected[1]);
+
+            int recoveryId = components[2].intValueExact();
+            assertEquals(SECP256K1.recover(recoveryId, components[0], components[1], message),
+                keys.publicKey);
+
+            // the y parity is still right after canonicalizing s
+            var signature = keys.signWithoutHashing(message);
+            assertEquals(signature.recoverPublicKeyWithoutHashing(message), keys.publicKey);
+            assertTrue(signature.verifyWithoutHashing(keys.publicKey, message));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testConcurrentSignVerify() throws Exception {
+        int threads = 8, perThread = 50;
+        var random = new Random(42);
+        var keys = new EthKeyPair[threads * perThread];
+        var messages = new byte[keys.length][];
+        var expected = new Signature[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new EthKeyPair(new BigInteger(256, random).mod(SECP256K1.n())
+                .max(BigInteger.ONE));
+            messages[i] = new byte[32];
+            random.nextBytes(messages[i]);
+            expected[i] = keys[i].signWithoutHashing(messages[i]);
+        }
+
+        var executor = Executors.newFixedThreadPool(threads);
+        try {
+            var tasks = new ArrayList<Future<?>>();
+            for (int t = 0; t < threads; t++) {
+                int offset = t;
+                tasks.add(executor.submit(() -> {
+                    // interleave indices between threads so that they work on different keys
+                    for (int i = offset; i < keys.length; i += threads) {
+                        var signature = keys[i].signWithoutHashing(messages[i]);
+                        assertEquals(signature, expected[i]);
+                        assertTrue(signature.verifyWithoutHashing(keys[i].publicKey, messages[i]));
+                        var other = keys[(i + 1) % keys.length].publicKey;
+                        assertFalse(signature.verifyWithoutHashing(other, messages[i]));
+                        assertEquals(signature.recoverPublicKeyWithoutHashing(messages[i]),
+                            keys[i].publicKey);
+                    }
+                }));
+            }
+            for (var task: tasks)
+                task.get(); // rethrows assertion failures
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     @Test public void testPoint() {
         var x = publicKey.getXCoord().toBigInteger();
         var y = publicKey.getYCoord().toBigInteger();
@@ -38,4 +123,62 @@ public final class CurveTests {
     }
 
     // ---------------------------------------------------------------------------------------------
+
+    @Test public void testRecover() {
+        var random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            var keys = new EthKeyPair(new BigInteger(256, random).mod(SECP256K1.n())
+                .max(BigInteger.ONE));
+            var message = new byte[32];
+            random.nextBytes(message);
+            var signature = keys.signWithoutHashing(message);
+            for (int recoveryId = 0; recoveryId < 4; recoveryId++) {
+                var expected = recoverReference(recoveryId, message, signature.r, signature.s);
+                var actual = SECP256K1.recover(recoveryId, signature.r, signature.s, message);
+                assertEquals(actual, expected);
+            }
+            assertEquals(signature.recoverPublicKeyWithoutHashing(message), keys.publicKey);
+        }
+
+        var message = new byte[32];
+        var s = BigInteger.TEN;
+        assertNull(SECP256K1.recover(0, BigInteger.ZERO, s, message));
+        assertNull(SECP256K1.recover(0, SECP256K1.n(), s, message));
+        assertNull(SECP256K1.recover(0, s, BigInteger.ZERO, message));
+        assertNull(SECP256K1.recover(0, s, SECP256K1.n(), message));
+        // x = r + n is larger than the field prime q
+        assertNull(SECP256K1.recover(2, SECP256K1.n().subtract(BigInteger.ONE), s, message));
+        // x^3 + 7 = 12 has no square root modulo q
+        assertNull(SECP256K1.recover(0, BigInteger.valueOf(5), s, message));
+        expectThrows(IllegalArgumentException.class,
+            () -> SECP256K1.point(BigInteger.valueOf(5), false));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Public key recovery as it was implemented before {@link
+     * com.norswap.nanoeth.crypto.Curve#recover}, going through the compressed encoding of R and
+     * checking that nR is the point at infinity. Used as a reference in tests and benchmarks.
+     */
+    static ECPoint recoverReference (int recoveryId, byte[] message, BigInteger r, BigInteger s) {
+        var x = r.add(BigInteger.valueOf(recoveryId / 2).multiply(SECP256K1.n()));
+        if (x.compareTo(SECP256K1.q()) >= 0)
+            return null;
+        var curve = SECP256K1.G().getCurve();
+        var X9 = new X9IntegerConverter();
+        byte[] compressed = X9.integerToBytes(x, 1 + X9.getByteLength(curve));
+        compressed[0] = (byte) ((recoveryId & 1) == 1 ? 0x03 : 0x02);
+        var R = curve.decodePoint(compressed);
+        if (!R.multiply(SECP256K1.n()).isInfinity())
+            return null;
+        var e = new BigInteger(1, message);
+        var minusE = BigInteger.ZERO.subtract(e).mod(SECP256K1.n());
+        var rInverse = r.modInverse(SECP256K1.n());
+        return ECAlgorithms.sumOfTwoMultiplies(
+            R,             rInverse.multiply(s).mod(SECP256K1.n()),
+            SECP256K1.G(), rInverse.multiply(minusE).mod(SECP256K1.n())).normalize();
+    }
+
+    // ---------------------------------------------------------------------------------------------
 }
@@ -5,8 +5,12 @@ import org.bouncycastle.math.ec.ECPoint;
 import org.testng.annotations.Test;
 import java.lang.reflect.Method;
 import java.math.BigInteger;
+import java.util.Random;
 
+import static com.norswap.nanoeth.crypto.Curve.SECP256K1;
 import static com.norswap.nanoeth.utils.ReflectionUtils.invokeCast;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
 public final class SignatureTests {
@@ -36,4 +40,51 @@ public final class SignatureTests {
     }
 
     // ---------------------------------------------------------------------------------------------
+
+    @Test public void testSignatureBatch() throws IllegalSignature {
+        var random = new Random(42);
+        var batch = new SignatureBatch();
+        assertEquals(batch.verify().length, 0);
+        assertTrue(batch.verifyAll());
+
+        int size = 32;
+        var keys = new EthKeyPair[size];
+        var hashes = new byte[size][];
+        var signatures = new Signature[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = new EthKeyPair(new BigInteger(255, random).add(BigInteger.ONE));
+            hashes[i] = new byte[32];
+            random.nextBytes(hashes[i]);
+            signatures[i] = keys[i].signWithoutHashing(hashes[i]);
+            batch.add(keys[i].publicKey, hashes[i], signatures[i]);
+        }
+        assertEquals(batch.size(), size);
+        assertTrue(batch.verifyAll());
+
+        // one signature for the wrong message, one with the wrong key
+        var bad = new SignatureBatch();
+        for (int i = 0; i < size; i++) {
+            var hash = i == 3 ? hashes[4] : hashes[i];
+            var key  = i == 7 ? keys[8].publicKey : keys[i].publicKey;
+            bad.add(key, hash, signatures[i]);
+        }
+        var valid = bad.verify();
+        for (int i = 0; i < size; i++)
+            assertEquals(valid[i], i != 3 && i != 7, "signature " + i);
+        assertFalse(bad.verifyAll());
+
+        // the batch check relies on the y parity, the individual fallback doesn't
+        var sig = signatures[0];
+        var flipped = new Signature(1 - sig.yParity, sig.r, sig.s);
+        var r = new BigInteger[] { sig.r };
+        var s = new BigInteger[] { sig.s };
+        var publicKeys = new ECPoint[] { keys[0].publicKey };
+        assertFalse(SECP256K1.verifyBatch(
+            publicKeys, r, s, new int[] { flipped.yParity }, new byte[][] { hashes[0] }));
+        assertTrue(SECP256K1.verifyBatch(
+            publicKeys, r, s, new int[] { sig.yParity }, new byte[][] { hashes[0] }));
+        assertTrue(new SignatureBatch().add(keys[0].publicKey, hashes[0], flipped).verifyAll());
+    }
+
+    // ---------------------------------------------------------------------------------------------
 }
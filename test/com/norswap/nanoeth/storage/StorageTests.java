@@ -0,0 +1,182 @@
+package com.norswap.nanoeth.storage;
+
+import com.norswap.nanoeth.utils.Hashing;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
+public final class StorageTests {
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Creates a temporary directory, to be deleted with {@link #delete(Path)}. */
+    public static Path tempDirectory() throws IOException {
+        return Files.createTempDirectory("nanoeth");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Recursively deletes the given directory. */
+    public static void delete (Path directory) throws IOException {
+        try (var paths = Files.walk(directory)) {
+            for (var path: (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testSegmentLog() throws IOException {
+        var dir = tempDirectory();
+        try {
+            var random = new Random(42);
+            var records = new byte[200][];
+            var locations = new long[records.length];
+
+            // small segments, to exercise segment rollover
+            try (var log = SegmentLog.open(dir, "test", 1024)) {
+                for (int i = 0; i < records.length; i++) {
+                    records[i] = new byte[random.nextInt(100)];
+                    random.nextBytes(records[i]);
+                    locations[i] = log.append(records[i]);
+                    assertNotEquals(locations[i], 0L);
+                }
+                for (int i = 0; i < records.length; i++) {
+                    assertEquals(log.read(locations[i]), records[i]);
+                    assertEquals(log.slice(locations[i]).remaining(), records[i].length);
+                }
+                assertThrows(IllegalArgumentException.class, () -> log.append(new byte[1024]));
+            }
+
+            try (var log = SegmentLog.open(dir, "test", 1024)) {
+                for (int i = 0; i < records.length; i++)
+                    assertEquals(log.read(locations[i]), records[i]);
+                var location = log.append(new byte[] { 1, 2, 3 });
+                assertTrue(location > locations[records.length - 1]);
+                assertEquals(log.read(location), new byte[] { 1, 2, 3 });
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testSegmentLogCrash() throws IOException {
+        var dir = tempDirectory();
+        try {
+            // the first log is never closed, simulating a crash
+            var crashed = SegmentLog.open(dir, "test", 64);
+            var flushed = crashed.append(new byte[] { 1, 2, 3 });
+            crashed.flush();
+            for (int i = 0; i < 10; i++)
+                crashed.append(new byte[20]); // rolls over to new segments
+
+            try (var log = SegmentLog.open(dir, "test", 64)) {
+                assertEquals(log.read(flushed), new byte[] { 1, 2, 3 });
+                // unflushed records are lost, and their space reused
+                var location = log.append(new byte[20]);
+                assertEquals(location, flushed + 7);
+                assertThrows(IllegalArgumentException.class, () -> log.read(location + 24));
+                for (int i = 0; i < 10; i++)
+                    log.append(new byte[20]);
+            }
+
+            try (var log = SegmentLog.open(dir, "test", 64)) {
+                assertEquals(log.read(flushed), new byte[] { 1, 2, 3 });
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testHashIndex() throws IOException {
+        var dir = tempDirectory();
+        try {
+            var file = dir.resolve("test.idx");
+            var expected = new HashMap<Integer, Long>();
+            var random = new Random(42);
+
+            // enough keys to force the table to grow a few times
+            try (var index = HashIndex.open(file)) {
+                for (int i = 0; i < 5000; i++) {
+                    var value = random.nextLong() | 1;
+                    index.put(key(i), value);
+                    expected.put(i, value);
+                }
+                index.put(key(0), 42);
+                expected.put(0, 42L);
+                for (int i = 0; i < 5000; i += 3) {
+                    assertEquals(index.remove(key(i)), (long) expected.remove(i));
+                    assertEquals(index.remove(key(i)), 0L);
+                }
+                assertEquals(index.size(), expected.size());
+            }
+
+            try (var index = HashIndex.open(file)) {
+                assertEquals(index.size(), expected.size());
+                for (int i = 0; i < 6000; i++)
+                    assertEquals(index.get(key(i)), (long) expected.getOrDefault(i, 0L));
+                assertThrows(IllegalArgumentException.class, () -> index.put(key(0), 0));
+                assertThrows(IllegalArgumentException.class, () -> index.get(new byte[20]));
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testHashIndexCrash() throws IOException {
+        var dir = tempDirectory();
+        try {
+            var file = dir.resolve("test.idx");
+            try (var index = HashIndex.open(file)) {
+                assertTrue(index.flushed());
+                index.put(key(0), 1);
+                assertFalse(index.flushed());
+            }
+
+            // the index is never closed, simulating a crash
+            var crashed = HashIndex.open(file);
+            assertTrue(crashed.flushed());
+            for (int i = 1; i < 1000; i++) // forces the table to grow
+                crashed.put(key(i), i + 1);
+
+            try (var index = HashIndex.open(file)) {
+                assertFalse(index.flushed());
+                index.clear();
+                assertEquals(index.size(), 0);
+                assertEquals(index.get(key(0)), 0);
+                index.put(key(0), 1);
+            }
+
+            try (var index = HashIndex.open(file)) {
+                assertTrue(index.flushed());
+                assertEquals(index.size(), 1);
+                assertEquals(index.get(key(0)), 1);
+                assertEquals(index.get(key(1)), 0);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static byte[] key (int i) {
+        return Hashing.keccak(new byte[] { (byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8),
+            (byte) i }).bytes;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -7,6 +7,9 @@ import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
 import static com.norswap.nanoeth.Context.CONTEXT;
@@ -60,6 +63,11 @@ public final class TransactionTests {
         var txReconstructedFromRlp = Transaction.from(rlpFromTx);
         assertEquals(txReconstructedFromRlp, tx); // test transaction parsing
 
+        // test the access list codec against the access list layout
+        var accessListEncoding = tx.accessList.rlpLayout().encode();
+        assertEquals(AccessList.CODEC.encode(tx.accessList), accessListEncoding);
+        assertEquals(AccessList.CODEC.decode(accessListEncoding), tx.accessList);
+
         // test dumping hex string: toHexString(tx) == hexString
         assertEquals(tx.toHexString(), hex);
 
@@ -76,5 +84,72 @@ public final class TransactionTests {
         }
     }
 
+    // ---------------------------------------------------------------------------------------------
+    @Test public void testRecoverSenders() throws RLPParsingException {
+        var testCases = Stream.concat(
+                SharedTransactionData.TEST_CASES.stream(),
+                OwnTransactionData.TEST_CASES.stream())
+            .filter(t -> t.valid)
+            .toArray(TransactionTestCase[]::new);
+
+        var txs = new Transaction[testCases.length];
+        for (int i = 0; i < txs.length; i++) {
+            CONTEXT.blockHeight = testCases[i].blockHeight;
+            txs[i] = Transaction.from(RLP.decode(testCases[i].hexRLP));
+        }
+        CONTEXT.reset();
+
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            var senders = Transaction.recoverSenders(txs, executor);
+            assertEquals(senders.length, txs.length);
+            for (int i = 0; i < txs.length; i++)
+                assertEquals(senders[i].toString(), testCases[i].sender);
+            assertEquals(Transaction.recoverSenders(new Transaction[0], executor).length, 0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testMemoization() throws Exception {
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            for (var testCase: OwnTransactionData.TEST_CASES) {
+                if (!testCase.valid) continue;
+                CONTEXT.blockHeight = testCase.blockHeight;
+                var tx = Transaction.from(RLP.decode(testCase.hexRLP));
+
+                // concurrent first calls all get the same instances
+                var tasks = new ArrayList<Future<Object[]>>();
+                for (int i = 0; i < 8; i++)
+                    tasks.add(executor.submit(() -> new Object[] {
+                        tx.recoverSender(), tx.hash(), tx.binary(), tx.signingPayload() }));
+                var first = tasks.get(0).get();
+                for (var task: tasks) {
+                    var values = task.get();
+                    for (int i = 0; i < values.length; i++)
+                        assertSame(values[i], first[i]);
+                }
+                assertEquals(tx.recoverSender().toString(), testCase.sender);
+                assertEquals(tx.hash().toFullHexString(), testCase.hash);
+                assertEquals(ByteUtils.toCompressedHexString(tx.binary()), testCase.hexRLP);
+
+                // a transaction built from the same fields computes the same values
+                var copy = new Transaction(tx.format, tx.chainId, tx.nonce, tx.maxFeePerGas,
+                    tx.maxPriorityFeePerGas, tx.gasLimit, tx.to, tx.value, tx.payload,
+                    tx.accessList, tx.signature);
+                assertEquals(copy.binary(), tx.binary());
+                assertEquals(copy.signingPayload(), tx.signingPayload());
+                assertEquals(copy.hash(), tx.hash());
+                assertEquals(copy.recoverSender(), tx.recoverSender());
+            }
+        } finally {
+            CONTEXT.reset();
+            executor.shutdown();
+        }
+    }
+
     // ---------------------------------------------------------------------------------------------
 }
@@ -5,6 +5,8 @@ import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.util.Random;
+
 import static com.norswap.nanoeth.utils.ByteUtils.hexStringToBytes;
 import static com.norswap.nanoeth.utils.ByteUtils.toFullHexString;
 
@@ -68,4 +70,56 @@ public class HexPrefixTests {
     }
 
     // ---------------------------------------------------------------------------------------------
+
+    @Test(dataProvider = "examples")
+    public void testFromHexPrefix (int ignoreStart, int ignoreEnd, String nibblesString,
+            String encoded) {
+        var bytes = hexStringToBytes(nibblesString);
+        var nibbles = new Nibbles(bytes, ignoreStart, bytes.length * 2 - ignoreEnd);
+        // the end index is a nibble index: 2 * the size of the encoding
+        var decoded = Nibbles.fromHexPrefix(hexStringToBytes(encoded));
+        Assert.assertEquals(decoded.length(), nibbles.length());
+        Assert.assertEquals(decoded, nibbles);
+        Assert.assertEquals(Nibbles.fromHexPrefix(nibbles.hexPrefix(true)), nibbles);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testSharedPrefix() {
+        var random = new Random(42);
+        for (int n = 0; n < 2000; n++) {
+            var a = new byte[1 + random.nextInt(40)];
+            var b = new byte[1 + random.nextInt(40)];
+            random.nextBytes(a);
+            random.nextBytes(b);
+            // make long shared prefixes likely
+            int copied = Math.min(random.nextInt(40), Math.min(a.length, b.length));
+            System.arraycopy(a, 0, b, 0, copied);
+            int aStart = random.nextInt(2), bStart = random.nextInt(2);
+            var x = new Nibbles(a, aStart, aStart + random.nextInt(a.length * 2 - aStart + 1));
+            var y = new Nibbles(b, bStart, b.length * 2);
+
+            int expected = 0;
+            while (expected < Math.min(x.length(), y.length())
+                    && x.get(expected) == y.get(expected))
+                ++expected;
+
+            Assert.assertEquals(x.sharedPrefix(y), expected);
+            Assert.assertEquals(x.sharedPrefix(b, bStart), expected);
+            for (int i = 0; i < y.length(); i++)
+                Assert.assertEquals(Nibbles.get(b, bStart + i), y.get(i));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testEqualsAndHashCode() {
+        var x = new Nibbles(hexStringToBytes("0x123456"), 1, 5);
+        var y = new Nibbles(hexStringToBytes("0x2345"));
+        Assert.assertEquals(x, y);
+        Assert.assertEquals(x.hashCode(), y.hashCode());
+        Assert.assertNotEquals(x, new Nibbles(hexStringToBytes("0x2346")));
+    }
+
+    // ---------------------------------------------------------------------------------------------
 }
@@ -1,13 +1,35 @@
 package com.norswap.nanoeth.trees.patricia;
 
+import com.norswap.nanoeth.data.MerkleRoot;
+import com.norswap.nanoeth.rlp.RLP;
+import com.norswap.nanoeth.rlp.RLPParsingException;
+import com.norswap.nanoeth.storage.StorageTests;
 import com.norswap.nanoeth.trees.patricia.memory.TreeNodeStore;
+import com.norswap.nanoeth.trees.patricia.store.CapKey;
 import com.norswap.nanoeth.trees.patricia.store.MapNodeStore;
+import com.norswap.nanoeth.trees.patricia.store.MissingNode;
+import com.norswap.nanoeth.trees.patricia.store.PruningNodeStore;
+import com.norswap.nanoeth.trees.patricia.store.SegmentNodeStore;
+import com.norswap.nanoeth.trees.patricia.store.SnapshotNodeStore;
 import com.norswap.nanoeth.utils.DebugUtils;
 import com.norswap.nanoeth.utils.Hashing;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.norswap.nanoeth.utils.ByteUtils.hexStringToBytes;
 import static com.norswap.nanoeth.utils.ByteUtils.toFullHexString;
@@ -74,6 +96,686 @@ public class PatriciaTreeTests {
 
     // ---------------------------------------------------------------------------------------------
 
+    @Test public void testCapKey() {
+        var hash = Hashing.keccak(new byte[] { 1, 2, 3 }).bytes;
+        assertEquals(CapKey.of(hash), CapKey.of(hash.clone()));
+        assertEquals(CapKey.of(hash).hashCode(), CapKey.of(hash.clone()).hashCode());
+        assertSame(CapKey.of(hash).cap(), hash);
+        assertTrue(CapKey.of(hash).isHash());
+
+        var other = hash.clone();
+        other[31] ^= 1;
+        assertNotEquals(CapKey.of(hash), CapKey.of(other));
+
+        var inline = hexStringToBytes("0xc4821234820101");
+        assertEquals(CapKey.of(inline), CapKey.of(inline.clone()));
+        assertFalse(CapKey.of(inline).isHash());
+        assertEquals(CapKey.of(inline).cap(), inline);
+        assertNotEquals(CapKey.of(inline), CapKey.of(Arrays.copyOf(inline, 32)));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testContentAddressedStore() throws RLPParsingException {
+        var keys = new String[] { "doe", "dog", "dogglesworth" };
+        var values = new String[] { "reindeer", "puppy", "cat" };
+        var tree = new PatriciaTree(new MapNodeStore());
+        for (int i = 0; i < keys.length; i++)
+            tree = tree.add(keys[i].getBytes(), values[i].getBytes());
+
+        assertEquals(tree.merkleRoot(), new MerkleRoot(
+            "0x8aad789dff2f538bca5d8ea56e8abe10f4c7ba3a5dea95fea4cd6e7c3a1168d3"));
+
+        // Re-parse the nodes from their encoding, so that all caps are fresh arrays.
+        var store = new MapNodeStore();
+        for (var key: keys)
+            for (var node: tree.prove(key.getBytes()).branch)
+                store.addNode(PatriciaNode.parse(RLP.decode(node.compose().encode())));
+
+        var root = store.getNode(tree.root.cap().clone());
+        assertNotNull(root);
+        var copy = new PatriciaTree(store, root);
+        for (int i = 0; i < keys.length; i++)
+            assertEquals(copy.lookup(keys[i].getBytes()), values[i].getBytes());
+        assertEquals(copy.merkleRoot(), tree.merkleRoot());
+
+        // Identical nodes share an entry, which survives until every copy has been removed.
+        var leaf = new PatriciaLeafNode(new Nibbles((byte) 1), new byte[] { 2 });
+        var twin = new PatriciaLeafNode(new Nibbles((byte) 1), new byte[] { 2 });
+        var size = store.size();
+        store.addNode(leaf);
+        store.addNode(twin);
+        assertEquals(store.size(), size + 1);
+        store.removeNode(leaf);
+        assertSame(store.getNode(twin.cap().clone()), leaf);
+        store.removeNode(twin);
+        assertNull(store.getNode(twin.cap()));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testSegmentStore() throws IOException {
+        var dir = StorageTests.tempDirectory();
+        try {
+            var random = new Random(42);
+            var keys = new byte[2000][];
+            var values = new byte[keys.length][];
+            var tree = new PatriciaTree(new TreeNodeStore());
+            byte[] rootCap;
+
+            // small segments and cache, to exercise segment rollover and cache eviction
+            try (var store = SegmentNodeStore.open(dir, 100, 64 * 1024)) {
+                var stored = new PatriciaTree(store);
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = new byte[1 + random.nextInt(32)];
+                    random.nextBytes(keys[i]);
+                    values[i] = new byte[1 + random.nextInt(64)];
+                    random.nextBytes(values[i]);
+                    tree = tree.add(keys[i], values[i]);
+                    stored = stored.add(keys[i], values[i]);
+                }
+                assertEquals(stored.merkleRoot(), tree.merkleRoot());
+                rootCap = stored.root.cap();
+            }
+
+            try (var store = SegmentNodeStore.open(dir, 100, 64 * 1024)) {
+                var stored = new PatriciaTree(store, store.getNode(rootCap));
+                assertEquals(stored.merkleRoot(), tree.merkleRoot());
+                for (int i = 0; i < keys.length; i++)
+                    assertEquals(stored.lookup(keys[i]), tree.lookup(keys[i]));
+                var key = new byte[] { 1, 2, 3 };
+                stored = stored.add(key, key);
+                assertEquals(stored.merkleRoot(), tree.add(key, key).merkleRoot());
+                assertEquals(stored.lookup(key), key);
+            }
+        } finally {
+            StorageTests.delete(dir);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testBatch() {
+        var random = new Random(42);
+        var keys = new byte[3000][];
+        var values = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            // short keys to get many shared prefixes, and keys that are prefixes of other keys
+            keys[i] = new byte[1 + random.nextInt(3)];
+            random.nextBytes(keys[i]);
+            keys[i][0] &= 0x1F;
+            values[i] = new byte[1 + random.nextInt(40)];
+            random.nextBytes(values[i]);
+        }
+
+        var store = new MapNodeStore();
+        var batched = new PatriciaTree(store).addAll(keys, values);
+        var tree = new PatriciaTree(new TreeNodeStore());
+        for (int i = 0; i < keys.length; i++)
+            tree = tree.add(keys[i], values[i]);
+        assertEquals(batched.merkleRoot(), tree.merkleRoot());
+        assertEquals(store.size(), reachableNodes(batched));
+
+        // mix of updates, removals (including of absent keys) and insertions
+        var batch = batched.batch();
+        for (int i = 0; i < keys.length; i++) {
+            var key = keys[random.nextInt(keys.length)];
+            switch (random.nextInt(3)) {
+                case 0:
+                    var value = new byte[] { (byte) i };
+                    batch.put(key, value);
+                    tree = tree.add(key, value);
+                    break;
+                case 1:
+                    batch.remove(key);
+                    tree = tree.remove(key);
+                    break;
+                default:
+                    key = new byte[] { (byte) random.nextInt(), (byte) random.nextInt() };
+                    batch.put(key, key);
+                    tree = tree.add(key, key);
+            }
+            assertEquals(batch.get(key), tree.lookup(key));
+        }
+        batched = batch.commit();
+        assertEquals(batched.merkleRoot(), tree.merkleRoot());
+        assertEquals(store.size(), reachableNodes(batched));
+        for (var key: keys)
+            assertEquals(batched.lookup(key), tree.lookup(key));
+
+        // remove everything
+        batch = batched.batch();
+        for (var key: tree.toMap().keySet())
+            batch.remove(key);
+        batched = batch.commit();
+        assertNull(batched.root);
+        assertEquals(batched.merkleRoot(), PatriciaTree.EMPTY_TREE_ROOT);
+        assertEquals(store.size(), 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testStackTrie() {
+        var random = new Random(42);
+        var keys = new byte[3000][];
+        var values = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            // short keys to get many shared prefixes, and keys that are prefixes of other keys
+            keys[i] = new byte[1 + random.nextInt(3)];
+            random.nextBytes(keys[i]);
+            keys[i][0] &= 0x1F;
+            values[i] = new byte[1 + random.nextInt(40)];
+            random.nextBytes(values[i]);
+        }
+
+        var tree = new PatriciaTree(new TreeNodeStore());
+        for (int i = 0; i < keys.length; i++)
+            tree = tree.add(keys[i], values[i]);
+
+        var sorted = new TreeMap<byte[], byte[]>(Arrays::compareUnsigned);
+        for (int i = 0; i < keys.length; i++)
+            sorted.put(keys[i], values[i]);
+        var trie = new StackTrie();
+        sorted.forEach(trie::add);
+        assertEquals(trie.merkleRoot(), tree.merkleRoot());
+
+        assertEquals(new StackTrie().merkleRoot(), PatriciaTree.EMPTY_TREE_ROOT);
+        assertEquals(new StackTrie().add(keys[0], values[0]).merkleRoot(),
+            new PatriciaTree(new TreeNodeStore()).add(keys[0], values[0]).merkleRoot());
+
+        var trie2 = new StackTrie().add(new byte[] { 1, 2 }, values[0]);
+        for (var key: new byte[][] { { 1, 2 }, { 1 }, { 0, 3 } })
+            assertThrows(IllegalArgumentException.class, () -> trie2.add(key, values[0]));
+
+        // index-keyed lists, around the boundaries of the RLP encoding of the indices
+        for (int size: new int[] { 0, 1, 2, 127, 128, 129, 300 }) {
+            var list = Arrays.copyOf(values, size);
+            var listTree = new PatriciaTree(new TreeNodeStore());
+            for (int i = 0; i < size; i++)
+                listTree = listTree.add(StackTrie.indexKey(i), list[i]);
+            assertEquals(StackTrie.ofList(list), listTree.merkleRoot(), "size " + size);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testParallelMerkleRoot() {
+        var random = new Random(42);
+        var keys = new byte[5000][];
+        var values = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new byte[1 + random.nextInt(32)];
+            random.nextBytes(keys[i]);
+            values[i] = new byte[1 + random.nextInt(40)];
+            random.nextBytes(values[i]);
+        }
+
+        var pool = new ForkJoinPool(4);
+        try {
+            var tree = new PatriciaTree(new TreeNodeStore()).addAll(keys, values);
+            var expected = new PatriciaTree(new TreeNodeStore()).addAll(keys, values).merkleRoot();
+            assertEquals(tree.merkleRoot(pool), expected);
+
+            // only the modified subtrees need hashing
+            var batch = tree.batch();
+            for (int i = 0; i < 100; i++)
+                batch.put(keys[random.nextInt(keys.length)], new byte[] { (byte) i });
+            tree = batch.commit();
+            var sequential = new PatriciaTree(new TreeNodeStore());
+            for (var entry: tree.toMap().entrySet())
+                sequential = sequential.add(entry.getKey(), entry.getValue());
+            assertEquals(tree.merkleRoot(pool), sequential.merkleRoot());
+
+            assertEquals(new PatriciaTree(new TreeNodeStore()).merkleRoot(pool),
+                PatriciaTree.EMPTY_TREE_ROOT);
+            assertEquals(new PatriciaTree(new MapNodeStore()).addAll(keys, values).merkleRoot(pool),
+                expected);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testSnapshotStore() throws InterruptedException {
+        var store = new SnapshotNodeStore();
+        var keys = new byte[200][];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = Hashing.keccak(new byte[] { (byte) i }).bytes;
+
+        // In version v, key i maps to (v, i) if i < 2 * v (mod keys.length), and is absent
+        // otherwise, and the "version" key maps to v.
+        var versionKey = new byte[] { 42 };
+        var done = new AtomicBoolean(false);
+        var failure = new AtomicReference<Throwable>();
+        var readers = new ArrayList<Thread>();
+        for (int t = 0; t < 3; t++) {
+            var reader = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        try (var snapshot = store.snapshot()) {
+                            var version = snapshot.tree.lookup(versionKey);
+                            int v = version == null ? 0 : version[0];
+                            assertEquals(v, snapshot.version);
+                            for (int i = 0; i < keys.length; i++) {
+                                var value = snapshot.tree.lookup(keys[i]);
+                                if (i < Math.min(2 * v, keys.length))
+                                    assertEquals(value, new byte[] { (byte) v, (byte) i });
+                                else
+                                    assertNull(value);
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+
+        var tree = new PatriciaTree(store);
+        for (int v = 1; v <= 100; v++) {
+            var batch = tree.batch();
+            for (int i = 0; i < Math.min(2 * v, keys.length); i++)
+                batch.put(keys[i], new byte[] { (byte) v, (byte) i });
+            batch.put(versionKey, new byte[] { (byte) v });
+            tree = batch.commit();
+            assertEquals(store.commit(tree), v);
+            Thread.yield();
+        }
+
+        done.set(true);
+        for (var reader: readers)
+            reader.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        // once all snapshots are closed, only the latest tree remains
+        var snapshot = store.snapshot();
+        assertEquals(snapshot.version, 100);
+        tree = tree.add(versionKey, new byte[] { 101 });
+        store.commit(tree);
+        assertTrue(store.size() > reachableNodes(tree));
+        snapshot.close();
+        store.reclaim();
+        assertEquals(store.size(), reachableNodes(tree));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testPruningStore() {
+        int depth = 4;
+        var store = new PruningNodeStore(depth);
+        var random = new Random(42);
+        var trees = new ArrayList<PatriciaTree>();
+        var contents = new ArrayList<Map<ByteBuffer, ByteBuffer>>();
+
+        var tree = new PatriciaTree(store);
+        for (int block = 0; block < 30; block++) {
+            // one by one, to create intermediate nodes that are removed within the block
+            for (int i = 0; i < 50; i++) {
+                var key = new byte[] { (byte) random.nextInt(64), (byte) random.nextInt(4) };
+                tree = random.nextInt(4) == 0
+                    ? tree.remove(key)
+                    : tree.add(key, new byte[] { (byte) block, (byte) i });
+            }
+            store.commitBlock(block);
+            trees.add(tree);
+            contents.add(entries(tree));
+
+            // the trees of the last (depth + 1) blocks are intact, older nodes are pruned
+            int first = Math.max(0, block - depth);
+            for (int b = first; b <= block; b++)
+                assertEquals(entries(trees.get(b)), contents.get(b));
+            assertEquals(store.size(), reachableNodes(trees.subList(first, block + 1)));
+        }
+
+        // reorg: drop the last two blocks, and the uncommitted changes
+        tree.add(new byte[] { 1 }, new byte[] { 1 });
+        store.revertTo(27);
+        assertEquals(store.lastBlock(), 27);
+        assertEquals(store.size(), reachableNodes(trees.subList(25, 28)));
+        for (int b = 25; b <= 27; b++)
+            assertEquals(entries(trees.get(b)), contents.get(b));
+
+        tree = trees.get(27).add(new byte[] { 1 }, new byte[] { 1 });
+        store.commitBlock(28);
+        assertEquals(entries(tree).size(), contents.get(27).size() + 1);
+        assertThrows(IllegalArgumentException.class, () -> store.commitBlock(28));
+        assertThrows(IllegalArgumentException.class, () -> store.revertTo(23));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testMultiproof() {
+        var random = new Random(42);
+        var keys = new byte[2000][];
+        var values = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new byte[1 + random.nextInt(3)];
+            random.nextBytes(keys[i]);
+            values[i] = new byte[1 + random.nextInt(40)];
+            random.nextBytes(values[i]);
+        }
+
+        for (var store: new NodeStore[] { new TreeNodeStore(), new MapNodeStore() }) {
+            var tree = new PatriciaTree(store).addAll(keys, values);
+            var root = tree.merkleRoot();
+
+            // present keys, absent keys, and prefixes of present keys
+            var proven = new byte[300][];
+            for (int i = 0; i < proven.length; i++)
+                proven[i] = i % 3 == 0
+                    ? keys[random.nextInt(keys.length)]
+                    : i % 3 == 1
+                        ? new byte[] { (byte) random.nextInt(), 1, 2, 3 }
+                        : Arrays.copyOf(keys[random.nextInt(keys.length)], 1);
+
+            var proof = tree.proveAll(proven);
+            assertTrue(proof.verify(root));
+            int singleProofNodes = 0;
+            for (int i = 0; i < proven.length; i++) {
+                assertEquals(proof.values[i], tree.lookup(proven[i]));
+                singleProofNodes += tree.prove(proven[i]).branch.length;
+            }
+            assertTrue(proof.nodes.length < singleProofNodes / 2);
+
+            assertFalse(proof.verify(PatriciaTree.EMPTY_TREE_ROOT));
+
+            var tampered = proof.values.clone();
+            tampered[0] = new byte[] { 42 };
+            assertFalse(new MerkleMultiproof(proof.keys, tampered, proof.nodes).verify(root));
+
+            var missing = Arrays.copyOf(proof.nodes, proof.nodes.length - 1);
+            assertFalse(new MerkleMultiproof(proof.keys, proof.values, missing).verify(root));
+        }
+
+        var empty = new PatriciaTree(new MapNodeStore()).proveAll(keys[0], keys[1]);
+        assertTrue(empty.verify(PatriciaTree.EMPTY_TREE_ROOT));
+        assertEquals(empty.values, new byte[2][]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testProofVerifier() {
+        var random = new Random(42);
+        var keys = new byte[2000][];
+        var values = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new byte[1 + random.nextInt(3)];
+            random.nextBytes(keys[i]);
+            values[i] = new byte[1 + random.nextInt(40)];
+            random.nextBytes(values[i]);
+        }
+
+        for (var store: new NodeStore[] { new TreeNodeStore(), new MapNodeStore() }) {
+            var tree = new PatriciaTree(store).addAll(keys, values);
+            var root = tree.merkleRoot();
+            // the second verifier caches a single node, forcing evictions
+            var verifiers = new ProofVerifier[] {
+                new ProofVerifier(root), new ProofVerifier(root, 1) };
+
+            // present keys, absent keys, and prefixes of present keys
+            for (int i = 0; i < 300; i++) {
+                var key = i % 3 == 0
+                    ? keys[random.nextInt(keys.length)]
+                    : i % 3 == 1
+                        ? new byte[] { (byte) random.nextInt(), 1, 2, 3 }
+                        : Arrays.copyOf(keys[random.nextInt(keys.length)], 1);
+
+                var proof = tree.prove(key);
+                var branch = proof.encodedBranch();
+                assertTrue(proof.verify(root));
+
+                for (var verifier: verifiers) {
+                    assertTrue(verifier.verify(proof));
+                    assertFalse(verifier.verify(key, new byte[] { 42 }, branch));
+
+                    var truncated = Arrays.copyOf(branch, branch.length - 1);
+                    assertFalse(verifier.verify(key, proof.value, truncated));
+
+                    var extended = Arrays.copyOf(branch, branch.length + 1);
+                    extended[branch.length] = branch[branch.length - 1];
+                    assertFalse(verifier.verify(key, proof.value, extended));
+
+                    // a modified node must fail, even if its hash is cached
+                    var modified = branch.clone();
+                    int j = random.nextInt(branch.length);
+                    modified[j] = branch[j].clone();
+                    modified[j][modified[j].length - 1] ^= 1;
+                    assertFalse(verifier.verify(key, proof.value, modified));
+                }
+
+                assertFalse(new ProofVerifier(PatriciaTree.EMPTY_TREE_ROOT).verify(proof));
+                var wrongRoot = new PatriciaTree(new MapNodeStore()).add(key, new byte[] { 1 });
+                assertFalse(proof.verify(wrongRoot.merkleRoot()));
+            }
+        }
+
+        var empty = new ProofVerifier(PatriciaTree.EMPTY_TREE_ROOT);
+        assertTrue(empty.verify(keys[0], null, new byte[0][]));
+        assertFalse(empty.verify(keys[0], values[0], new byte[0][]));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Random tree with keys of various lengths, many of which are prefixes of other keys. */
+    private static PatriciaTree randomTree (NodeStore store, Random random, int size) {
+        var batch = new PatriciaTree(store).batch();
+        for (int i = 0; i < size; i++) {
+            var key = new byte[1 + random.nextInt(3)];
+            random.nextBytes(key);
+            var value = new byte[1 + random.nextInt(40)];
+            random.nextBytes(value);
+            batch.put(key, value);
+        }
+        return batch.commit();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testRangeIterator() {
+        var random = new Random(42);
+        for (var store: new NodeStore[] { new TreeNodeStore(), new MapNodeStore() }) {
+            var tree = randomTree(store, random, 3000);
+            var sorted = new TreeMap<byte[], byte[]>(Arrays::compareUnsigned);
+            sorted.putAll(tree.toMap());
+
+            for (int i = 0; i < 100; i++) {
+                var start = new byte[random.nextInt(3)];
+                random.nextBytes(start);
+                byte[] end = null;
+                if (i % 2 == 0) {
+                    end = new byte[1 + random.nextInt(2)];
+                    random.nextBytes(end);
+                }
+                var expected = end == null || Arrays.compareUnsigned(start, end) < 0
+                    ? end == null ? sorted.tailMap(start) : sorted.subMap(start, end)
+                    : Map.<byte[], byte[]>of();
+
+                var it = tree.iterator(start, end);
+                for (var entry: expected.entrySet()) {
+                    assertTrue(it.hasNext());
+                    var actual = it.next();
+                    assertEquals(actual.fst, entry.getKey());
+                    assertEquals(actual.snd, entry.getValue());
+                }
+                assertFalse(it.hasNext());
+            }
+        }
+        assertFalse(new PatriciaTree(new MapNodeStore()).iterator(new byte[0], null).hasNext());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testRangeProof() {
+        var random = new Random(42);
+        for (var store: new NodeStore[] { new TreeNodeStore(), new MapNodeStore() }) {
+            var tree = randomTree(store, random, 3000);
+            var root = tree.merkleRoot();
+
+            for (int i = 0; i < 100; i++) {
+                var start = new byte[random.nextInt(3)];
+                random.nextBytes(start);
+                var end = i % 2 == 0 ? null : new byte[] { (byte) random.nextInt() };
+                var proof = tree.proveRange(start, end, 1 + random.nextInt(300));
+                assertTrue(proof.verify(root));
+                assertFalse(proof.verify(PatriciaTree.EMPTY_TREE_ROOT));
+
+                int n = proof.keys.length;
+                if (!proof.complete)
+                    assertFalse(new RangeProof(proof.start, proof.keys, proof.values, true,
+                        proof.nodes).verify(root));
+                if (n < 3) continue;
+
+                var keys = proof.keys;
+                var values = proof.values;
+                int j = 1 + random.nextInt(n - 2);
+
+                // missing entry
+                var fewerKeys = new byte[n - 1][];
+                var fewerValues = new byte[n - 1][];
+                for (int k = 0, l = 0; k < n; k++) {
+                    if (k == j) continue;
+                    fewerKeys[l] = keys[k];
+                    fewerValues[l++] = values[k];
+                }
+                assertFalse(new RangeProof(start, fewerKeys, fewerValues, proof.complete,
+                    proof.nodes).verify(root));
+
+                // modified value
+                var modified = values.clone();
+                modified[j] = new byte[] { 42 };
+                assertFalse(new RangeProof(start, keys, modified, proof.complete, proof.nodes)
+                    .verify(root));
+
+                // keys out of order
+                var swapped = keys.clone();
+                swapped[j] = keys[j + 1];
+                swapped[j + 1] = keys[j];
+                assertFalse(new RangeProof(start, swapped, values, proof.complete, proof.nodes)
+                    .verify(root));
+            }
+
+            // no entries past the start
+            var past = tree.proveRange(new byte[] { -1, -1, -1, -1 }, null, 10);
+            assertEquals(past.keys.length, 0);
+            assertTrue(past.complete);
+            assertTrue(past.verify(root));
+
+            // the whole tree
+            var all = tree.proveRange(new byte[0], null, Integer.MAX_VALUE);
+            assertEquals(all.keys.length, tree.toMap().size());
+            assertTrue(all.verify(root));
+        }
+
+        var empty = new PatriciaTree(new MapNodeStore()).proveRange(new byte[0], null, 10);
+        assertTrue(empty.verify(PatriciaTree.EMPTY_TREE_ROOT));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testSnapTreeBuilder() {
+        var random = new Random(42);
+        var tree = randomTree(new MapNodeStore(), random, 3000);
+        var root = tree.merkleRoot();
+
+        // split the tree in ranges
+        var proofs = new ArrayList<RangeProof>();
+        var start = new byte[0];
+        while (true) {
+            var proof = tree.proveRange(start, null, 1 + random.nextInt(200));
+            proofs.add(proof);
+            if (proof.complete) break;
+            var last = proof.keys[proof.keys.length - 1];
+            start = Arrays.copyOf(last, last.length + 1);
+        }
+        Collections.shuffle(proofs, random);
+
+        // apply some changes to the tree, after half of the ranges have been requested
+        var batch = tree.batch();
+        for (int i = 0; i < 50; i++) {
+            var key = new byte[3];
+            random.nextBytes(key);
+            batch.put(key, new byte[] { 42 });
+        }
+        var changed = batch.commit();
+        var changedRoot = changed.merkleRoot();
+        for (int i = proofs.size() / 2; i < proofs.size(); i++) {
+            var proof = proofs.get(i);
+            // enough entries to cover the keys that were added in the range
+            proofs.set(i, changed.proveRange(proof.start, null, proof.keys.length + 50));
+        }
+
+        var builder = new SnapTreeBuilder(new MapNodeStore());
+        assertEquals(builder.nextMissing(), new byte[0]);
+        for (int i = 0; i < proofs.size(); i++) {
+            var proof = proofs.get(i);
+            assertFalse(builder.isComplete());
+            assertFalse(builder.addRange(proof, PatriciaTree.EMPTY_TREE_ROOT));
+            assertTrue(builder.addRange(proof, i < proofs.size() / 2 ? root : changedRoot));
+        }
+        assertTrue(builder.isComplete());
+        assertNull(builder.nextMissing());
+        assertNotEquals(builder.tree().merkleRoot(), changedRoot);
+
+        // fetch the nodes from the changed tree
+        var fetched = new int[1];
+        var healed = builder.heal(changedRoot, hash -> {
+            ++fetched[0];
+            var node = changed.store.getNode(hash);
+            return node == null ? null : node.compose().encode();
+        });
+        assertEquals(healed.merkleRoot(), changedRoot);
+        assertEquals(entries(healed), entries(changed));
+        assertTrue(fetched[0] < reachableNodes(changed) / 4);
+
+        // healing fails when nodes are unavailable
+        var other = new SnapTreeBuilder(new MapNodeStore());
+        assertThrows(MissingNode.class, () -> other.heal(root, hash -> null));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the entries of the tree, with keys and values wrapped for comparison. */
+    private static Map<ByteBuffer, ByteBuffer> entries (PatriciaTree tree) {
+        var map = new HashMap<ByteBuffer, ByteBuffer>();
+        tree.toMap().forEach((k, v) -> map.put(ByteBuffer.wrap(k), ByteBuffer.wrap(v)));
+        return map;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the number of distinct nodes (by cap) in the tree. */
+    private int reachableNodes (PatriciaTree tree) {
+        return reachableNodes(List.of(tree));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the number of distinct nodes (by cap) in the given trees. */
+    private int reachableNodes (List<PatriciaTree> trees) {
+        var caps = new HashSet<CapKey>();
+        for (var tree: trees) {
+            var stack = new ArrayList<PatriciaNode>();
+            if (tree.root != null) stack.add(tree.root);
+            while (!stack.isEmpty()) {
+                var node = stack.remove(stack.size() - 1);
+                if (!caps.add(CapKey.of(node.cap()))) continue;
+                if (node instanceof PatriciaExtensionNode)
+                    stack.add(((PatriciaExtensionNode) node).child(tree.store));
+                else if (node instanceof PatriciaBranchNode)
+                    for (int i = 0; i < 16; i++)
+                        if (((PatriciaBranchNode) node).hasChildAt(i))
+                            stack.add(((PatriciaBranchNode) node).childAt(tree.store, i));
+            }
+        }
+        return caps.size();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     /**
      * Prints the key-value pairs in the tree, displaying the keys and values as ascii string
      * if they were originally encoded from such strings - excepted for keys that were hashed